@@ -0,0 +1,428 @@
+package javaxt.express;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.Statement;
+import java.sql.Types;
+
+import javaxt.json.*;
+
+//******************************************************************************
+//**  BatchWriter
+//******************************************************************************
+/**
+ *   Used to insert and update models in the database using JDBC batches.
+ *   Column values are read directly from the model fields (see
+ *   ModelMetadata.getFieldValue) and converted to the column types reported
+ *   by the database. Also used to update and delete records by id for bulk
+ *   operations. Records are written using the connection provided in the
+ *   constructor. Transactions are managed by the caller.
+ *
+ ******************************************************************************/
+
+public class BatchWriter {
+
+    private ModelMetadata metadata;
+    private java.sql.Connection conn;
+    private HashMap<String, Column> tableColumns; //column name -> column
+    private LinkedHashMap<String, Column> columns; //field name -> column
+    private ArrayList<Object> inserts = new ArrayList<>();
+    private ArrayList<Object> updates = new ArrayList<>();
+    private int batchSize = 1000;
+
+    private static ConcurrentHashMap<String, HashMap<String, Column>> tables =
+    new ConcurrentHashMap<>();
+
+    private static class Column {
+        private String name;
+        private int type;
+        private String typeName;
+        public Column(String name, int type, String typeName){
+            this.name = name;
+            this.type = type;
+            this.typeName = typeName;
+        }
+    }
+
+
+  //**************************************************************************
+  //** Constructor
+  //**************************************************************************
+  /** @param metadata Metadata for the model that will be written.
+   *  @param conn JDBC connection used to write records.
+   */
+    public BatchWriter(ModelMetadata metadata, java.sql.Connection conn) throws Exception {
+        this.metadata = metadata;
+        this.conn = conn;
+
+
+      //Map fields to columns in the table
+        tableColumns = getColumns(metadata.getTableName(), conn);
+        Map<String, String> fieldMap = metadata.getFieldMap();
+        boolean isSupported = metadata.hasDefaultMethods() &&
+        metadata.getSpatialFields().isEmpty();
+        columns = new LinkedHashMap<>();
+        for (String fieldName : fieldMap.keySet()){
+            if (fieldName.equals("id")) continue;
+            String columnName = fieldMap.get(fieldName);
+            Column column = columnName==null ? null : tableColumns.get(columnName.toLowerCase());
+            Class fieldType = metadata.getFieldType(fieldName);
+            if (column==null || fieldType==null ||
+                Collection.class.isAssignableFrom(fieldType) ||
+                (fieldType.isArray() && javaxt.sql.Model.class.isAssignableFrom(fieldType.getComponentType()))){
+                isSupported = false;
+                break;
+            }
+            columns.put(fieldName, column);
+        }
+        if (!isSupported) columns = null;
+    }
+
+
+  //**************************************************************************
+  //** isSupported
+  //**************************************************************************
+  /** Returns true if the model can be written using JDBC batches. Models
+   *  that override the toJson() or save() methods, models with spatial
+   *  fields, collections, or fields that are not mapped to columns in the
+   *  table (e.g. many-to-many relationships) are not supported and should
+   *  be saved individually.
+   */
+    public boolean isSupported(){
+        return columns!=null;
+    }
+
+
+  //**************************************************************************
+  //** insert
+  //**************************************************************************
+  /** Used to add a new model to the insert batch. Returns false if the
+   *  model cannot be written using JDBC batches (see isSupported), in which
+   *  case the model is not added to the batch and should be saved
+   *  individually.
+   */
+    public boolean insert(Object obj){
+        if (!isSupported()) return false;
+        inserts.add(obj);
+        return true;
+    }
+
+
+  //**************************************************************************
+  //** update
+  //**************************************************************************
+  /** Used to add an existing model to the update batch. Returns false if
+   *  the model cannot be written using JDBC batches (see isSupported), in
+   *  which case the model is not added to the batch and should be saved
+   *  individually.
+   */
+    public boolean update(Object obj){
+        if (!isSupported()) return false;
+        updates.add(obj);
+        return true;
+    }
+
+
+  //**************************************************************************
+  //** execute
+  //**************************************************************************
+  /** Used to write all the models in the insert and update batches to the
+   *  database. The IDs of newly inserted models are set using the IDs
+   *  generated by the database once all the records have been inserted.
+   *  Throws an SQLException if the database does not return a generated key
+   *  for every record in a batch. In that case, none of the IDs are set and
+   *  the caller should rollback the transaction.
+   */
+    public void execute() throws Exception {
+        if (inserts.isEmpty() && updates.isEmpty()) return;
+        String tableName = metadata.getTableName();
+
+
+      //Insert records
+        if (!inserts.isEmpty()){
+            StringBuilder sql = new StringBuilder("insert into " + tableName + " (");
+            StringBuilder values = new StringBuilder();
+            for (Column column : columns.values()){
+                if (values.length()>0){
+                    sql.append(", ");
+                    values.append(", ");
+                }
+                sql.append(column.name);
+                values.append("?");
+            }
+            sql.append(") values (");
+            sql.append(values);
+            sql.append(")");
+
+            long[] ids = new long[inserts.size()];
+            try (PreparedStatement stmt = conn.prepareStatement(sql.toString(), new String[]{"id"})){
+                for (int i=0; i<inserts.size(); i+=batchSize){
+                    List<Object> batch = inserts.subList(i, Math.min(i+batchSize, inserts.size()));
+                    for (Object obj : batch){
+                        setValues(obj, stmt);
+                        stmt.addBatch();
+                    }
+                    stmt.executeBatch();
+
+
+                  //Get IDs. Some drivers only return the key for the last
+                  //record in a batch so we need to check the number of keys.
+                    int n = 0;
+                    try (ResultSet rs = stmt.getGeneratedKeys()){
+                        while (rs.next()){
+                            if (n<batch.size()) ids[i+n] = rs.getLong(1);
+                            n++;
+                        }
+                    }
+                    if (n!=batch.size()){
+                        throw new java.sql.SQLException("Expected " + batch.size() +
+                        " generated keys but received " + n);
+                    }
+                }
+            }
+
+
+          //Set IDs
+            for (int i=0; i<ids.length; i++){
+                metadata.setID(inserts.get(i), ids[i]);
+            }
+            inserts.clear();
+        }
+
+
+      //Update records
+        if (!updates.isEmpty()){
+            StringBuilder sql = new StringBuilder("update " + tableName + " set ");
+            int i = 0;
+            for (Column column : columns.values()){
+                if (i>0) sql.append(", ");
+                sql.append(column.name);
+                sql.append("=?");
+                i++;
+            }
+            sql.append(" where id=?");
+
+            try (PreparedStatement stmt = conn.prepareStatement(sql.toString())){
+                for (int j=0; j<updates.size(); j+=batchSize){
+                    List<Object> batch = updates.subList(j, Math.min(j+batchSize, updates.size()));
+                    for (Object obj : batch){
+                        int idx = setValues(obj, stmt);
+                        stmt.setLong(idx, metadata.getID(obj));
+                        stmt.addBatch();
+                    }
+                    stmt.executeBatch();
+                }
+            }
+            updates.clear();
+        }
+    }
+
+
+  //**************************************************************************
+  //** update
+  //**************************************************************************
+  /** Used to update records with given ids using a single update statement.
+   *  Returns the number of records updated.
+   *  @param values Column names (keys) and values to set.
+   *  @param ids Record ids.
+   */
+    public int update(Map<String, JSONValue> values, List<Long> ids) throws Exception {
+        if (values.isEmpty() || ids.isEmpty()) return 0;
+
+        ArrayList<Column> cols = new ArrayList<>();
+        StringBuilder sql = new StringBuilder("update " + metadata.getTableName() + " set ");
+        for (String columnName : values.keySet()){
+            Column column = tableColumns.get(columnName.toLowerCase());
+            if (column==null) throw new IllegalArgumentException("Invalid field: " + columnName);
+            if (!cols.isEmpty()) sql.append(", ");
+            sql.append(column.name);
+            sql.append("=?");
+            cols.add(column);
+        }
+        sql.append(" where id in (");
+        sql.append(join(ids));
+        sql.append(")");
+
+        try (PreparedStatement stmt = conn.prepareStatement(sql.toString())){
+            int idx = 1;
+            for (String columnName : values.keySet()){
+                setValue(stmt, idx, cols.get(idx-1), values.get(columnName));
+                idx++;
+            }
+            return stmt.executeUpdate();
+        }
+    }
+
+
+  //**************************************************************************
+  //** delete
+  //**************************************************************************
+  /** Used to delete records with given ids using a single delete statement.
+   *  Returns the number of records deleted.
+   */
+    public int delete(List<Long> ids) throws Exception {
+        if (ids.isEmpty()) return 0;
+        try (Statement stmt = conn.createStatement()){
+            return stmt.executeUpdate("delete from " + metadata.getTableName() +
+            " where id in (" + join(ids) + ")");
+        }
+    }
+
+
+  //**************************************************************************
+  //** join
+  //**************************************************************************
+    private static String join(List<Long> ids){
+        StringBuilder str = new StringBuilder();
+        for (Long id : ids){
+            if (str.length()>0) str.append(",");
+            str.append(id.longValue());
+        }
+        return str.toString();
+    }
+
+
+  //**************************************************************************
+  //** setValues
+  //**************************************************************************
+  /** Used to set column values in a PreparedStatement for a given model.
+   *  Returns the index of the next parameter.
+   */
+    private int setValues(Object obj, PreparedStatement stmt) throws Exception {
+        int idx = 1;
+        for (String fieldName : columns.keySet()){
+            Column column = columns.get(fieldName);
+            Object value = metadata.getFieldValue(obj, fieldName);
+
+          //Nested models are stored as foreign keys
+            if (value instanceof javaxt.sql.Model){
+                value = ((javaxt.sql.Model) value).getID();
+            }
+
+            setValue(stmt, idx, column, value==null ? null : new JSONValue(value));
+            idx++;
+        }
+        return idx;
+    }
+
+
+  //**************************************************************************
+  //** setValue
+  //**************************************************************************
+  /** Used to set a parameter in a PreparedStatement using a JSON value or a
+   *  field value wrapped in a JSONValue. The value is converted to the column
+   *  type reported by the database.
+   */
+    private void setValue(PreparedStatement stmt, int idx, Column column, JSONValue value)
+        throws Exception {
+
+        if (value==null || value.isNull()){
+            stmt.setNull(idx, column.type);
+            return;
+        }
+
+
+      //Nested models are stored as foreign keys
+        Object obj = value.toObject();
+        if (obj instanceof JSONObject){
+            JSONValue id = ((JSONObject) obj).get("id");
+            if (id!=null && !id.isNull() && column.type!=Types.OTHER &&
+                column.type!=Types.VARCHAR && column.type!=Types.LONGVARCHAR){
+                value = id;
+            }
+        }
+
+
+        switch (column.type){
+            case Types.BIGINT:
+            case Types.INTEGER:
+            case Types.SMALLINT:
+            case Types.TINYINT:
+                stmt.setLong(idx, value.toLong());
+                break;
+            case Types.DOUBLE:
+            case Types.FLOAT:
+            case Types.REAL:
+                stmt.setDouble(idx, value.toDouble());
+                break;
+            case Types.NUMERIC:
+            case Types.DECIMAL:
+                stmt.setBigDecimal(idx, new java.math.BigDecimal(value.toString()));
+                break;
+            case Types.BOOLEAN:
+            case Types.BIT:
+                stmt.setBoolean(idx, value.toBoolean());
+                break;
+            case Types.TIMESTAMP:
+            case Types.TIMESTAMP_WITH_TIMEZONE:
+                stmt.setTimestamp(idx, new java.sql.Timestamp(value.toDate().getTime()));
+                break;
+            case Types.DATE:
+                stmt.setDate(idx, new java.sql.Date(value.toDate().getTime()));
+                break;
+            case Types.CHAR:
+            case Types.VARCHAR:
+            case Types.LONGVARCHAR:
+            case Types.NCHAR:
+            case Types.NVARCHAR:
+            case Types.CLOB:
+                stmt.setString(idx, value.toString());
+                break;
+            case Types.ARRAY:
+                ArrayList<Object> arr = new ArrayList<>();
+                if (obj.getClass().isArray()){
+                    for (int i=0; i<java.lang.reflect.Array.getLength(obj); i++){
+                        arr.add(java.lang.reflect.Array.get(obj, i));
+                    }
+                }
+                else{
+                    JSONArray jsonArray = value.toJSONArray();
+                    if (jsonArray!=null){
+                        for (int i=0; i<jsonArray.length(); i++){
+                            arr.add(jsonArray.get(i).toObject());
+                        }
+                    }
+                }
+                String typeName = column.typeName;
+                if (typeName.startsWith("_")) typeName = typeName.substring(1);
+                stmt.setArray(idx, conn.createArrayOf(typeName, arr.toArray()));
+                break;
+            default:
+              //Let the database cast the value (e.g. json, uuid, time)
+                stmt.setObject(idx, value.toString(), Types.OTHER);
+                break;
+        }
+    }
+
+
+  //**************************************************************************
+  //** getColumns
+  //**************************************************************************
+  /** Returns the columns in a given table, keyed by lowercase column name.
+   *  Column types are cached by database URL and table name.
+   */
+    private static HashMap<String, Column> getColumns(String tableName,
+        java.sql.Connection conn) throws Exception {
+
+        String key = conn.getMetaData().getURL() + "\n" + tableName.toLowerCase();
+        HashMap<String, Column> columns = tables.get(key);
+        if (columns!=null) return columns;
+
+        columns = new HashMap<>();
+        try (Statement stmt = conn.createStatement()){
+            try (ResultSet rs = stmt.executeQuery("select * from " + tableName + " where 1=0")){
+                ResultSetMetaData rsmd = rs.getMetaData();
+                for (int i=1; i<=rsmd.getColumnCount(); i++){
+                    String name = rsmd.getColumnName(i);
+                    columns.put(name.toLowerCase(),
+                    new Column(name, rsmd.getColumnType(i), rsmd.getColumnTypeName(i)));
+                }
+            }
+        }
+        tables.put(key, columns);
+        return columns;
+    }
+}
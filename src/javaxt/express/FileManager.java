@@ -35,6 +35,9 @@ public class FileManager {
     private javaxt.io.Directory web;
     private String[] welcomeFiles = new String[]{"index.html", "index.htm", "default.htm"};
 
+    private static final Metrics.Histogram sendTime = Metrics.histogram(
+        "javaxt_file_send_seconds", "Time spent sending static files");
+
 
   //**************************************************************************
   //** Constructor
@@ -232,6 +235,23 @@ public class FileManager {
    */
     public void sendFile(java.io.File file, HttpServletRequest request, HttpServletResponse response)
         throws IOException {
+        long startTime = System.nanoTime();
+        try{
+            send(file, request, response);
+        }
+        finally{
+            sendTime.record(System.nanoTime()-startTime);
+        }
+    }
+
+
+  //**************************************************************************
+  //** send
+  //**************************************************************************
+  /** Used to send a file to the client.
+   */
+    private void send(java.io.File file, HttpServletRequest request, HttpServletResponse response)
+        throws IOException {
 
       //Validate the given file. Send 404 response as needed.
         if (file==null || !file.isFile() || !file.exists() || file.isHidden()){
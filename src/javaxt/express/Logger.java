@@ -45,6 +45,8 @@ public class Logger implements Runnable {
         this.maxFileSize = maxFileSize;
         this.tz = javaxt.utils.Date.getTimeZone(timezone);
         this.pool = new LinkedList();
+        Metrics.gauge("javaxt_log_queue_size", "Number of log entries waiting to be written",
+        () -> { synchronized (pool) { return pool.size(); } }, "dir", logDir.getName());
     }
 
 
@@ -0,0 +1,351 @@
+package javaxt.express;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+//******************************************************************************
+//**  Metrics
+//******************************************************************************
+/**
+ *   Lightweight registry used to record server metrics (e.g. request counts
+ *   and latencies). Counters and histograms are backed by LongAdders so they
+ *   can be updated concurrently without locks or allocations. Metrics are
+ *   identified by a name and an optional list of labels and can be exported
+ *   using the Prometheus text format via the toPrometheus() method. Callers
+ *   on hot paths should keep a reference to the metric instead of looking it
+ *   up for every request.
+ *
+ ******************************************************************************/
+
+public class Metrics {
+    private Metrics(){}
+
+    private static final ConcurrentHashMap<String, Metric> metrics = new ConcurrentHashMap<>();
+    private static volatile boolean enabled = true;
+
+
+  //**************************************************************************
+  //** Metric Class
+  //**************************************************************************
+  /** Base class for all metrics.
+   */
+    public static abstract class Metric {
+        private final String name;
+        private final String help;
+        private final String labels; //e.g. {method="get"}
+
+        private Metric(String name, String help, String labels){
+            this.name = name;
+            this.help = help;
+            this.labels = labels;
+        }
+
+        public String getName(){
+            return name;
+        }
+
+        protected abstract String getType();
+
+        protected abstract void write(StringBuilder str);
+    }
+
+
+  //**************************************************************************
+  //** Counter Class
+  //**************************************************************************
+  /** Used to count events (e.g. requests, errors, connections).
+   */
+    public static class Counter extends Metric {
+        private final LongAdder value = new LongAdder();
+
+        private Counter(String name, String help, String labels){
+            super(name, help, labels);
+        }
+
+        public void inc(){
+            if (enabled) value.increment();
+        }
+
+        public void add(long n){
+            if (enabled) value.add(n);
+        }
+
+        public long get(){
+            return value.sum();
+        }
+
+        protected String getType(){
+            return "counter";
+        }
+
+        protected void write(StringBuilder str){
+            str.append(getName());
+            str.append(super.labels);
+            str.append(" ");
+            str.append(get());
+            str.append("\n");
+        }
+    }
+
+
+  //**************************************************************************
+  //** Gauge Class
+  //**************************************************************************
+  /** Used to report a value that can go up and down (e.g. queue depth). The
+   *  value is computed when the metrics are exported.
+   */
+    public static class Gauge extends Metric {
+        private final LongSupplier supplier;
+
+        private Gauge(String name, String help, String labels, LongSupplier supplier){
+            super(name, help, labels);
+            this.supplier = supplier;
+        }
+
+        public long get(){
+            try{
+                return supplier.getAsLong();
+            }
+            catch(Exception e){
+                return 0;
+            }
+        }
+
+        protected String getType(){
+            return "gauge";
+        }
+
+        protected void write(StringBuilder str){
+            str.append(getName());
+            str.append(super.labels);
+            str.append(" ");
+            str.append(get());
+            str.append("\n");
+        }
+    }
+
+
+  //**************************************************************************
+  //** Histogram Class
+  //**************************************************************************
+  /** Used to record durations using exponential buckets. Each bucket is twice
+   *  the size of the previous bucket, starting at about 1 microsecond, so the
+   *  bucket for a given duration can be found using a single bit operation.
+   *  Durations are recorded in nanoseconds and exported in seconds.
+   */
+    public static class Histogram extends Metric {
+        private static final int numBuckets = 32;
+        private final LongAdder[] buckets = new LongAdder[numBuckets];
+        private final LongAdder sum = new LongAdder();
+        private final LongAdder count = new LongAdder();
+
+        private Histogram(String name, String help, String labels){
+            super(name, help, labels);
+            for (int i=0; i<numBuckets; i++) buckets[i] = new LongAdder();
+        }
+
+      /** Used to record a duration.
+       *  @param nanos Duration in nanoseconds (e.g. System.nanoTime()-start)
+       */
+        public void record(long nanos){
+            if (!enabled) return;
+            if (nanos<0) nanos = 0;
+            long v = nanos >> 10;
+            int idx = v==0 ? 0 : Math.min(64-Long.numberOfLeadingZeros(v), numBuckets-1);
+            buckets[idx].increment();
+            sum.add(nanos);
+            count.increment();
+        }
+
+        public long getCount(){
+            return count.sum();
+        }
+
+        protected String getType(){
+            return "histogram";
+        }
+
+        protected void write(StringBuilder str){
+            String labels = super.labels;
+            String prefix = labels.isEmpty() ? "{" : labels.substring(0, labels.length()-1) + ",";
+            long total = 0;
+            for (int i=0; i<numBuckets-1; i++){
+                total += buckets[i].sum();
+                str.append(getName());
+                str.append("_bucket");
+                str.append(prefix);
+                str.append("le=\"");
+                str.append(((1024L << i)/1000000000d));
+                str.append("\"} ");
+                str.append(total);
+                str.append("\n");
+            }
+            str.append(getName());
+            str.append("_bucket");
+            str.append(prefix);
+            str.append("le=\"+Inf\"} ");
+            str.append(getCount());
+            str.append("\n");
+
+            str.append(getName());
+            str.append("_sum");
+            str.append(labels);
+            str.append(" ");
+            str.append(sum.sum()/1000000000d);
+            str.append("\n");
+
+            str.append(getName());
+            str.append("_count");
+            str.append(labels);
+            str.append(" ");
+            str.append(getCount());
+            str.append("\n");
+        }
+    }
+
+
+  //**************************************************************************
+  //** counter
+  //**************************************************************************
+  /** Returns a counter for a given name and labels. Creates a new counter as
+   *  needed.
+   *  @param labels Label names and values (e.g. "method", "get")
+   */
+    public static Counter counter(String name, String help, String... labels){
+        String l = getLabels(labels);
+        return (Counter) metrics.computeIfAbsent(name + l, k -> new Counter(name, help, l));
+    }
+
+
+  //**************************************************************************
+  //** histogram
+  //**************************************************************************
+  /** Returns a histogram for a given name and labels. Creates a new
+   *  histogram as needed.
+   *  @param labels Label names and values (e.g. "method", "get")
+   */
+    public static Histogram histogram(String name, String help, String... labels){
+        String l = getLabels(labels);
+        return (Histogram) metrics.computeIfAbsent(name + l, k -> new Histogram(name, help, l));
+    }
+
+
+  //**************************************************************************
+  //** gauge
+  //**************************************************************************
+  /** Used to register a gauge. Replaces any existing gauge with the same name
+   *  and labels.
+   *  @param supplier Function used to get the current value of the gauge.
+   *  @param labels Label names and values (e.g. "pool", "default")
+   */
+    public static Gauge gauge(String name, String help, LongSupplier supplier, String... labels){
+        String l = getLabels(labels);
+        Gauge gauge = new Gauge(name, help, l, supplier);
+        metrics.put(name + l, gauge);
+        return gauge;
+    }
+
+
+  //**************************************************************************
+  //** setEnabled
+  //**************************************************************************
+  /** Used to enable or disable recording. Enabled by default.
+   */
+    public static void setEnabled(boolean enabled){
+        Metrics.enabled = enabled;
+    }
+
+
+  //**************************************************************************
+  //** isEnabled
+  //**************************************************************************
+  /** Returns true if metrics are being recorded.
+   */
+    public static boolean isEnabled(){
+        return enabled;
+    }
+
+
+  //**************************************************************************
+  //** clear
+  //**************************************************************************
+  /** Used to remove all the metrics from the registry.
+   */
+    public static void clear(){
+        metrics.clear();
+    }
+
+
+  //**************************************************************************
+  //** toPrometheus
+  //**************************************************************************
+  /** Returns all the metrics in the Prometheus text exposition format.
+   */
+    public static String toPrometheus(){
+
+
+      //Group metrics by name
+        TreeMap<String, ArrayList<Metric>> groups = new TreeMap<>();
+        for (Metric metric : metrics.values()){
+            ArrayList<Metric> arr = groups.get(metric.name);
+            if (arr==null){
+                arr = new ArrayList<>();
+                groups.put(metric.name, arr);
+            }
+            arr.add(metric);
+        }
+
+
+      //Write metrics
+        StringBuilder str = new StringBuilder();
+        for (String name : groups.keySet()){
+            ArrayList<Metric> arr = groups.get(name);
+            arr.sort((a, b) -> a.labels.compareTo(b.labels));
+            Metric first = arr.get(0);
+            if (first.help!=null){
+                str.append("# HELP ");
+                str.append(name);
+                str.append(" ");
+                str.append(first.help.replace("\\", "\\\\").replace("\n", "\\n"));
+                str.append("\n");
+            }
+            str.append("# TYPE ");
+            str.append(name);
+            str.append(" ");
+            str.append(first.getType());
+            str.append("\n");
+            for (Metric metric : arr){
+                metric.write(str);
+            }
+        }
+        return str.toString();
+    }
+
+
+  //**************************************************************************
+  //** getLabels
+  //**************************************************************************
+  /** Returns labels formatted for the Prometheus text format (e.g.
+   *  {method="get",model="User"}). Returns an empty string if there are no
+   *  labels.
+   */
+    private static String getLabels(String... labels){
+        if (labels==null || labels.length==0) return "";
+        if (labels.length%2!=0) throw new IllegalArgumentException(
+        "Labels must be given as name/value pairs");
+
+        StringBuilder str = new StringBuilder("{");
+        for (int i=0; i<labels.length; i+=2){
+            if (i>0) str.append(",");
+            str.append(labels[i]);
+            str.append("=\"");
+            String val = labels[i+1]==null ? "" : labels[i+1];
+            str.append(val.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n"));
+            str.append("\"");
+        }
+        str.append("}");
+        return str.toString();
+    }
+}
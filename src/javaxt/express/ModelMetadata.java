@@ -0,0 +1,667 @@
+package javaxt.express;
+import javaxt.json.JSONObject;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Method;
+
+//******************************************************************************
+//**  ModelMetadata
+//******************************************************************************
+/**
+ *   Used to encapsulate the table name, fields, and methods associated with a
+ *   javaxt.sql.Model. Instances of this class are immutable and are cached
+ *   in a static registry so that the reflection used to inspect a Model is
+ *   performed only once per class. Use the static get() method to retrieve
+ *   metadata for a given class.
+ *
+ ******************************************************************************/
+
+public class ModelMetadata {
+
+    private final Class c;
+    private final String tableName;
+    private final HashMap<String, String> fieldMap;
+    private final HashMap<String, String[]> fields;
+    private final Set<String> stringFields;
+    private final Set<String> arrayFields;
+    private final Set<String> spatialFields;
+    private final String selectID;
+    private final String selectColumns;
+    private final HashMap<String, Class> fieldTypes;
+    private final boolean simpleFields;
+    private final boolean defaultMethods;
+    private final HashMap<String, java.lang.reflect.Field> fieldHandles;
+
+    private final Constructor idConstructor;
+    private final Constructor jsonConstructor;
+    private final Method toJson;
+    private final Method save;
+    private final Method update;
+    private final Method delete;
+    private final Method getID;
+    private final java.lang.reflect.Field idField;
+
+    private static final ConcurrentHashMap<Class, ModelMetadata> registry =
+    new ConcurrentHashMap<>();
+
+
+  //**************************************************************************
+  //** Constructor
+  //**************************************************************************
+  /** Creates a new instance of this class using a javaxt.sql.Model class.
+   */
+    private ModelMetadata(Class c) throws Exception {
+        this.c = c;
+
+        Object obj = c.newInstance(); //maybe clone instead?
+
+      //Get tableName
+        java.lang.reflect.Field field = obj.getClass().getSuperclass().getDeclaredField("tableName");
+        field.setAccessible(true);
+        tableName = (String) field.get(obj);
+
+
+      //Get fieldMap
+        field = obj.getClass().getSuperclass().getDeclaredField("fieldMap");
+        field.setAccessible(true);
+        HashMap<String, String> map = (HashMap<String, String>) field.get(obj);
+        fieldMap = new HashMap<>(map);
+        fieldMap.put("id", "id");
+
+
+      //Get string, array, and spatial fields
+        HashSet<String> stringFields = new HashSet<>();
+        HashSet<String> arrayFields = new HashSet<>();
+        HashSet<String> spatialFields = new HashSet<>();
+        HashMap<String, Class> fieldTypes = new HashMap<>();
+        HashMap<String, java.lang.reflect.Field> fieldHandles = new HashMap<>();
+        for (java.lang.reflect.Field f : obj.getClass().getDeclaredFields()){
+            Class fieldType = f.getType();
+            if (fieldMap.containsKey(f.getName())){
+                fieldTypes.put(f.getName(), fieldType);
+                f.setAccessible(true);
+                fieldHandles.put(f.getName(), f);
+            }
+            String packageName = fieldType.getPackage()==null ? "" :
+                                 fieldType.getPackage().getName();
+
+            if (packageName.startsWith("javaxt.geospatial.geometry") ||
+                packageName.startsWith("com.vividsolutions.jts.geom") ||
+                packageName.startsWith("org.locationtech.jts.geom")){
+                spatialFields.add(f.getName());
+            }
+
+            if (fieldType.equals(String.class) || fieldType.equals(String[].class)){
+                stringFields.add(f.getName());
+            }
+
+            if (fieldType.isArray()){
+                arrayFields.add(f.getName());
+            }
+        }
+        this.stringFields = Collections.unmodifiableSet(stringFields);
+        this.arrayFields = Collections.unmodifiableSet(arrayFields);
+        this.spatialFields = Collections.unmodifiableSet(spatialFields);
+        this.fieldHandles = fieldHandles;
+
+
+      //Create case insensitive lookup for field and column names
+        fields = createLookup(fieldMap);
+
+
+      //Create SQL fragments
+        selectID = "select " + tableName + ".id from " + tableName + " where ";
+        selectColumns = createSelect(tableName, fieldMap);
+
+
+      //Get constructors and methods
+        idConstructor = getConstructor(c, Long.TYPE);
+        jsonConstructor = getConstructor(c, JSONObject.class);
+        toJson = getMethod("toJson", c);
+        save = getMethod("save", c);
+        delete = getMethod("delete", c);
+        getID = getMethod("getID", c);
+        Method update = null;
+        try{
+            update = c.getDeclaredMethod("update", JSONObject.class);
+            update.setAccessible(true);
+        }
+        catch(Exception e){}
+        this.update = update;
+        java.lang.reflect.Field idField = null;
+        try{
+            idField = obj.getClass().getSuperclass().getDeclaredField("id");
+            idField.setAccessible(true);
+        }
+        catch(Exception e){}
+        this.idField = idField;
+
+
+      //Check whether the model overrides the toJson() or save() methods
+        defaultMethods = isDefault(toJson) && isDefault(save);
+
+
+      //Check whether JSON can be generated directly from a database record.
+      //This is only possible if the model uses the default toJson() method
+      //and all the fields are simple types (e.g. strings, numbers, dates).
+        fieldTypes.put("id", Long.class);
+        this.fieldTypes = fieldTypes;
+        boolean simpleFields = isDefault(toJson);
+        for (String fieldName : fieldMap.keySet()){
+            Class fieldType = fieldTypes.get(fieldName);
+            if (fieldType==null || !isSimpleType(fieldType)){
+                simpleFields = false;
+                break;
+            }
+        }
+        this.simpleFields = simpleFields;
+    }
+
+
+  //**************************************************************************
+  //** Constructor
+  //**************************************************************************
+  /** Creates a new instance of this class using a HashMap generated by the
+   *  legacy WebService.getTableAndFields() method. Note that the methods used
+   *  to create and update models are not available with this constructor.
+   */
+    protected ModelMetadata(HashMap<String, Object> tablesAndFields){
+        this.c = null;
+        tableName = (String) tablesAndFields.get("tableName");
+        fieldMap = new HashMap<>((HashMap<String, String>) tablesAndFields.get("fieldMap"));
+        stringFields = Collections.unmodifiableSet(getSet("stringFields", tablesAndFields));
+        arrayFields = Collections.unmodifiableSet(getSet("arrayFields", tablesAndFields));
+        spatialFields = Collections.unmodifiableSet(getSet("spatialFields", tablesAndFields));
+        fields = createLookup(fieldMap);
+        selectID = "select " + tableName + ".id from " + tableName + " where ";
+        selectColumns = createSelect(tableName, fieldMap);
+        idConstructor = jsonConstructor = null;
+        toJson = save = update = delete = getID = null;
+        idField = null;
+        fieldTypes = new HashMap<>();
+        fieldHandles = new HashMap<>();
+        simpleFields = false;
+        defaultMethods = false;
+    }
+
+
+  //**************************************************************************
+  //** get
+  //**************************************************************************
+  /** Returns metadata for a given javaxt.sql.Model class. The metadata is
+   *  generated the first time this method is called for a class and cached
+   *  for subsequent calls.
+   */
+    public static ModelMetadata get(Class c) throws Exception {
+        ModelMetadata metadata = registry.get(c);
+        if (metadata==null){
+            metadata = new ModelMetadata(c);
+            ModelMetadata prev = registry.putIfAbsent(c, metadata);
+            if (prev!=null) metadata = prev;
+        }
+        return metadata;
+    }
+
+
+  //**************************************************************************
+  //** getModel
+  //**************************************************************************
+  /** Returns the javaxt.sql.Model class associated with this metadata. May
+   *  return null if the metadata was not generated using a class.
+   */
+    public Class getModel(){
+        return c;
+    }
+
+
+  //**************************************************************************
+  //** getTableName
+  //**************************************************************************
+  /** Returns the name of the table associated with the model.
+   */
+    public String getTableName(){
+        return tableName;
+    }
+
+
+  //**************************************************************************
+  //** getFieldMap
+  //**************************************************************************
+  /** Returns an unmodifiable map of field names (keys) and column names
+   *  (values). Includes the "id" field.
+   */
+    public Map<String, String> getFieldMap(){
+        return Collections.unmodifiableMap(fieldMap);
+    }
+
+
+  //**************************************************************************
+  //** getField
+  //**************************************************************************
+  /** Returns the field name and column name for a given field or column.
+   *  Performs a case insensitive search. Returns null if there is no match.
+   *  @param name Field name (e.g. "firstName") or column name (e.g.
+   *  "first_name")
+   *  @return Array with 2 entries: field name and column name
+   */
+    public String[] getField(String name){
+        if (name==null) return null;
+        String[] field = fields.get(name);
+        if (field==null) field = fields.get(name.toLowerCase());
+        return field;
+    }
+
+
+  //**************************************************************************
+  //** getStringFields
+  //**************************************************************************
+  /** Returns the names of fields with String or String[] values.
+   */
+    public Set<String> getStringFields(){
+        return stringFields;
+    }
+
+
+  //**************************************************************************
+  //** getArrayFields
+  //**************************************************************************
+  /** Returns the names of fields with array values.
+   */
+    public Set<String> getArrayFields(){
+        return arrayFields;
+    }
+
+
+  //**************************************************************************
+  //** getSpatialFields
+  //**************************************************************************
+  /** Returns the names of fields with geometry values (e.g. JTS Geometry).
+   */
+    public Set<String> getSpatialFields(){
+        return spatialFields;
+    }
+
+
+  //**************************************************************************
+  //** getSelectIDStatement
+  //**************************************************************************
+  /** Returns a SQL statement used to select record IDs from the table,
+   *  ending with a "where" keyword (e.g. "select user.id from user where ").
+   */
+    public String getSelectIDStatement(){
+        return selectID;
+    }
+
+
+  //**************************************************************************
+  //** getSelectStatement
+  //**************************************************************************
+  /** Returns a comma delimited list of all the columns in the table,
+   *  prefixed with the table name (e.g. "user.id, user.first_name").
+   */
+    public String getSelectStatement(){
+        return selectColumns;
+    }
+
+
+  //**************************************************************************
+  //** newInstance
+  //**************************************************************************
+  /** Returns a new instance of the model using an ID.
+   */
+    public Object newInstance(long id) throws Exception {
+        if (idConstructor==null) throw new NoSuchMethodException(c + "(long)");
+        return idConstructor.newInstance(id);
+    }
+
+
+  //**************************************************************************
+  //** newInstance
+  //**************************************************************************
+  /** Returns a new instance of the model using a JSON object.
+   */
+    public Object newInstance(JSONObject json) throws Exception {
+        if (jsonConstructor==null) throw new NoSuchMethodException(c + "(JSONObject)");
+        return jsonConstructor.newInstance(json);
+    }
+
+
+  //**************************************************************************
+  //** toJson
+  //**************************************************************************
+  /** Returns a JSON representation of a given model instance.
+   */
+    public JSONObject toJson(Object obj) throws Exception {
+        return (JSONObject) toJson.invoke(obj);
+    }
+
+
+  //**************************************************************************
+  //** hasSimpleFields
+  //**************************************************************************
+  /** Returns true if the model uses the default toJson() method and all the
+   *  fields in the model are simple types (e.g. strings, numbers, booleans,
+   *  and dates). Models with simple fields can be serialized directly from a
+   *  database record without instantiating the model. See toJson(Field[]).
+   */
+    public boolean hasSimpleFields(){
+        return simpleFields;
+    }
+
+
+  //**************************************************************************
+  //** hasDefaultMethods
+  //**************************************************************************
+  /** Returns true if the model uses the default toJson() and save() methods
+   *  in javaxt.sql.Model. Models that override these methods (e.g. to hide
+   *  a field or to update other tables) should be saved individually.
+   */
+    public boolean hasDefaultMethods(){
+        return defaultMethods;
+    }
+
+
+  //**************************************************************************
+  //** toJson
+  //**************************************************************************
+  /** Returns a JSON representation of a model using fields from a database
+   *  record (e.g. Recordset.getFields()). The record should include all the
+   *  columns returned by getSelectStatement(). Returns null if the model does
+   *  not have simple fields or if any of the columns are missing from the
+   *  record.
+   */
+    public JSONObject toJson(javaxt.sql.Field[] record){
+        if (!simpleFields || record==null) return null;
+
+      //Map column names to values
+        HashMap<String, javaxt.sql.Value> values = new HashMap<>();
+        for (javaxt.sql.Field field : record){
+            String columnName = field.getName();
+            if (columnName==null) continue;
+            columnName = columnName.toLowerCase();
+            if (!values.containsKey(columnName)) values.put(columnName, field.getValue());
+        }
+
+        return toJson(values);
+    }
+
+
+  //**************************************************************************
+  //** toJson
+  //**************************************************************************
+  /** Returns a JSON representation of a model using values from a database
+   *  record, keyed by lowercase column name. Returns null if the model does
+   *  not have simple fields or if any of the columns are missing.
+   */
+    public JSONObject toJson(Map<String, javaxt.sql.Value> values){
+        if (!simpleFields || values==null) return null;
+
+
+      //Create json
+        JSONObject json = new JSONObject();
+        for (String fieldName : fieldMap.keySet()){
+            String columnName = fieldMap.get(fieldName).toLowerCase();
+            if (!values.containsKey(columnName)) return null;
+            json.set(fieldName, getValue(values.get(columnName), fieldTypes.get(fieldName)));
+        }
+        return json;
+    }
+
+
+  //**************************************************************************
+  //** update
+  //**************************************************************************
+  /** Used to update a given model instance using a JSON object.
+   */
+    public void update(Object obj, JSONObject json) throws Exception {
+        if (update==null) throw new NoSuchMethodException(c + ".update(JSONObject)");
+        update.invoke(obj, json);
+    }
+
+
+  //**************************************************************************
+  //** save
+  //**************************************************************************
+  /** Used to save a given model instance to the database.
+   */
+    public void save(Object obj) throws Exception {
+        save.invoke(obj);
+    }
+
+
+  //**************************************************************************
+  //** delete
+  //**************************************************************************
+  /** Used to delete a given model instance from the database.
+   */
+    public void delete(Object obj) throws Exception {
+        delete.invoke(obj);
+    }
+
+
+  //**************************************************************************
+  //** getID
+  //**************************************************************************
+  /** Returns the ID of a given model instance.
+   */
+    public Long getID(Object obj) throws Exception {
+        return (Long) getID.invoke(obj);
+    }
+
+
+  //**************************************************************************
+  //** setID
+  //**************************************************************************
+  /** Used to set the ID of a given model instance. This is used when records
+   *  are inserted into the database without calling the save() method (e.g.
+   *  batch inserts).
+   */
+    public void setID(Object obj, long id) throws Exception {
+        if (idField==null) throw new NoSuchFieldException(c + ".id");
+        idField.set(obj, id);
+    }
+
+
+  //**************************************************************************
+  //** getFieldValue
+  //**************************************************************************
+  /** Returns the value of a given field in a model instance. The value is
+   *  read directly from the field, bypassing the toJson() method.
+   */
+    public Object getFieldValue(Object obj, String fieldName) throws Exception {
+        java.lang.reflect.Field field = fieldHandles.get(fieldName);
+        if (field==null) throw new NoSuchFieldException(c + "." + fieldName);
+        return field.get(obj);
+    }
+
+
+  //**************************************************************************
+  //** getFieldType
+  //**************************************************************************
+  /** Returns the Java type of a given field in the model. Returns null if
+   *  the field is not found.
+   */
+    public Class getFieldType(String fieldName){
+        return fieldTypes.get(fieldName);
+    }
+
+
+  //**************************************************************************
+  //** toHashMap
+  //**************************************************************************
+  /** Returns a HashMap with the table name and fields associated with the
+   *  model. The HashMap is compatible with the legacy getTableAndFields()
+   *  method in the WebService class.
+   */
+    public HashMap<String, Object> toHashMap(){
+        HashMap<String, Object> p = new HashMap<>();
+        p.put("tableName", tableName);
+        p.put("fieldMap", new HashMap<>(fieldMap));
+        p.put("stringFields", new HashSet<>(stringFields));
+        p.put("arrayFields", new HashSet<>(arrayFields));
+        p.put("spatialFields", new HashSet<>(spatialFields));
+        return p;
+    }
+
+
+  //**************************************************************************
+  //** createLookup
+  //**************************************************************************
+  /** Returns a map of lowercase field and column names to field/column name
+   *  pairs. Field names take precedence over column names.
+   */
+    private static HashMap<String, String[]> createLookup(HashMap<String, String> fieldMap){
+        HashMap<String, String[]> fields = new HashMap<>();
+        for (String fieldName : fieldMap.keySet()){
+            String columnName = fieldMap.get(fieldName);
+            if (columnName!=null){
+                fields.put(columnName.toLowerCase(), new String[]{fieldName, columnName});
+            }
+        }
+        for (String fieldName : fieldMap.keySet()){
+            String columnName = fieldMap.get(fieldName);
+            fields.put(fieldName.toLowerCase(), new String[]{fieldName, columnName});
+        }
+        return fields;
+    }
+
+
+  //**************************************************************************
+  //** createSelect
+  //**************************************************************************
+    private static String createSelect(String tableName, HashMap<String, String> fieldMap){
+        StringBuilder str = new StringBuilder(tableName + ".id");
+        for (String fieldName : fieldMap.keySet()){
+            String columnName = fieldMap.get(fieldName);
+            if (columnName==null || columnName.equalsIgnoreCase("id")) continue;
+            str.append(", ");
+            str.append(tableName);
+            str.append(".");
+            str.append(columnName);
+        }
+        return str.toString();
+    }
+
+
+  //**************************************************************************
+  //** isDefault
+  //**************************************************************************
+  /** Returns true if a given method is declared in javaxt.sql.Model.
+   */
+    private static boolean isDefault(Method method){
+        return method!=null &&
+        method.getDeclaringClass().getName().equals("javaxt.sql.Model");
+    }
+
+
+  //**************************************************************************
+  //** isSimpleType
+  //**************************************************************************
+  /** Returns true if a given field type can be converted directly from a
+   *  database value. See getValue().
+   */
+    private static boolean isSimpleType(Class c){
+        return c.isPrimitive() || c.equals(String.class) ||
+        c.equals(Long.class) || c.equals(Integer.class) || c.equals(Short.class) ||
+        c.equals(Double.class) || c.equals(Float.class) ||
+        c.equals(Boolean.class) || c.equals(java.math.BigDecimal.class) ||
+        c.equals(javaxt.utils.Date.class);
+    }
+
+
+  //**************************************************************************
+  //** getValue
+  //**************************************************************************
+  /** Used to convert a database value into the type used by a model field.
+   *  Null values for primitive fields are converted to default values (e.g.
+   *  0 or false) to match uninitialized fields in the model.
+   */
+    private static Object getValue(javaxt.sql.Value value, Class c){
+        boolean isNull = value==null || value.isNull();
+        if (c.equals(String.class)){
+            return isNull ? null : value.toString();
+        }
+        else if (c.equals(javaxt.utils.Date.class)){
+            return isNull ? null : value.toDate();
+        }
+        else if (c.equals(Long.class) || c.equals(Long.TYPE)){
+            if (isNull) return c.isPrimitive() ? 0L : null;
+            return value.toLong();
+        }
+        else if (c.equals(Integer.class) || c.equals(Integer.TYPE)){
+            if (isNull) return c.isPrimitive() ? 0 : null;
+            return value.toInteger();
+        }
+        else if (c.equals(Short.class) || c.equals(Short.TYPE)){
+            if (isNull) return c.isPrimitive() ? (short) 0 : null;
+            return value.toInteger().shortValue();
+        }
+        else if (c.equals(Double.class) || c.equals(Double.TYPE)){
+            if (isNull) return c.isPrimitive() ? 0d : null;
+            return value.toDouble();
+        }
+        else if (c.equals(Float.class) || c.equals(Float.TYPE)){
+            if (isNull) return c.isPrimitive() ? 0f : null;
+            return value.toDouble().floatValue();
+        }
+        else if (c.equals(Boolean.class) || c.equals(Boolean.TYPE)){
+            if (isNull) return c.isPrimitive() ? false : null;
+            return value.toBoolean();
+        }
+        else if (c.equals(java.math.BigDecimal.class)){
+            if (isNull) return null;
+            Object obj = value.toObject();
+            if (obj instanceof java.math.BigDecimal) return obj;
+            return new java.math.BigDecimal(value.toString());
+        }
+        return isNull ? null : value.toObject();
+    }
+
+
+  //**************************************************************************
+  //** getSet
+  //**************************************************************************
+    private static HashSet<String> getSet(String key, HashMap<String, Object> map){
+        HashSet<String> set = (HashSet<String>) map.get(key);
+        return set==null ? new HashSet<>() : new HashSet<>(set);
+    }
+
+
+  //**************************************************************************
+  //** getConstructor
+  //**************************************************************************
+    private static Constructor getConstructor(Class c, Class param){
+        try{
+            Constructor constructor = c.getDeclaredConstructor(new Class[]{param});
+            try{ constructor.setAccessible(true); }
+            catch(Exception e){}
+            return constructor;
+        }
+        catch(Exception e){
+            return null;
+        }
+    }
+
+
+  //**************************************************************************
+  //** getMethod
+  //**************************************************************************
+  /** Returns a declared (public) method defined in a given class.
+   */
+    private static Method getMethod(String name, Class clazz){
+        while (clazz != null) {
+            Method[] methods = clazz.getDeclaredMethods();
+            for (Method method : methods) {
+                if (method.getName().equals(name)) {
+                    try{ method.setAccessible(true); }
+                    catch(Exception e){}
+                    return method;
+                }
+            }
+            clazz = clazz.getSuperclass();
+        }
+        return null;
+    }
+}
@@ -0,0 +1,405 @@
+package javaxt.express;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import javaxt.sql.*;
+
+//******************************************************************************
+//**  RecordCounter
+//******************************************************************************
+/**
+ *   Used to count records in a table for list requests with "count=true".
+ *   Exact counts can be cached for a period of time and are keyed by table
+ *   name and where clause. Cached counts are invalidated whenever a record is
+ *   created, updated or deleted via the invalidate() method. Optionally, the
+ *   counter can return approximate counts using PostgreSQL planner estimates
+ *   and can run counts in parallel with the main query using a separate
+ *   database connection.
+ *
+ ******************************************************************************/
+
+public class RecordCounter {
+
+    private ConcurrentHashMap<String, CacheEntry> cache = new ConcurrentHashMap<>();
+    private ConcurrentHashMap<String, AtomicLong> versions = new ConcurrentHashMap<>();
+    private long ttl = 0; //disabled by default
+    private int maxEntries = 10000;
+    private boolean estimate = false;
+    private long estimateThreshold = 100000;
+    private boolean parallel = false;
+    private ExecutorService executor;
+
+    private static final Pattern rowEstimate = Pattern.compile("rows=(\\d+)");
+
+    private class CacheEntry {
+        private long count;
+        private long expires;
+        public CacheEntry(long count, long expires){
+            this.count = count;
+            this.expires = expires;
+        }
+    }
+
+
+  //**************************************************************************
+  //** Count Class
+  //**************************************************************************
+  /** Used to encapsulate the number of records returned by the counter and
+   *  whether the count is exact or an estimate.
+   */
+    public static class Count {
+        private long value;
+        private boolean estimated;
+        public Count(long value, boolean estimated){
+            this.value = value;
+            this.estimated = estimated;
+        }
+        public long getValue(){
+            return value;
+        }
+        public boolean isEstimated(){
+            return estimated;
+        }
+    }
+
+
+  //**************************************************************************
+  //** setCacheTTL
+  //**************************************************************************
+  /** Used to set how long exact counts are cached. Caching is disabled by
+   *  default. Note that the cache is only invalidated by the invalidate()
+   *  method so records inserted or deleted outside of the WebService will not
+   *  be reflected in the count until the cache entry expires.
+   *  @param ttl Time to live, in milliseconds. Set to 0 to disable caching.
+   */
+    public void setCacheTTL(long ttl){
+        this.ttl = Math.max(ttl, 0);
+        if (this.ttl==0) cache.clear();
+    }
+
+
+  //**************************************************************************
+  //** setEstimates
+  //**************************************************************************
+  /** Used to enable or disable approximate counts. When enabled, counts are
+   *  estimated using table statistics when there is no filter, or using the
+   *  row estimate from the query planner when the estimate is larger than a
+   *  given threshold. Otherwise, an exact count is returned. Estimates are
+   *  only supported for PostgreSQL. Clients can also request an estimate for
+   *  individual requests using "count=estimate".
+   *  @param threshold Minimum number of rows estimated by the query planner
+   *  before an estimate is returned instead of an exact count.
+   */
+    public void setEstimates(boolean estimate, long threshold){
+        this.estimate = estimate;
+        this.estimateThreshold = threshold;
+    }
+
+
+  //**************************************************************************
+  //** useEstimates
+  //**************************************************************************
+  /** Returns true if approximate counts are enabled.
+   */
+    public boolean useEstimates(){
+        return estimate;
+    }
+
+
+  //**************************************************************************
+  //** setParallel
+  //**************************************************************************
+  /** Used to enable or disable parallel counts. When enabled, the count is
+   *  executed at the same time as the main query using a separate database
+   *  connection. Note that this requires an additional connection per
+   *  request so the connection pool should be sized accordingly.
+   */
+    public synchronized void setParallel(boolean parallel){
+        this.parallel = parallel;
+        if (parallel && executor==null){
+            executor = Executors.newCachedThreadPool((Runnable r) -> {
+                Thread t = new Thread(r, "RecordCounter");
+                t.setDaemon(true);
+                return t;
+            });
+        }
+    }
+
+
+  //**************************************************************************
+  //** isParallel
+  //**************************************************************************
+  /** Returns true if parallel counts are enabled.
+   */
+    public boolean isParallel(){
+        return parallel;
+    }
+
+
+  //**************************************************************************
+  //** getCachedCount
+  //**************************************************************************
+  /** Returns a cached count for a given table and where clause. Returns null
+   *  if a count is not found in the cache or if the count has expired.
+   */
+    public Count getCachedCount(String tableName, String where){
+        return getCachedCount(tableName, where, null);
+    }
+
+
+  //**************************************************************************
+  //** getCachedCount
+  //**************************************************************************
+  /** Returns a cached count for a given table and a parameterized where
+   *  clause. Returns null if a count is not found in the cache or if the
+   *  count has expired.
+   *  @param params Values for the "?" placeholders in the where clause.
+   */
+    public Count getCachedCount(String tableName, String where, List<Object> params){
+        if (ttl==0) return null;
+        String key = getKey(tableName, where, params);
+        CacheEntry entry = cache.get(key);
+        if (entry==null) return null;
+        if (entry.expires<System.currentTimeMillis()){
+            cache.remove(key, entry);
+            return null;
+        }
+        return new Count(entry.count, false);
+    }
+
+
+  //**************************************************************************
+  //** count
+  //**************************************************************************
+  /** Returns the number of records in a table that match a given where
+   *  clause. Checks the cache before executing a query.
+   *  @param tableName Name of the table to count.
+   *  @param where Where clause without the "where" keyword. Optional.
+   *  @param estimate If true, will try to return an approximate count
+   *  instead of an exact count.
+   *  @param conn Database connection used to execute the count query.
+   */
+    public Count count(String tableName, String where, boolean estimate,
+        Connection conn) throws Exception {
+        return count(tableName, where, null, estimate, conn);
+    }
+
+
+  //**************************************************************************
+  //** count
+  //**************************************************************************
+  /** Returns the number of records in a table that match a given
+   *  parameterized where clause. Checks the cache before executing a query.
+   *  @param tableName Name of the table to count.
+   *  @param where Where clause without the "where" keyword. Optional.
+   *  @param params Values for the "?" placeholders in the where clause.
+   *  Optional.
+   *  @param estimate If true, will try to return an approximate count
+   *  instead of an exact count.
+   *  @param conn Database connection used to execute the count query.
+   */
+    public Count count(String tableName, String where, List<Object> params,
+        boolean estimate, Connection conn) throws Exception {
+
+        Count count = getCachedCount(tableName, where, params);
+        if (count!=null) return count;
+
+
+      //Get estimate as needed
+        Database database = conn.getDatabase();
+        if (estimate && database!=null && database.getDriver().equals("PostgreSQL")){
+            count = getEstimate(tableName, where, params, conn);
+            if (count!=null) return count;
+        }
+
+
+      //Get exact count. Note that the table version is used to ensure that
+      //counts are not cached if the table was updated during the count.
+        long version = getVersion(tableName).get();
+        long n = 0;
+        Object val = getValue("select count(id) from " +
+        tableName + (where==null ? "" : " where " + where), params, conn);
+        if (val instanceof Number) n = ((Number) val).longValue();
+
+        if (ttl>0 && getVersion(tableName).get()==version){
+            if (cache.size()>=maxEntries) purge();
+            cache.put(getKey(tableName, where, params),
+            new CacheEntry(n, System.currentTimeMillis()+ttl));
+        }
+
+        return new Count(n, false);
+    }
+
+
+  //**************************************************************************
+  //** countAsync
+  //**************************************************************************
+  /** Used to count records in a separate thread using a new connection from
+   *  the given database. Returns a completed future if the count is found in
+   *  the cache.
+   */
+    public CompletableFuture<Count> countAsync(String tableName, String where,
+        boolean estimate, Database database){
+        return countAsync(tableName, where, null, estimate, database);
+    }
+
+
+  //**************************************************************************
+  //** countAsync
+  //**************************************************************************
+  /** Used to count records that match a parameterized where clause in a
+   *  separate thread. See countAsync() above for more info.
+   *  @param params Values for the "?" placeholders in the where clause.
+   */
+    public CompletableFuture<Count> countAsync(String tableName, String where,
+        List<Object> params, boolean estimate, Database database){
+
+        Count count = getCachedCount(tableName, where, params);
+        if (count!=null) return CompletableFuture.completedFuture(count);
+
+        ExecutorService executor;
+        synchronized(this){
+            executor = this.executor;
+        }
+        if (executor==null) executor = ForkJoinPool.commonPool();
+
+        return CompletableFuture.supplyAsync(() -> {
+            try (Connection conn = database.getConnection()){
+                return count(tableName, where, params, estimate, conn);
+            }
+            catch(Exception e){
+                throw new CompletionException(e);
+            }
+        }, executor);
+    }
+
+
+  //**************************************************************************
+  //** invalidate
+  //**************************************************************************
+  /** Used to remove cached counts for a given table. This method should be
+   *  called whenever records are inserted or deleted from the table.
+   */
+    public void invalidate(String tableName){
+        if (tableName==null) return;
+        getVersion(tableName).incrementAndGet();
+        if (cache.isEmpty()) return;
+        String prefix = tableName.toLowerCase() + "\n";
+        cache.keySet().removeIf(key -> key.startsWith(prefix));
+    }
+
+
+  //**************************************************************************
+  //** getEstimate
+  //**************************************************************************
+  /** Returns an approximate count using PostgreSQL statistics. If there is
+   *  no where clause, returns the number of rows in the table using the
+   *  reltuples in the pg_class table. Otherwise, returns the number of rows
+   *  estimated by the query planner if the estimate is above the threshold.
+   *  Returns null if an estimate is not available.
+   */
+    private Count getEstimate(String tableName, String where, List<Object> params,
+        Connection conn){
+        try{
+            if (where==null){
+                javaxt.sql.Record r = conn.getRecord(
+                "select reltuples::bigint from pg_class where oid=to_regclass('" +
+                tableName.replace("'", "''") + "')");
+                if (r!=null){
+                    Long n = r.get(0).toLong();
+                    if (n!=null && n>=0) return new Count(n, true);
+                }
+            }
+            else{
+                Object plan = getValue(
+                "explain select id from " + tableName + " where " + where, params, conn);
+                if (plan!=null){
+                    Matcher m = rowEstimate.matcher(plan.toString());
+                    if (m.find()){
+                        long n = Long.parseLong(m.group(1));
+                        if (n>=estimateThreshold) return new Count(n, true);
+                    }
+                }
+            }
+        }
+        catch(Exception e){
+            //Fall back to exact count
+        }
+        return null;
+    }
+
+
+  //**************************************************************************
+  //** getValue
+  //**************************************************************************
+  /** Returns the value in the first column of the first row returned by a
+   *  query. Parameters are set using a PreparedStatement.
+   */
+    private Object getValue(String sql, List<Object> params, Connection conn)
+        throws Exception {
+
+        if (params==null || params.isEmpty()){
+            javaxt.sql.Record r = conn.getRecord(sql);
+            return r==null ? null : r.get(0).toObject();
+        }
+
+        try (java.sql.PreparedStatement stmt = conn.getConnection().prepareStatement(sql)){
+            for (int i=0; i<params.size(); i++){
+                stmt.setObject(i+1, params.get(i));
+            }
+            try (java.sql.ResultSet rs = stmt.executeQuery()){
+                return rs.next() ? rs.getObject(1) : null;
+            }
+        }
+    }
+
+
+  //**************************************************************************
+  //** purge
+  //**************************************************************************
+  /** Used to remove expired entries from the cache. Clears the cache if it
+   *  is still full.
+   */
+    private void purge(){
+        long now = System.currentTimeMillis();
+        cache.values().removeIf(entry -> entry.expires<now);
+        if (cache.size()>=maxEntries) cache.clear();
+    }
+
+
+  //**************************************************************************
+  //** getVersion
+  //**************************************************************************
+    private AtomicLong getVersion(String tableName){
+        return versions.computeIfAbsent(tableName.toLowerCase(), k -> new AtomicLong());
+    }
+
+
+  //**************************************************************************
+  //** getKey
+  //**************************************************************************
+  /** Returns a cache key for a given table, where clause, and parameters.
+   *  Whitespaces in the where clause are normalized. Parameter values are
+   *  prefixed with their length so that values with delimiters are not
+   *  confused with one another.
+   */
+    private String getKey(String tableName, String where, List<Object> params){
+        StringBuilder key = new StringBuilder(tableName.toLowerCase());
+        key.append("\n");
+        if (where!=null) key.append(where.trim().replaceAll("\\s+", " "));
+        if (params!=null){
+            for (Object param : params){
+                String str = String.valueOf(param);
+                key.append("\n");
+                key.append(str.length());
+                key.append(":");
+                key.append(str);
+            }
+        }
+        return key.toString();
+    }
+}
@@ -0,0 +1,226 @@
+package javaxt.express;
+
+import java.util.*;
+import javaxt.json.JSONObject;
+
+//******************************************************************************
+//**  ResponseCache
+//******************************************************************************
+/**
+ *   Used to cache serialized responses to list requests in memory. Entries
+ *   are evicted using a least recently used (LRU) policy when the total size
+ *   of the cached responses exceeds a given budget. Entries are associated
+ *   with a table and are removed whenever the table is updated via the
+ *   invalidate() method. Subclasses can override the public methods to store
+ *   responses elsewhere (e.g. a distributed cache).
+ *
+ ******************************************************************************/
+
+public class ResponseCache {
+
+    private final long maxBytes;
+    private final long maxEntrySize;
+    private long size = 0;
+    private long hits = 0;
+    private long misses = 0;
+    private long evictions = 0;
+    private HashMap<String, Long> versions = new HashMap<>();
+    private HashMap<String, HashSet<String>> tables = new HashMap<>();
+    private LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+
+
+  //**************************************************************************
+  //** Entry Class
+  //**************************************************************************
+  /** Used to encapsulate a cached response.
+   */
+    public static class Entry {
+        private String tableName;
+        private byte[] body;
+        private String contentType;
+        private HashMap<String, String> headers;
+
+        public Entry(String tableName, byte[] body, String contentType, HashMap<String, String> headers){
+            this.tableName = tableName;
+            this.body = body;
+            this.contentType = contentType;
+            this.headers = headers==null ? new HashMap<>() : headers;
+        }
+        public String getTableName(){
+            return tableName;
+        }
+        public byte[] getBody(){
+            return body;
+        }
+        public String getContentType(){
+            return contentType;
+        }
+        public HashMap<String, String> getHeaders(){
+            return headers;
+        }
+        public ServiceResponse toServiceResponse(){
+            ServiceResponse response = new ServiceResponse(body);
+            response.setContentType(contentType);
+            for (String key : headers.keySet()){
+                response.setHeader(key, headers.get(key));
+            }
+            return response;
+        }
+    }
+
+
+  //**************************************************************************
+  //** Constructor
+  //**************************************************************************
+  /** Creates a new cache with a 64 MB budget.
+   */
+    public ResponseCache(){
+        this(64L*1024L*1024L);
+    }
+
+
+  //**************************************************************************
+  //** Constructor
+  //**************************************************************************
+  /** @param maxBytes Maximum size of all the cached responses, in bytes.
+   *  Responses larger than 1/4 of the budget are not cached.
+   */
+    public ResponseCache(long maxBytes){
+        this.maxBytes = maxBytes;
+        this.maxEntrySize = maxBytes/4;
+    }
+
+
+  //**************************************************************************
+  //** get
+  //**************************************************************************
+  /** Returns a cached response for a given key. Returns null if the response
+   *  is not found in the cache.
+   */
+    public synchronized Entry get(String key){
+        Entry entry = entries.get(key);
+        if (entry==null) misses++;
+        else hits++;
+        return entry;
+    }
+
+
+  //**************************************************************************
+  //** put
+  //**************************************************************************
+  /** Used to add a response to the cache.
+   *  @param key Unique key for the response.
+   *  @param version Version of the table when the response was generated.
+   *  The response is ignored if the table has since been updated.
+   */
+    public synchronized void put(String key, long version, Entry entry){
+        long size = getSize(key, entry);
+        if (size>maxEntrySize) return;
+
+        Long currVersion = versions.get(entry.getTableName());
+        if (currVersion!=null && version<currVersion) return;
+
+        remove(key);
+        entries.put(key, entry);
+        HashSet<String> keys = tables.get(entry.getTableName());
+        if (keys==null){
+            keys = new HashSet<>();
+            tables.put(entry.getTableName(), keys);
+        }
+        keys.add(key);
+        this.size += size;
+
+
+      //Evict least recently used entries
+        Iterator<String> it = entries.keySet().iterator();
+        while (this.size>maxBytes && it.hasNext()){
+            String k = it.next();
+            if (k.equals(key)) continue;
+            Entry e = entries.get(k);
+            it.remove();
+            removeKey(k, e);
+            evictions++;
+        }
+    }
+
+
+  //**************************************************************************
+  //** invalidate
+  //**************************************************************************
+  /** Used to remove all the cached responses associated with a table.
+   *  @param version The new version of the table. Responses generated with
+   *  an older version of the table will not be added to the cache.
+   */
+    public synchronized void invalidate(String tableName, long version){
+        Long currVersion = versions.get(tableName);
+        if (currVersion==null || currVersion<version) versions.put(tableName, version);
+        HashSet<String> keys = tables.remove(tableName);
+        if (keys==null) return;
+        for (String key : keys){
+            Entry entry = entries.remove(key);
+            if (entry!=null) size -= getSize(key, entry);
+        }
+    }
+
+
+  //**************************************************************************
+  //** clear
+  //**************************************************************************
+  /** Used to remove all the responses from the cache.
+   */
+    public synchronized void clear(){
+        entries.clear();
+        tables.clear();
+        size = 0;
+    }
+
+
+  //**************************************************************************
+  //** getStats
+  //**************************************************************************
+  /** Returns cache statistics including number of hits, misses, evictions,
+   *  entries, and total size in bytes.
+   */
+    public synchronized JSONObject getStats(){
+        JSONObject json = new JSONObject();
+        json.set("hits", hits);
+        json.set("misses", misses);
+        json.set("evictions", evictions);
+        json.set("entries", entries.size());
+        json.set("size", size);
+        json.set("maxSize", maxBytes);
+        return json;
+    }
+
+
+  //**************************************************************************
+  //** remove
+  //**************************************************************************
+    private void remove(String key){
+        Entry entry = entries.remove(key);
+        if (entry!=null) removeKey(key, entry);
+    }
+
+
+  //**************************************************************************
+  //** removeKey
+  //**************************************************************************
+    private void removeKey(String key, Entry entry){
+        size -= getSize(key, entry);
+        HashSet<String> keys = tables.get(entry.getTableName());
+        if (keys!=null){
+            keys.remove(key);
+            if (keys.isEmpty()) tables.remove(entry.getTableName());
+        }
+    }
+
+
+  //**************************************************************************
+  //** getSize
+  //**************************************************************************
+  /** Returns the approximate size of an entry in memory, in bytes.
+   */
+    private static long getSize(String key, Entry entry){
+        return entry.getBody().length + key.length()*2L + 64;
+    }
+}
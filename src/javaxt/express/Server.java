@@ -188,6 +188,10 @@ public class Server {
 
         private WebService ws;
         private Database database;
+        private java.util.concurrent.ExecutorService executor;
+        private java.util.concurrent.Semaphore permits;
+        private long permitTimeout = 10000; //milliseconds
+        private javaxt.express.services.MetricsService metrics;
 
         public WebServices(Config config, HashMap<String, String> args) throws Exception  {
 
@@ -258,6 +262,17 @@ public class Server {
             database.initConnectionPool();
 
 
+          //Register connection pool metrics
+            ConnectionPool pool = database.getConnectionPool();
+            javaxt.express.Metrics.gauge("javaxt_db_connections_active",
+            "Number of database connections in use", () -> pool.getActiveConnections());
+            javaxt.express.Metrics.gauge("javaxt_db_connections_idle",
+            "Number of idle database connections", () -> pool.getInactiveConnections());
+            if (config.get("webserver").get("metrics").toBoolean()==Boolean.TRUE){
+                metrics = new javaxt.express.services.MetricsService();
+            }
+
+
           //Compile models into classes
             Class[] classes = new javaxt.orm.Compiler(models).getClasses();
 
@@ -272,6 +287,24 @@ public class Server {
                 ws.addModel(c);
             }
 
+
+          //Create virtual thread executor as needed. The number of concurrent
+          //database requests is capped by the size of the connection pool.
+          //Requests wait up to "permitTimeout" milliseconds for a free slot.
+          //Note that the javaxt HttpServlet API is synchronous so the server
+          //thread waits for the virtual thread to complete. Without an async
+          //servlet, this mode does not free up server threads or reduce the
+          //number of threads used by the server. It only limits the number of
+          //requests that compete for database connections.
+            if (config.get("webserver").get("executor").equals("virtual")){
+                executor = getVirtualThreadExecutor();
+                if (executor!=null){
+                    permits = new java.util.concurrent.Semaphore(
+                        Math.max(database.getConnectionPoolSize(), 1), true);
+                    Long timeout = config.get("webserver").get("permitTimeout").toLong();
+                    if (timeout!=null) permitTimeout = Math.max(timeout, 0);
+                }
+            }
         }
 
 
@@ -284,10 +317,105 @@ public class Server {
             response.addHeader("Access-Control-Allow-Headers","*");
             response.addHeader("Access-Control-Allow-Methods", "*");
 
-          //Generate response
+          //Generate response. Requests that don't use the database (e.g.
+          //metrics) are processed directly by the server thread.
             ServiceRequest req = new ServiceRequest(request);
-            ServiceResponse rsp = ws.getServiceResponse(req, database);
-            rsp.send(response);
+            if (executor==null || isMetricsRequest(req)){
+                ServiceResponse rsp = getServiceResponse(req);
+                rsp.send(response, req);
+            }
+            else{
+
+              //Wait for a permit. Reject the request if the max number of
+              //concurrent requests is still exceeded after the timeout. Note
+              //that the permit is acquired before the virtual thread is
+              //created so that virtual threads never wait for a permit.
+                boolean acquired;
+                try{
+                    acquired = permits.tryAcquire(permitTimeout,
+                    java.util.concurrent.TimeUnit.MILLISECONDS);
+                }
+                catch(InterruptedException e){
+                    Thread.currentThread().interrupt();
+                    acquired = false;
+                }
+                if (!acquired){
+                    new ServiceResponse(503, "Service Unavailable").send(response);
+                    return;
+                }
+
+
+              //Process the request using a virtual thread. Note that the
+              //javaxt HttpServlet API is synchronous so the server thread
+              //waits for the virtual thread to complete.
+                java.util.concurrent.Future<?> future;
+                try{
+                    future = executor.submit(() -> {
+                        try{
+                            ServiceResponse rsp = getServiceResponse(req);
+                            rsp.send(response, req);
+                            return null;
+                        }
+                        finally{
+                            permits.release();
+                        }
+                    });
+                }
+                catch(java.util.concurrent.RejectedExecutionException e){
+                    permits.release();
+                    new ServiceResponse(503, "Service Unavailable").send(response);
+                    return;
+                }
+
+                try{
+                    future.get();
+                }
+                catch(InterruptedException e){
+                    future.cancel(true);
+                    Thread.currentThread().interrupt();
+                }
+                catch(java.util.concurrent.ExecutionException e){
+                    Throwable t = e.getCause();
+                    if (t instanceof IOException) throw (IOException) t;
+                    if (t instanceof ServletException) throw (ServletException) t;
+                    throw new ServletException(t.getMessage());
+                }
+            }
+        }
+
+
+      /** Returns true if the metrics service is enabled and requested.
+       */
+        private boolean isMetricsRequest(ServiceRequest req){
+            return metrics!=null && req.getMethod().equalsIgnoreCase("getMetrics");
+        }
+
+
+      /** Returns a response from the metrics service, if enabled and
+       *  requested. Otherwise, returns a response from the web services.
+       */
+        private ServiceResponse getServiceResponse(ServiceRequest req) throws ServletException {
+            if (isMetricsRequest(req)){
+                return metrics.getServiceResponse(req, database);
+            }
+            return ws.getServiceResponse(req, database);
+        }
+
+
+      /** Returns an executor that starts a new virtual thread for each task.
+       *  Returns null if virtual threads are not supported (requires Java 21).
+       */
+        private static java.util.concurrent.ExecutorService getVirtualThreadExecutor(){
+            try{
+                return (java.util.concurrent.ExecutorService)
+                java.util.concurrent.Executors.class
+                .getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+            }
+            catch(Exception e){
+                System.out.println("Virtual threads are not supported by this " +
+                "version of Java. Falling back to platform threads.");
+                return null;
+            }
         }
 
         private class Demo extends WebService {}
@@ -346,10 +474,24 @@ public class Server {
         else webConfig.set("port", port);
 
 
-      //Set number of threads for the web server
-        Integer numThreads = getValue(args, "-t", "-threads").toInteger();
+      //Set number of threads for the web server. Alternatively, the user can
+      //specify "virtual" to process web service requests using virtual
+      //threads (see WebServices class). Note that the server threads still
+      //wait for the virtual threads so the "virtual" option only limits the
+      //number of concurrent database requests.
+        javaxt.utils.Value threads = getValue(args, "-t", "-threads");
+        if (threads.equals("virtual")){
+            webConfig.set("executor", "virtual");
+            threads = new javaxt.utils.Value(null);
+        }
+        Integer numThreads = threads.toInteger();
         if (numThreads==null && !webConfig.has("numThreads")) webConfig.set("numThreads", 250);
-        else webConfig.set("numThreads", numThreads);
+        else if (numThreads!=null) webConfig.set("numThreads", numThreads);
+
+
+      //Enable the metrics endpoint (e.g. GET /metrics) as needed
+        javaxt.utils.Value metrics = getValue(args, "-metrics");
+        if (metrics.toBoolean()!=null) webConfig.set("metrics", metrics.toBoolean());
 
 
       //Get database config
@@ -1,6 +1,7 @@
 package javaxt.express;
 
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 import java.io.StringReader;
 
 //JavaXT includes
@@ -40,16 +41,35 @@ public class ServiceRequest {
     private Field[] fields;
     private Filter filter;
     private Sort sort;
+    private Cursor cursor;
     private Long limit;
     private Long offset;
     private Long id;
     private boolean readOnly = false;
     private boolean parseJson = false;
+    private boolean usePrimary = false;
+    private final long startTime = System.nanoTime();
+    private LinkedHashMap<String, Long> timings; //phase -> nanoseconds
+    private LinkedHashMap<String, Object> timingInfo;
+    private volatile boolean canceled = false;
+    private final ArrayList<Runnable> cancelHandlers = new ArrayList<>();
+    private final Set<Object> serviceMethods = ConcurrentHashMap.newKeySet();
     private static String[] approvedFunctions = new String[]{
         "min", "max", "count", "avg", "sum"
     };
 
 
+  //Caches used to store parsed fields, filters, and sorts. Clients tend to
+  //send the same requests over and over again so there is no need to parse
+  //the same strings for every request. SQL fragments compiled for a given
+  //model are stored in separate caches for each model (see getPlan).
+    private static final PlanCache<FieldSpec[]> fieldCache = new PlanCache<>();
+    private static final PlanCache<List<String[]>> filterCache = new PlanCache<>();
+    private static final PlanCache<List<String[]>> sortCache = new PlanCache<>();
+    private static final ConcurrentHashMap<Class, PlanCache<Plan>> plans = new ConcurrentHashMap<>();
+    private static volatile int planCacheSize = 1000;
+
+
     private Map<String, String> keywords = Map.ofEntries(
         Map.entry("fields", "fields"),
         Map.entry("orderby", "orderby"),
@@ -59,6 +79,9 @@ public class ServiceRequest {
       //Used by the list method in the WebService class
         Map.entry("format", "format"),
         Map.entry("count", "count"),
+        Map.entry("stream", "stream"),
+        Map.entry("cursor", "cursor"),
+        Map.entry("timeout", "timeout"),
 
       //Legacy - may be removed in the future
         Map.entry("filter", "filter"),
@@ -127,6 +150,10 @@ public class ServiceRequest {
 
       //Get offset and limit
         updateOffsetLimit();
+
+
+      //Record time spent parsing the request
+        addTiming("init", System.nanoTime()-startTime);
     }
 
 
@@ -263,6 +290,30 @@ public class ServiceRequest {
     }
 
 
+  //**************************************************************************
+  //** setUsePrimary
+  //**************************************************************************
+  /** Used to route read operations (e.g. get and list) to the primary
+   *  database instead of a read replica. Useful when a client needs to read
+   *  data it has just written (read-your-writes). See
+   *  WebService.setReadDatabases() for more information.
+   */
+    public void setUsePrimary(boolean usePrimary){
+        this.usePrimary = usePrimary;
+    }
+
+
+  //**************************************************************************
+  //** usePrimary
+  //**************************************************************************
+  /** Returns true if read operations should be routed to the primary
+   *  database. See setUsePrimary(). Default is false.
+   */
+    public boolean usePrimary(){
+        return usePrimary;
+    }
+
+
   //**************************************************************************
   //** getPath
   //**************************************************************************
@@ -623,15 +674,145 @@ public class ServiceRequest {
   //**************************************************************************
   //** getCount
   //**************************************************************************
-  /** Returns the value of the "count" parameter in the request.
+  /** Returns the value of the "count" parameter in the request. Returns true
+   *  if the "count" parameter is set to "estimate".
    */
     protected boolean getCount(){
         Boolean count = getParameter(getKeyword("count")).toBoolean();
-        if (count==null) return false;
+        if (count==null) return getCountEstimate();
         else return count;
     }
 
 
+  //**************************************************************************
+  //** getCountEstimate
+  //**************************************************************************
+  /** Returns true if the "count" parameter in the request is set to
+   *  "estimate" (e.g. "count=estimate"), indicating that the client will
+   *  accept an approximate count.
+   */
+    protected boolean getCountEstimate(){
+        String count = getParameter(getKeyword("count")).toString();
+        if (count==null) return false;
+        count = count.trim().toLowerCase();
+        return count.equals("estimate") || count.equals("approximate");
+    }
+
+
+  //**************************************************************************
+  //** getStream
+  //**************************************************************************
+  /** Returns the value of the "stream" parameter in the request. Returns
+   *  null if the parameter is not defined.
+   */
+    protected Boolean getStream(){
+        return getParameter(getKeyword("stream")).toBoolean();
+    }
+
+
+  //**************************************************************************
+  //** getTimeout
+  //**************************************************************************
+  /** Returns the value of the "timeout" parameter in the request, in
+   *  seconds. Used to limit how long queries can run. Returns null if the
+   *  parameter is not defined or is invalid.
+   */
+    protected Integer getTimeout(){
+        Integer timeout = getParameter(getKeyword("timeout")).toInteger();
+        if (timeout==null || timeout<1) return null;
+        return timeout;
+    }
+
+
+  //**************************************************************************
+  //** cancel
+  //**************************************************************************
+  /** Used to cancel the request (e.g. when an asynchronous response times
+   *  out). Calls all the cancel handlers registered with the request (see
+   *  addCancelHandler). Handlers are typically used to cancel running
+   *  queries via Statement.cancel().
+   */
+    public void cancel(){
+        Runnable[] handlers;
+        synchronized(cancelHandlers){
+            if (canceled) return;
+            canceled = true;
+            handlers = cancelHandlers.toArray(new Runnable[0]);
+            cancelHandlers.clear();
+        }
+        for (Runnable handler : handlers){
+            try{ handler.run(); }
+            catch(Exception e){}
+        }
+    }
+
+
+  //**************************************************************************
+  //** isCanceled
+  //**************************************************************************
+  /** Returns true if the request was cancelled (see cancel).
+   */
+    public boolean isCanceled(){
+        return canceled;
+    }
+
+
+  //**************************************************************************
+  //** addCancelHandler
+  //**************************************************************************
+  /** Used to register a callback that is called if the request is cancelled.
+   *  The callback is called immediately if the request has already been
+   *  cancelled. Handlers should be removed when they are no longer needed
+   *  (see removeCancelHandler).
+   */
+    public void addCancelHandler(Runnable handler){
+        synchronized(cancelHandlers){
+            if (!canceled){
+                cancelHandlers.add(handler);
+                return;
+            }
+        }
+        handler.run();
+    }
+
+
+  //**************************************************************************
+  //** removeCancelHandler
+  //**************************************************************************
+  /** Used to remove a callback registered with addCancelHandler.
+   */
+    public void removeCancelHandler(Runnable handler){
+        synchronized(cancelHandlers){
+            cancelHandlers.remove(handler);
+        }
+    }
+
+
+  //**************************************************************************
+  //** addServiceMethod
+  //**************************************************************************
+  /** Used by the WebService to keep track of the service methods invoked for
+   *  this request. Returns false if the method has already been invoked (e.g.
+   *  a service method calling super.getServiceResponse() for its own
+   *  request). The methods are stored with the request rather than the
+   *  thread so that calls made from other threads (e.g. an asynchronous
+   *  task created by the service method) are tracked as well.
+   */
+    protected boolean addServiceMethod(Object method){
+        return serviceMethods.add(method);
+    }
+
+
+  //**************************************************************************
+  //** hasServiceMethod
+  //**************************************************************************
+  /** Returns true if a service method has been invoked for this request.
+   */
+    protected boolean hasServiceMethod(){
+        return !serviceMethods.isEmpty();
+    }
+
+
   //**************************************************************************
   //** getClientIP
   //**************************************************************************
@@ -675,10 +856,12 @@ public class ServiceRequest {
    */
     public byte[] getPayload(){
         if (payload==null){
+            long t = System.nanoTime();
             try{
                 payload = request.getBody();
             }
             catch(Exception e){}
+            addTiming("body", System.nanoTime()-t);
         }
         return payload;
     }
@@ -694,10 +877,12 @@ public class ServiceRequest {
 
             byte[] b = getPayload();
             if (b!=null && b.length>0){
+                long t = System.nanoTime();
                 try{
                     json = new JSONObject(new String(b, "UTF-8"));
                 }
                 catch(Exception e){}
+                addTiming("json", System.nanoTime()-t);
             }
 
         }
@@ -756,7 +941,158 @@ public class ServiceRequest {
    *  ServletException.
    */
     public void authenticate() throws ServletException {
-        request.authenticate();
+        long t = System.nanoTime();
+        try{
+            request.authenticate();
+        }
+        finally{
+            addTiming("auth", System.nanoTime()-t);
+        }
+    }
+
+
+  //**************************************************************************
+  //** addTiming
+  //**************************************************************************
+  /** Used to record the time spent in a given phase of the request (e.g.
+   *  "sql", "serialize"). Times are added if the phase is recorded more than
+   *  once. The timings are returned in the "Server-Timing" response header
+   *  and in the slow request log (see ServiceResponse).
+   *  @param phase Name of the phase. Should not contain spaces or commas.
+   *  @param nanos Elapsed time in nanoseconds
+   */
+    public synchronized void addTiming(String phase, long nanos){
+        if (timings==null) timings = new LinkedHashMap<>();
+        Long t = timings.get(phase);
+        timings.put(phase, t==null ? nanos : t+nanos);
+    }
+
+
+  //**************************************************************************
+  //** getTimings
+  //**************************************************************************
+  /** Returns the time spent in each phase of the request, in nanoseconds.
+   */
+    public synchronized LinkedHashMap<String, Long> getTimings(){
+        return timings==null ? new LinkedHashMap<>() : new LinkedHashMap<>(timings);
+    }
+
+
+  //**************************************************************************
+  //** setTimingInfo
+  //**************************************************************************
+  /** Used to add information that can be used to diagnose slow requests
+   *  (e.g. "sql" statement, number of "rows"). The information is written to
+   *  the slow request log.
+   */
+    public synchronized void setTimingInfo(String key, Object value){
+        if (timingInfo==null) timingInfo = new LinkedHashMap<>();
+        timingInfo.put(key, value);
+    }
+
+
+  //**************************************************************************
+  //** getTimingInfo
+  //**************************************************************************
+  /** Returns information added using setTimingInfo().
+   */
+    public synchronized LinkedHashMap<String, Object> getTimingInfo(){
+        return timingInfo==null ? new LinkedHashMap<>() : new LinkedHashMap<>(timingInfo);
+    }
+
+
+  //**************************************************************************
+  //** getElapsedTime
+  //**************************************************************************
+  /** Returns the number of nanoseconds since this request was created.
+   */
+    public long getElapsedTime(){
+        return System.nanoTime()-startTime;
+    }
+
+
+  //**************************************************************************
+  //** getServerTiming
+  //**************************************************************************
+  /** Returns the phase timings formatted for a "Server-Timing" response
+   *  header (e.g. "init;dur=0.1, sql;dur=12.5, total;dur=14.2"). Durations
+   *  are in milliseconds.
+   */
+    public String getServerTiming(){
+        StringBuilder str = new StringBuilder();
+        LinkedHashMap<String, Long> timings = getTimings();
+        for (String phase : timings.keySet()){
+            str.append(phase);
+            str.append(";dur=");
+            str.append(toMillis(timings.get(phase)));
+            str.append(", ");
+        }
+        str.append("total;dur=");
+        str.append(toMillis(getElapsedTime()));
+        return str.toString();
+    }
+
+
+  //**************************************************************************
+  //** toMillis
+  //**************************************************************************
+  /** Converts nanoseconds to milliseconds, rounded to 2 decimal places.
+   */
+    protected static double toMillis(long nanos){
+        return Math.round(nanos/10000d)/100d;
+    }
+
+
+  //**************************************************************************
+  //** getCacheKey
+  //**************************************************************************
+  /** Returns a normalized representation of the request that can be used to
+   *  identify identical requests (e.g. for ETags or caching). The key is
+   *  generated using the method name, path, and parameters in the request.
+   *  Parameter names are case insensitive and are sorted alphabetically so
+   *  that "?limit=10&offset=0" and "?Offset=0&limit=10" yield the same key.
+   *  A hash of the payload is included if the request has a payload.
+   */
+    public String getCacheKey(){
+        StringBuilder str = new StringBuilder();
+        str.append(method.toLowerCase());
+        String path = getPath();
+        if (path!=null) str.append(path.toLowerCase());
+
+
+      //Add parameters
+        TreeMap<String, List<String>> params = new TreeMap<>();
+        for (String key : parameters.keySet()){
+            List<String> values = parameters.get(key);
+            if (values==null) continue;
+            key = key.toLowerCase();
+            List<String> arr = params.get(key);
+            if (arr==null){
+                arr = new ArrayList<>();
+                params.put(key, arr);
+            }
+            arr.addAll(values);
+        }
+        for (String key : params.keySet()){
+            for (String value : params.get(key)){
+                str.append("\n");
+                str.append(key);
+                str.append("=");
+                str.append(value);
+            }
+        }
+
+
+      //Add payload
+        byte[] b = getPayload();
+        if (b!=null && b.length>0){
+            str.append("\n#");
+            str.append(Arrays.hashCode(b));
+            str.append(":");
+            str.append(b.length);
+        }
+
+        return str.toString();
     }
 
 
@@ -836,6 +1172,23 @@ public class ServiceRequest {
    *  @param fields A comma delimited list of fields (e.g. "id,firstName,lastName")
    */
     public Field[] getFields(String fields){
+
+      //Check cache
+        FieldSpec[] specs = fieldCache.get(fields);
+        if (specs!=null){
+            Field[] arr = new Field[specs.length];
+            for (int i=0; i<specs.length; i++){
+                FieldSpec spec = specs[i];
+                Field field = new Field(spec.col);
+                field.setAlias(spec.alias);
+                field.isFunction(spec.isFunction);
+                field.setFunctionName(spec.functionName);
+                arr[i] = field;
+            }
+            return arr;
+        }
+
+
         ArrayList<Field> arr = new ArrayList<>();
 
         try{
@@ -903,6 +1256,14 @@ public class ServiceRequest {
             }
         }
 
+
+      //Update cache
+        specs = new FieldSpec[arr.size()];
+        for (int i=0; i<specs.length; i++){
+            specs[i] = new FieldSpec(arr.get(i));
+        }
+        fieldCache.put(fields, specs);
+
         return arr.toArray(new Field[arr.size()]);
     }
 
@@ -937,8 +1298,52 @@ public class ServiceRequest {
         if (filter!=null) return filter;
 
 
-      //Parse querystring
+      //Check whether the filter was previously parsed. If the filter is
+      //defined in a "filter" parameter, the parameter is used as the cache
+      //key. Otherwise, the key is generated using the names and values of
+      //the parameters in the query string, excluding reserved keywords (e.g.
+      //"limit"). Filters generated from JSON payloads are not cached because
+      //the operators depend on the payload (see parseJson).
+        boolean isCacheable = !(parseJson && json!=null);
+        String cacheKey = null;
         LinkedHashMap<String, javaxt.utils.Value> params = new LinkedHashMap<>();
+        if (hasParameter(getKeyword("filter"))){
+            if (isCacheable){
+                cacheKey = "filter:" + getParameter(getKeyword("filter")).toString();
+            }
+        }
+        else{
+            HashSet<String> reservedKeywords = getKeywords();
+            StringBuilder key = isCacheable ? new StringBuilder("params:") : null;
+            for (String name : getParameterNames()){
+                if (reservedKeywords.contains(name.trim().toLowerCase())) continue;
+                javaxt.utils.Value val = getParameter(name);
+                params.put(name, val);
+                if (key!=null){
+                    appendKey(key, name);
+                    if (val.isArray()){
+                        Object[] arr = (Object[]) val.toObject();
+                        key.append("[");
+                        key.append(arr.length);
+                        for (Object o : arr) appendKey(key, o==null ? null : o.toString());
+                    }
+                    else{
+                        appendKey(key, val.toString());
+                    }
+                }
+            }
+            if (key!=null) cacheKey = key.toString();
+        }
+        if (cacheKey!=null){
+            List<String[]> items = filterCache.get(cacheKey);
+            if (items!=null){
+                filter = createFilter(items);
+                return filter;
+            }
+        }
+
+
+      //Parse querystring
         if (hasParameter(getKeyword("filter"))){
 
             String str = getParameter(getKeyword("filter")).toString();
@@ -956,21 +1361,18 @@ public class ServiceRequest {
                 }
             }
         }
-        else{
-            for (String key : getParameterNames()){
-                params.put(key, getParameter(key));
-            }
-        }
 
 
-      //Create filter
-        filter = new Filter();
-        HashSet<String> reservedKeywords = getKeywords();
+      //Parse filter items. Each item is stored as an array with the key
+      //found in the request, column name, operator, and value. Note that
+      //reserved keywords are removed in the createFilter() method so the
+      //items can be cached regardless of the keywords used in the request.
+        ArrayList<String[]> items = new ArrayList<>();
         for (String key : params.keySet()){
             key = key.trim();
             if (key.isEmpty()) continue;
             if (key.equals("_")) continue;
-            if (reservedKeywords.contains(key.toLowerCase())) continue;
+            String paramName = key.toLowerCase();
 
 
           //Parse val
@@ -1138,10 +1540,34 @@ public class ServiceRequest {
 
 
                 String col = StringUtils.camelCaseToUnderScore(key);
-                filter.add(col, op, val);
+                items.add(new String[]{paramName, col, op, val});
             }
         }
 
+
+      //Update cache
+        if (cacheKey!=null) filterCache.put(cacheKey, items);
+
+
+      //Create filter
+        filter = createFilter(items);
+        return filter;
+    }
+
+
+  //**************************************************************************
+  //** createFilter
+  //**************************************************************************
+  /** Used to create a Filter using items generated by the getFilter() method.
+   *  Items associated with reserved keywords (e.g. "limit") are ignored.
+   */
+    private Filter createFilter(List<String[]> items){
+        Filter filter = new Filter();
+        HashSet<String> reservedKeywords = getKeywords();
+        for (String[] item : items){
+            if (reservedKeywords.contains(item[0])) continue;
+            filter.add(item[1], item[2], item[3]);
+        }
         return filter;
     }
 
@@ -1173,6 +1599,19 @@ public class ServiceRequest {
         String orderBy = getParameter(getKeyword("orderby")).toString();
 
 
+      //Check cache
+        if (orderBy!=null){
+            List<String[]> entries = sortCache.get(orderBy);
+            if (entries!=null){
+                for (String[] entry : entries){
+                    fields.put(entry[0], entry[1]);
+                }
+                sort = new Sort(fields);
+                return sort;
+            }
+        }
+
+
         if (orderBy!=null){
             if (orderBy.startsWith("[") && orderBy.endsWith("]")){
                 //Example: &sort=[{"property":"dob","direction":"ASC"}]
@@ -1209,6 +1648,14 @@ public class ServiceRequest {
                     }
                 }
             }
+
+
+          //Update cache
+            ArrayList<String[]> entries = new ArrayList<>();
+            for (String key : fields.keySet()){
+                entries.add(new String[]{key, fields.get(key)});
+            }
+            sortCache.put(orderBy, entries);
         }
 
         sort = new Sort(fields);
@@ -1216,6 +1663,34 @@ public class ServiceRequest {
     }
 
 
+  //**************************************************************************
+  //** hasCursor
+  //**************************************************************************
+  /** Returns true if the request contains a "cursor" parameter, indicating
+   *  that the client wants to use keyset (aka seek) pagination instead of
+   *  offsets. An empty "cursor" parameter is used to request the first page.
+   */
+    public boolean hasCursor(){
+        return hasParameter(getKeyword("cursor"));
+    }
+
+
+  //**************************************************************************
+  //** getCursor
+  //**************************************************************************
+  /** Returns a Cursor used to generate keyset pagination statements for the
+   *  current request. Returns null if the request does not contain a
+   *  "cursor" parameter. Throws an IllegalArgumentException if the cursor
+   *  token is invalid or was generated using a different sort order.
+   */
+    public Cursor getCursor(){
+        if (cursor!=null) return cursor;
+        if (!hasCursor()) return null;
+        cursor = new Cursor(getSort(), getParameter(getKeyword("cursor")).toString());
+        return cursor;
+    }
+
+
   //**************************************************************************
   //** getKeywords
   //**************************************************************************
@@ -1264,74 +1739,630 @@ public class ServiceRequest {
 
 
   //**************************************************************************
-  //** Sort Class
+  //** setPlanCacheSize
   //**************************************************************************
-  /** Used to encapsulate an "order by" statement
+  /** Used to set the maximum number of parsed fields, filters, and sorts
+   *  that are cached across requests, and the maximum number of plans that
+   *  are cached for each model (see getPlan). Least recently used entries
+   *  are evicted when a cache reaches the maximum size. The default is 1000
+   *  entries per cache.
+   *  @param maxEntries Maximum number of entries. Set to 0 to disable.
    */
-    public class Sort {
-        LinkedHashMap<String, String> fields;
-        public Sort(LinkedHashMap<String, String> fields){
-            this.fields = fields;
-        }
-        public LinkedHashMap<String, String> getFields(){
-            return fields;
-        }
-        public java.util.Set<String> getKeySet(){
-            return fields.keySet();
-        }
-        public String get(String key){
-            return fields.get(key);
-        }
-        public boolean isEmpty(){
-            return fields.isEmpty();
+    public static void setPlanCacheSize(int maxEntries){
+        planCacheSize = maxEntries;
+        fieldCache.setMaxEntries(maxEntries);
+        filterCache.setMaxEntries(maxEntries);
+        sortCache.setMaxEntries(maxEntries);
+        for (PlanCache<Plan> cache : plans.values()){
+            cache.setMaxEntries(maxEntries);
         }
     }
 
 
   //**************************************************************************
-  //** Field Class
+  //** getPlan
   //**************************************************************************
-  /** Used to encapsulate an entry in a "select" statement
+  /** Returns a plan used to store SQL fragments compiled for a given model
+   *  and the fields and filter in this request. Plans are cached for each
+   *  model and shared across requests so that the fields and filter items
+   *  are only resolved against the model once. The plan key is generated
+   *  using the current fields and filter so changes made to the Fields or
+   *  Filter before the SQL is generated (e.g. Filter.set) are reflected in
+   *  the key. Returns null if the metadata was not generated using a class
+   *  (e.g. legacy getTableAndFields) or if caching is disabled.
    */
-    public class Field {
-        private String col;
-        private String table;
-        private String alias;
-        private boolean isFunction;
-        private String functionName;
+    private Plan getPlan(ModelMetadata metadata){
+        if (metadata==null) return null;
+        Class c = metadata.getModel();
+        int maxEntries = planCacheSize;
+        if (c==null || maxEntries<1) return null;
 
-        public Field(String field){
-            col = field;
-            isFunction = false;
-        }
 
-        public String getColumn(){
-            return col;
+      //Get plan cache for the model
+        PlanCache<Plan> cache = plans.get(c);
+        if (cache==null){
+            cache = new PlanCache<>();
+            cache.setMaxEntries(maxEntries);
+            PlanCache<Plan> prev = plans.putIfAbsent(c, cache);
+            if (prev!=null) cache = prev;
         }
 
-        public void setAlias(String alias){
-            this.alias = alias;
-        }
 
-        public String getAlias(){
-            return alias;
+      //Generate key using the fields and filter
+        StringBuilder key = new StringBuilder();
+        for (Field field : getFields()){
+            appendKey(key, field.getColumn());
+            appendKey(key, field.getAlias());
+            key.append(field.isFunction() ? "f" : "c");
         }
-
-        public boolean isFunction(){
-            return isFunction;
+        key.append("|");
+        Filter filter = getFilter();
+        for (String col : filter.items.keySet()){
+            for (Filter.Item item : filter.items.get(col)){
+                appendKey(key, item.getField());
+                appendKey(key, item.getOperation());
+                appendKey(key, item.getValue().toString());
+            }
         }
 
-        public void isFunction(boolean isFunction){
-            this.isFunction = isFunction;
-        }
 
-        public void setFunctionName(String functionName){
-            this.functionName = functionName;
+      //Get or create plan
+        String k = key.toString();
+        Plan plan = cache.get(k);
+        if (plan==null){
+            plan = new Plan();
+            cache.put(k, plan);
         }
+        return plan;
+    }
 
-        public String getFunctionName(){
-            return functionName;
-        }
+    private Plan getPlan(ArrayList<ModelMetadata> models){
+        if (models==null || models.size()!=1) return null;
+        return getPlan(models.get(0));
+    }
+
+
+  //**************************************************************************
+  //** appendKey
+  //**************************************************************************
+  /** Used to add a string to a cache key. The string is prefixed with its
+   *  length so that keys generated from different strings never collide.
+   */
+    private static void appendKey(StringBuilder key, String str){
+        if (str==null){
+            key.append("-1:");
+        }
+        else{
+            key.append(str.length());
+            key.append(":");
+            key.append(str);
+        }
+    }
+
+
+  //**************************************************************************
+  //** PlanCache Class
+  //**************************************************************************
+  /** Simple, thread-safe cache used to store parsed strings and plans. When
+   *  the cache reaches the maximum number of entries, the least recently
+   *  used entries (10% of the cache) are evicted.
+   */
+    private static class PlanCache<V> {
+        private ConcurrentHashMap<String, Entry<V>> map = new ConcurrentHashMap<>();
+        private volatile int maxEntries = 1000;
+
+        private static class Entry<V> {
+            private final V value;
+            private volatile long lastUsed = System.nanoTime();
+            private Entry(V value){
+                this.value = value;
+            }
+        }
+
+        public V get(String key){
+            if (key==null) return null;
+            Entry<V> entry = map.get(key);
+            if (entry==null) return null;
+
+          //Update the last used time at most once per millisecond so that
+          //threads reading the same entry don't keep writing to it
+            long now = System.nanoTime();
+            if (now-entry.lastUsed>1000000L) entry.lastUsed = now;
+            return entry.value;
+        }
+
+        public void put(String key, V value){
+            if (key==null || maxEntries<1) return;
+            if (map.size()>=maxEntries) evict();
+            map.put(key, new Entry<>(value));
+        }
+
+        public void setMaxEntries(int maxEntries){
+            this.maxEntries = maxEntries;
+            if (maxEntries<1) map.clear();
+            else if (map.size()>maxEntries) evict();
+        }
+
+      /** Used to remove the least recently used entries from the cache. */
+        private synchronized void evict(){
+            int maxEntries = this.maxEntries;
+            int n = map.size()-maxEntries+Math.max(maxEntries/10, 1);
+            if (n<1) return;
+
+            long[] times = new long[map.size()];
+            int i = 0;
+            for (Entry<V> entry : map.values()){
+                if (i==times.length) break;
+                times[i++] = entry.lastUsed;
+            }
+            if (i==0) return;
+            Arrays.sort(times, 0, i);
+            long cutoff = times[Math.min(n, i)-1];
+
+            Iterator<Entry<V>> it = map.values().iterator();
+            while (it.hasNext()){
+                if (it.next().lastUsed<=cutoff) it.remove();
+            }
+        }
+    }
+
+
+  //**************************************************************************
+  //** Plan Class
+  //**************************************************************************
+  /** Used to store SQL fragments compiled for a given model, fields, and
+   *  filter (see getPlan). Fragments are compiled the first time they are
+   *  requested. Values in the filter are part of the plan key so the values
+   *  bound to "?" placeholders in the where statement are stored with the
+   *  plan.
+   */
+    private static class Plan {
+        private volatile String select;
+        private volatile String[] spatialSelect; //function, select
+        private volatile Where where; //literal values
+        private volatile Where boundWhere; //"?" placeholders
+
+        private static class Where {
+            private final String sql;
+            private final Object[] params;
+            private Where(String sql, List<Object> params){
+                this.sql = sql;
+                this.params = params==null ? new Object[0] : params.toArray();
+            }
+        }
+    }
+
+
+  //**************************************************************************
+  //** FieldSpec Class
+  //**************************************************************************
+  /** Immutable copy of a Field stored in the cache.
+   */
+    private static class FieldSpec {
+        private final String col;
+        private final String alias;
+        private final boolean isFunction;
+        private final String functionName;
+
+        public FieldSpec(Field field){
+            col = field.getColumn();
+            alias = field.getAlias();
+            isFunction = field.isFunction();
+            functionName = field.getFunctionName();
+        }
+    }
+
+
+  //**************************************************************************
+  //** Sort Class
+  //**************************************************************************
+  /** Used to encapsulate an "order by" statement
+   */
+    public class Sort {
+        LinkedHashMap<String, String> fields;
+        public Sort(LinkedHashMap<String, String> fields){
+            this.fields = fields;
+        }
+        public LinkedHashMap<String, String> getFields(){
+            return fields;
+        }
+        public java.util.Set<String> getKeySet(){
+            return fields.keySet();
+        }
+        public String get(String key){
+            return fields.get(key);
+        }
+        public boolean isEmpty(){
+            return fields.isEmpty();
+        }
+    }
+
+
+  //**************************************************************************
+  //** Cursor Class
+  //**************************************************************************
+  /** Used to encapsulate a continuation token for keyset pagination. The
+   *  token is an opaque, url-safe string that encodes the sort keys and the
+   *  values of the sort keys of the last row returned to the client. The id
+   *  is always included as the last sort key to guarantee a stable order.
+   *  Instead of skipping rows with an offset, subsequent pages are selected
+   *  with a "where (col, id) > (?, ?)" predicate so the database can seek
+   *  directly to the next row using an index. Null values are sorted as if
+   *  they were larger than any other value (i.e. "nulls last" for ascending
+   *  sorts and "nulls first" for descending sorts). Timestamps are encoded
+   *  in UTC so tokens do not depend on the time zone of the server or the
+   *  database session.
+   */
+    public class Cursor {
+        private LinkedHashMap<String, String> keys;
+        private Object[] values;
+
+        private Cursor(Sort sort, String token){
+
+          //Get sort keys
+            keys = new LinkedHashMap<>();
+            boolean addID = true;
+            for (String key : sort.getKeySet()){
+                String dir = sort.get(key).trim().toUpperCase();
+                if (!dir.equals("ASC") && !dir.equals("DESC")){
+                    throw new IllegalArgumentException("Invalid sort direction: " + dir);
+                }
+                keys.put(key, dir);
+                if (key.equalsIgnoreCase("id")) addID = false;
+            }
+            if (addID) keys.put("id", "ASC");
+
+
+          //Parse token
+            if (token==null || token.isBlank()) return;
+            JSONObject json;
+            try{
+                byte[] b = Base64.getUrlDecoder().decode(token.trim());
+                json = new JSONObject(new String(b, "UTF-8"));
+            }
+            catch(Exception e){
+                throw new IllegalArgumentException("Invalid cursor");
+            }
+
+            JSONArray k = json.get("k").toJSONArray();
+            JSONArray v = json.get("v").toJSONArray();
+            if (k==null || v==null || k.length()!=keys.size() ||
+                v.length()!=keys.size()){
+                throw new IllegalArgumentException("Invalid cursor");
+            }
+
+            int i = 0;
+            values = new Object[keys.size()];
+            for (String key : keys.keySet()){
+                String str = key + " " + keys.get(key);
+                if (!str.equals(k.get(i).toString())){
+                    throw new IllegalArgumentException("Cursor does not match sort order");
+                }
+                values[i] = decode(v.get(i));
+                if (values[i]==null && isID(key)){
+                    throw new IllegalArgumentException("Invalid cursor");
+                }
+                i++;
+            }
+        }
+
+
+      /** Returns the sort keys and sort direction (ASC or DESC) used to order
+       *  the records. The id is always the last key.
+       */
+        public LinkedHashMap<String, String> getKeys(){
+            return keys;
+        }
+
+
+      /** Returns a list of columns that should be appended to the select
+       *  statement so that the sort key values of the last row can be encoded
+       *  in the next token. The string starts with a comma for convenience.
+       *  The columns are appended to the end of the select statement and
+       *  should not be returned to the client.
+       */
+        public String getSelectStatement(){
+            StringBuilder str = new StringBuilder();
+            int i = 0;
+            for (String key : keys.keySet()){
+                str.append(", ");
+                str.append(key);
+                str.append(" as cursor_key_");
+                str.append(i);
+                i++;
+            }
+            return str.toString();
+        }
+
+
+      /** Returns a where clause used to select records after the last row
+       *  returned to the client using literal values. Returns null if this is
+       *  the first page. See getWhereStatement(List) for more info.
+       */
+        public String getWhereStatement(){
+            return getWhereStatement(null);
+        }
+
+
+      /** Returns a where clause used to select records after the last row
+       *  returned to the client. Returns null if this is the first page. When
+       *  sorting on a single column, a simple comparison is used (e.g.
+       *  "id > ?"). Otherwise, the comparison is expanded into a series of
+       *  "or" statements (e.g. "(col > ?) or (col = ? and id > ?)"). Note that
+       *  row-value comparisons like "(col, id) > (?, ?)" are not used because
+       *  they are not supported by all databases (e.g. Oracle). Null values
+       *  are matched using "is null" predicates.
+       *  @param params If not null, values are added to the list and "?"
+       *  placeholders are used in the where clause. Otherwise, the where
+       *  clause will include literal values.
+       */
+        public String getWhereStatement(List<Object> params){
+            if (values==null) return null;
+
+            ArrayList<String> cols = new ArrayList<>(keys.keySet());
+            HashSet<String> directions = new HashSet<>();
+            boolean hasNulls = false;
+            for (int i=0; i<cols.size(); i++){
+                directions.add(keys.get(cols.get(i)));
+                if (values[i]==null) hasNulls = true;
+            }
+
+
+          //Generate simple comparison for a single sort key
+            if (cols.size()==1 && !hasNulls){
+                String op = directions.contains("DESC") ? " < " : " > ";
+                return cols.get(0) + op + getValue(values[0], params);
+            }
+
+
+          //Generate expanded comparison for multiple sort keys or null values
+            StringBuilder str = new StringBuilder("(");
+            boolean addOr = false;
+            for (int i=0; i<cols.size(); i++){
+                String col = cols.get(i);
+                boolean desc = keys.get(col).equals("DESC");
+                Object val = values[i];
+
+
+              //Skip if there are no values after the last value. Nulls are
+              //sorted last in ascending order.
+                if (val==null && !desc) continue;
+
+
+                if (addOr) str.append(" or ");
+                addOr = true;
+                str.append("(");
+                for (int j=0; j<i; j++){
+                    str.append(cols.get(j));
+                    if (values[j]==null){
+                        str.append(" is null");
+                    }
+                    else{
+                        str.append(" = ");
+                        str.append(getValue(values[j], params));
+                    }
+                    str.append(" and ");
+                }
+
+                if (val==null){ //desc, nulls first
+                    str.append(col);
+                    str.append(" is not null");
+                }
+                else if (desc){ //nulls first so nulls are excluded
+                    str.append(col);
+                    str.append(" < ");
+                    str.append(getValue(val, params));
+                }
+                else{
+                    if (isID(col)){
+                        str.append(col);
+                        str.append(" > ");
+                        str.append(getValue(val, params));
+                    }
+                    else{
+                        str.append("(");
+                        str.append(col);
+                        str.append(" > ");
+                        str.append(getValue(val, params));
+                        str.append(" or ");
+                        str.append(col);
+                        str.append(" is null)");
+                    }
+                }
+                str.append(")");
+            }
+            if (!addOr) return "1=0";
+            str.append(")");
+            return str.toString();
+        }
+
+
+      /** Returns an order by statement for the sort keys, starting with a
+       *  white space " " for convenience. Nulls are sorted last in ascending
+       *  order and first in descending order.
+       */
+        public String getOrderByStatement(){
+            StringBuilder str = new StringBuilder(" order by ");
+            Iterator<String> it = keys.keySet().iterator();
+            while (it.hasNext()){
+                String key = it.next();
+                String dir = keys.get(key);
+                str.append(key);
+                str.append(" ");
+                str.append(dir);
+                if (!isID(key)){
+                    str.append(dir.equals("DESC") ? " nulls first" : " nulls last");
+                }
+                if (it.hasNext()) str.append(", ");
+            }
+            return str.toString();
+        }
+
+
+      /** Returns a token for the next page using the sort key values of the
+       *  last row returned to the client.
+       *  @param lastRow Values of the sort keys, in the same order as the
+       *  columns returned by getSelectStatement().
+       */
+        public String getNext(javaxt.utils.Value[] lastRow){
+            JSONArray k = new JSONArray();
+            for (String key : keys.keySet()){
+                k.add(key + " " + keys.get(key));
+            }
+
+            JSONArray v = new JSONArray();
+            for (javaxt.utils.Value value : lastRow){
+                v.add(encode(value==null ? null : value.toObject()));
+            }
+
+            JSONObject json = new JSONObject();
+            json.set("k", k);
+            json.set("v", v);
+            try{
+                return Base64.getUrlEncoder().withoutPadding().encodeToString(
+                json.toString().getBytes("UTF-8"));
+            }
+            catch(java.io.UnsupportedEncodingException e){
+                return null;
+            }
+        }
+
+
+      /** Returns a JSON representation of a sort key value. Timestamps are
+       *  encoded as UTC ISO-8601 strings (e.g. {"ts":"2024-01-01T00:00:00Z"})
+       *  and dates are encoded as ISO-8601 dates (e.g. {"d":"2024-01-01"}).
+       */
+        private Object encode(Object obj){
+            if (obj==null) return null;
+            if (obj instanceof Number || obj instanceof Boolean) return obj;
+            if (obj instanceof javaxt.utils.Date){
+                obj = ((javaxt.utils.Date) obj).getDate();
+            }
+            if (obj instanceof java.sql.Time) return obj.toString();
+            if (obj instanceof java.sql.Date){
+                JSONObject json = new JSONObject();
+                json.set("d", obj.toString());
+                return json;
+            }
+            java.time.Instant instant = null;
+            if (obj instanceof java.util.Date){
+                instant = obj instanceof java.sql.Timestamp ?
+                ((java.sql.Timestamp) obj).toInstant() :
+                java.time.Instant.ofEpochMilli(((java.util.Date) obj).getTime());
+            }
+            else if (obj instanceof java.time.OffsetDateTime){
+                instant = ((java.time.OffsetDateTime) obj).toInstant();
+            }
+            else if (obj instanceof java.time.LocalDateTime){
+                instant = java.sql.Timestamp.valueOf((java.time.LocalDateTime) obj).toInstant();
+            }
+            if (instant!=null){
+                JSONObject json = new JSONObject();
+                json.set("ts", instant.toString());
+                return json;
+            }
+            return obj.toString();
+        }
+
+
+      /** Returns a sort key value from a JSON value in a cursor token.
+       */
+        private Object decode(JSONValue value){
+            Object obj = value.toObject();
+            if (obj==null) return null;
+            try{
+                if (obj instanceof JSONObject){
+                    JSONObject json = (JSONObject) obj;
+                    if (json.has("ts")){
+                        return java.sql.Timestamp.from(java.time.Instant.parse(json.get("ts").toString()));
+                    }
+                    if (json.has("d")){
+                        return java.sql.Date.valueOf(json.get("d").toString());
+                    }
+                }
+                else if (obj instanceof Number || obj instanceof Boolean ||
+                    obj instanceof String){
+                    return obj;
+                }
+            }
+            catch(Exception e){}
+            throw new IllegalArgumentException("Invalid cursor");
+        }
+
+
+      /** Returns a placeholder for a sort key value and adds the value to a
+       *  list of parameters. If the list is null, returns a SQL literal.
+       */
+        private String getValue(Object obj, List<Object> params){
+            if (params!=null){
+                params.add(obj);
+                return "?";
+            }
+            if (obj instanceof Number || obj instanceof Boolean) return obj.toString();
+            if (obj instanceof java.sql.Timestamp){
+
+              //Include the UTC offset so the value is not interpreted using
+              //the time zone of the database session
+                java.sql.Timestamp ts = (java.sql.Timestamp) obj;
+                String offset = java.time.ZoneId.systemDefault().getRules()
+                .getOffset(ts.toInstant()).getId();
+                if (offset.equals("Z")) offset = "+00:00";
+                return "'" + ts.toString() + offset + "'";
+            }
+            return "'" + obj.toString().replace("'", "''") + "'";
+        }
+
+
+        private boolean isID(String key){
+            return key.equalsIgnoreCase("id");
+        }
+    }
+
+
+  //**************************************************************************
+  //** Field Class
+  //**************************************************************************
+  /** Used to encapsulate an entry in a "select" statement
+   */
+    public class Field {
+        private String col;
+        private String table;
+        private String alias;
+        private boolean isFunction;
+        private String functionName;
+
+        public Field(String field){
+            col = field;
+            isFunction = false;
+        }
+
+        public String getColumn(){
+            return col;
+        }
+
+        public void setAlias(String alias){
+            this.alias = alias;
+        }
+
+        public String getAlias(){
+            return alias;
+        }
+
+        public boolean isFunction(){
+            return isFunction;
+        }
+
+        public void isFunction(boolean isFunction){
+            this.isFunction = isFunction;
+        }
+
+        public void setFunctionName(String functionName){
+            this.functionName = functionName;
+        }
+
+        public String getFunctionName(){
+            return functionName;
+        }
 
         public String toString(){
             String str = col;
@@ -1614,8 +2645,8 @@ public class ServiceRequest {
 
       //If there are no models, call the other getSelectStatement() method
         if (models.isEmpty()){
-            HashMap<String, Object> tablesAndFields = null;
-            return "select " + getSelectStatement(tablesAndFields);
+            ModelMetadata metadata = null;
+            return "select " + getSelectStatement(metadata);
         }
 
 
@@ -1625,8 +2656,8 @@ public class ServiceRequest {
         for (Class cls : models){
             try{
                 int numMatches = 0;
-                HashMap<String, Object> tablesAndFields = WebService.getTableAndFields(cls);
-                String[] selectStatements = getSelectStatements(fields, tablesAndFields);
+                ModelMetadata metadata = ModelMetadata.get(cls);
+                String[] selectStatements = getSelectStatements(fields, metadata);
                 for (int i=0; i<selectStatements.length; i++){
                     String selectStatement = selectStatements[i];
                     if (selectStatement==null) continue;
@@ -1637,8 +2668,7 @@ public class ServiceRequest {
                 }
 
                 if (numMatches==0){
-                    String tableName = (String) tablesAndFields.get("tableName");
-                    unmatchedTables.add(tableName);
+                    unmatchedTables.add(metadata.getTableName());
                 }
 
             }
@@ -1677,14 +2707,85 @@ public class ServiceRequest {
   //** getSelectStatement
   //**************************************************************************
     protected String getSelectStatement(HashMap<String, Object> tablesAndFields){
+        return getSelectStatement(tablesAndFields==null ? null : new ModelMetadata(tablesAndFields));
+    }
+
+    protected String getSelectStatement(ModelMetadata metadata){
+        Plan plan = getPlan(metadata);
+        if (plan!=null && plan.select!=null) return plan.select;
+
         StringBuilder sql = new StringBuilder();
-        for (String select : getSelectStatements(getFields(), tablesAndFields)){
+        for (String select : getSelectStatements(getFields(), metadata)){
             if (select==null) continue;
             if (sql.length()>0) sql.append(", ");
             sql.append(select);
         }
-        if (sql.length()==0) return "*";
-        else return sql.toString();
+        String select = sql.length()==0 ? "*" : sql.toString();
+        if (plan!=null) plan.select = select;
+        return select;
+    }
+
+
+  //**************************************************************************
+  //** getSelectStatement
+  //**************************************************************************
+  /** Returns a comma delimited list of columns for the current request with
+   *  spatial fields wrapped in a given database function. The column name
+   *  (or alias) is preserved so that the function can be used to have the
+   *  database encode geometries (e.g. "ST_AsText(user.geom) as geom"). If no
+   *  fields are found in the request, all the columns in the table are
+   *  returned.
+   *  @param spatialFunction Name of a database function (e.g. "ST_AsText").
+   */
+    protected String getSelectStatement(ModelMetadata metadata, String spatialFunction){
+        if (metadata==null || spatialFunction==null) return getSelectStatement(metadata);
+
+        Plan plan = getPlan(metadata);
+        if (plan!=null){
+            String[] select = plan.spatialSelect;
+            if (select!=null && select[0].equals(spatialFunction)) return select[1];
+        }
+
+        String tableName = metadata.getTableName();
+        Set<String> spatialFields = metadata.getSpatialFields();
+        StringBuilder sql = new StringBuilder();
+        Field[] fields = getFields();
+        if (fields==null || fields.length==0){
+            Map<String, String> fieldMap = metadata.getFieldMap();
+            for (String fieldName : fieldMap.keySet()){
+                String columnName = fieldMap.get(fieldName);
+                if (columnName==null) continue;
+                if (sql.length()>0) sql.append(", ");
+                if (spatialFields.contains(fieldName)){
+                    sql.append(spatialFunction + "(" + tableName + "." + columnName + ") as " + columnName);
+                }
+                else{
+                    sql.append(tableName + "." + columnName);
+                }
+            }
+        }
+        else{
+            String[] select = getSelectStatements(fields, metadata);
+            for (int i=0; i<select.length; i++){
+                if (select[i]==null) continue;
+                Field field = fields[i];
+                if (!field.isFunction()){
+                    String[] match = metadata.getField(field.getColumn());
+                    if (match!=null && spatialFields.contains(match[0])){
+                        String columnName = StringUtils.camelCaseToUnderScore(field.getColumn());
+                        String alias = field.getAlias();
+                        if (alias==null || alias.isBlank()) alias = columnName;
+                        select[i] = spatialFunction + "(" + tableName + "." + columnName + ") as " + alias.trim();
+                    }
+                }
+                if (sql.length()>0) sql.append(", ");
+                sql.append(select[i]);
+            }
+        }
+
+        String select = sql.length()==0 ? "*" : sql.toString();
+        if (plan!=null) plan.spatialSelect = new String[]{spatialFunction, select};
+        return select;
     }
 
 
@@ -1695,7 +2796,7 @@ public class ServiceRequest {
    *  the exact same size as the given fields array. Note that entries in the
    *  array may contain null values, indicating that the field was not mapped.
    */
-    private String[] getSelectStatements(Field[] fields, HashMap<String, Object> tablesAndFields){
+    private String[] getSelectStatements(Field[] fields, ModelMetadata metadata){
         if (fields==null || fields.length==0) return new String[0];
 
         String[] select = new String[fields.length];
@@ -1710,22 +2811,15 @@ public class ServiceRequest {
 
               //Find table that corresponds to the field
                 String tableName = null;
-                if (tablesAndFields!=null){
+                if (metadata!=null){
                     String col = field.getColumn();
-
-                    HashMap<String, String> fieldMap = (HashMap<String, String>) tablesAndFields.get("fieldMap");
-                    for (String fieldName : fieldMap.keySet()){
-                        String columnName = fieldMap.get(fieldName);
-                        if (col.equalsIgnoreCase(fieldName) || col.equalsIgnoreCase(columnName)){
-                            tableName = (String) tablesAndFields.get("tableName");
-                            break;
-                        }
+                    if (metadata.getField(col)!=null){
+                        tableName = metadata.getTableName();
                     }
 
 
-
-                  //If tablesAndFields are given, yet we can't find a table for
-                  //the field, and field is not a function, is it a valid field?
+                  //If metadata is given, yet we can't find a table for the
+                  //field, and field is not a function, is it a valid field?
                     if (tableName==null) continue;
                 }
 
@@ -1766,12 +2860,12 @@ public class ServiceRequest {
    *  parameter is optional.
    */
     public String getWhereStatement(Class... c){
-        ArrayList<HashMap<String, Object>> arr = new ArrayList<>();
+        ArrayList<ModelMetadata> arr = new ArrayList<>();
         try{
             for (Class cls : c){
                 if (Model.class.isAssignableFrom(cls)){
                     try{
-                        arr.add(WebService.getTableAndFields(cls));
+                        arr.add(ModelMetadata.get(cls));
                     }
                     catch(Exception e){}
                 }
@@ -1784,192 +2878,324 @@ public class ServiceRequest {
     }
 
     protected String getWhereStatement(HashMap<String, Object> tablesAndFields){
-        ArrayList<HashMap<String, Object>> arr = new ArrayList<>();
-        arr.add(tablesAndFields);
-        return getWhereStatement(arr);
+        return getWhereStatement(new ModelMetadata(tablesAndFields));
+    }
+
+    protected String getWhereStatement(ModelMetadata metadata){
+        ArrayList<ModelMetadata> arr = new ArrayList<>();
+        arr.add(metadata);
+        return getWhereStatement(arr, null);
+    }
+
+
+  //**************************************************************************
+  //** getWhereStatement
+  //**************************************************************************
+  /** Returns a SQL "where" statement for the current request with "?"
+   *  placeholders instead of literal values where possible. The values are
+   *  added to the given list, in order, and should be set in a
+   *  PreparedStatement. Values are only replaced with placeholders if they
+   *  can be converted to the type of the corresponding field in the model
+   *  (e.g. strings, numbers, booleans). Other values (e.g. dates, functions,
+   *  arrays) are left as literals. Returns null if there is no filter.
+   *  @param metadata Model used to validate fields in the filter.
+   *  @param params List of parameter values. Values are added to the list.
+   */
+    protected String getWhereStatement(ModelMetadata metadata, List<Object> params){
+        ArrayList<ModelMetadata> arr = new ArrayList<>();
+        arr.add(metadata);
+        return getWhereStatement(arr, params);
+    }
+
+    private String getWhereStatement(ArrayList<ModelMetadata> models){
+        return getWhereStatement(models, null);
     }
 
-    private String getWhereStatement(ArrayList<HashMap<String, Object>> tablesAndFields){
+    private String getWhereStatement(ArrayList<ModelMetadata> models, List<Object> params){
         String where = null;
         Filter filter = getFilter();
         if (!filter.isEmpty()){
 
+          //Get where statement from the plan cache as needed. Plans include
+          //the values in the filter so the values bound to "?" placeholders
+          //are stored with the plan.
+            Plan plan = getPlan(models);
+            if (plan==null){
+                where = getWhereStatement(filter, models, params);
+            }
+            else{
+                Plan.Where w = params==null ? plan.where : plan.boundWhere;
+                if (w==null){
+                    ArrayList<Object> values = params==null ? null : new ArrayList<>();
+                    w = new Plan.Where(getWhereStatement(filter, models, values), values);
+                    if (params==null) plan.where = w;
+                    else plan.boundWhere = w;
+                }
+                where = w.sql;
+                if (params!=null) params.addAll(Arrays.asList(w.params));
+            }
+        }
+
 
-            ArrayList<String> a2 = new ArrayList<>();
-            for (String key : filter.items.keySet()){
-                ArrayList<String> arr = new ArrayList<>();
-                for (Filter.Item item : filter.items.get(key)){
-                    String name = item.getField();
-                    String op = item.getOperation();
-                    String v = item.getValue().toString();
+      //Fallback to the where parameter in the request (legacy)
+        if (where==null){
+            where = getWhere();
+            if (where!=null){
+                where = where.trim();
+                if (where.toLowerCase().startsWith("where")){
+                    where = where.substring(5).trim();
+                    if (where.isEmpty()) where = null;
+                }
+            }
+        }
 
+        //console.log(where);
+        return where;
+    }
 
-                  //Check if the column name is a function
-                    Field[] fields = getFields(name);
-                    Field field = null;
-                    if (fields!=null && fields.length>0){
-                        field = fields[0];
-                        if (field.isFunction()){
-                            arr.add("(" + item.toString() + ")");
-                            continue;
-                        }
+
+  //**************************************************************************
+  //** getWhereStatement
+  //**************************************************************************
+  /** Used to compile a where statement for a given filter. Returns null if
+   *  none of the items in the filter can be mapped to the given models.
+   */
+    private String getWhereStatement(Filter filter, ArrayList<ModelMetadata> models, List<Object> params){
+        String where = null;
+        ArrayList<String> a2 = new ArrayList<>();
+        for (String key : filter.items.keySet()){
+            ArrayList<String> arr = new ArrayList<>();
+            for (Filter.Item item : filter.items.get(key)){
+                String name = item.getField();
+                String op = item.getOperation();
+                String v = item.getValue().toString();
+
+
+              //Check if the column name is a function
+                Field[] fields = getFields(name);
+                Field field = null;
+                if (fields!=null && fields.length>0){
+                    field = fields[0];
+                    if (field.isFunction()){
+                        arr.add("(" + item.toString() + ")");
+                        continue;
                     }
+                }
 
 
 
-                    if (tablesAndFields==null || tablesAndFields.isEmpty()){
+                if (models==null || models.isEmpty()){
 
-                      //Set column name
-                        String col;
-                        if (field!=null) col = field.getColumn();
-                        else col = StringUtils.camelCaseToUnderScore(name);
+                  //Set column name
+                    String col;
+                    if (field!=null) col = field.getColumn();
+                    else col = StringUtils.camelCaseToUnderScore(name);
 
-                      //Update value
-                        if (v!=null && v.contains(" ")){
-                            if (!(v.startsWith("'") && v.endsWith("'"))){
-                                v = "'" + v.replace("'","''") + "'";
-                            }
+                  //Update value
+                    if (v!=null && v.contains(" ")){
+                        if (!(v.startsWith("'") && v.endsWith("'"))){
+                            v = "'" + v.replace("'","''") + "'";
                         }
+                    }
 
-                        arr.add("(" + col + " " + op + " " + v + ")");
+                    arr.add("(" + col + " " + op + " " + v + ")");
 
-                    }
-                    else{
+                }
+                else{
 
 
-                      //Check if the column name corresponds to a field in the
-                      //database. If so, append table name to the column.
-                        boolean foundField = false;
-                        for (HashMap<String, Object> map : tablesAndFields){
+                  //Check if the column name corresponds to a field in the
+                  //database. If so, append table name to the column.
+                    boolean foundField = false;
+                    for (ModelMetadata metadata : models){
 
-                            String tableName = (String) map.get("tableName");
-                            HashMap<String, String> fieldMap = (HashMap<String, String>) map.get("fieldMap");
-                            HashSet<String> stringFields = (HashSet<String>) map.get("stringFields");
-                            HashSet<String> arrayFields = (HashSet<String>) map.get("arrayFields");
+                        String tableName = metadata.getTableName();
+                        Set<String> stringFields = metadata.getStringFields();
+                        Set<String> arrayFields = metadata.getArrayFields();
 
 
-                            for (String fieldName : fieldMap.keySet()){
-                                String columnName = fieldMap.get(fieldName);
-                                if (name.equalsIgnoreCase(fieldName) || name.equalsIgnoreCase(columnName)){
-                                    foundField = true;
+                        String[] match = metadata.getField(name);
+                        if (match!=null){
+                            String fieldName = match[0];
+                            String columnName = match[1];
+                            foundField = true;
 
-                                  //Wrap value(s) in single quote as needed
-                                    if (v!=null && stringFields.contains(fieldName)){
-                                        if (!(v.startsWith("'") && v.endsWith("'"))){
-                                            if (op.equals("IN")){
+                          //Wrap value(s) in single quote as needed
+                            if (v!=null && stringFields.contains(fieldName)){
+                                if (!(v.startsWith("'") && v.endsWith("'"))){
+                                    if (op.equals("IN")){
 
-                                                if (v.startsWith("(") && v.endsWith(")")){
-                                                    v = v.substring(1, v.length()-1);
-                                                }
-                                                StringBuilder str = new StringBuilder("(");
-                                                String[] a = v.split(","); //very weak!
-                                                for (int i=0; i<a.length; i++){
-                                                    String s = a[i];
-                                                    if (i>0) str.append(",");
-                                                    if (!(s.startsWith("'") && s.endsWith("'"))){
-                                                        s = "'" + s.replace("'","''") + "'";
-                                                    }
-                                                    str.append(s);
-                                                }
-                                                str.append(")");
-                                                v = str.toString();
-                                            }
-                                            else{
-                                                v = "'" + v.replace("'","''") + "'";
+                                        if (v.startsWith("(") && v.endsWith(")")){
+                                            v = v.substring(1, v.length()-1);
+                                        }
+                                        StringBuilder str = new StringBuilder("(");
+                                        String[] a = v.split(","); //very weak!
+                                        for (int i=0; i<a.length; i++){
+                                            String s = a[i];
+                                            if (i>0) str.append(",");
+                                            if (!(s.startsWith("'") && s.endsWith("'"))){
+                                                s = "'" + s.replace("'","''") + "'";
                                             }
+                                            str.append(s);
                                         }
+                                        str.append(")");
+                                        v = str.toString();
+                                    }
+                                    else{
+                                        v = "'" + v.replace("'","''") + "'";
                                     }
+                                }
+                            }
 
 
-                                  //Compile statement and update arr
-                                    if (arrayFields.contains(fieldName)){
+                          //Compile statement and update arr
+                            if (arrayFields.contains(fieldName)){
 
-                                      //Special case for arrays
-                                        if (op.equals("=")){
-                                            arr.add("(" + v + " = ANY(" + tableName + "." + columnName + "))");
-                                        }
-                                        else if (op.equals("IN")){
-                                            if (v==null){
+                              //Special case for arrays
+                                if (op.equals("=")){
+                                    arr.add("(" + v + " = ANY(" + tableName + "." + columnName + "))");
+                                }
+                                else if (op.equals("IN")){
+                                    if (v==null){
 
-                                            }
-                                            else{
+                                    }
+                                    else{
 
-                                              //Split up "in" statement with a bunch of "or" statements
-                                                if (v.startsWith("(") && v.endsWith(")")){
-                                                    v = v.substring(1, v.length()-1);
-                                                }
-                                                StringBuilder str = new StringBuilder("(");
-                                                String[] a = v.split(","); //very weak!
-                                                for (int i=0; i<a.length; i++){
-                                                    if (i>0) str.append(" OR ");
-                                                    String s = a[i];
-                                                    if (stringFields.contains(fieldName)){
-                                                        if (!(s.startsWith("'") && s.endsWith("'"))){
-                                                            s = "'" + s.replace("'","''") + "'";
-                                                        }
-                                                    }
-                                                    str.append("(" + s + " = ANY(" + tableName + "." + columnName + "))");
+                                      //Split up "in" statement with a bunch of "or" statements
+                                        if (v.startsWith("(") && v.endsWith(")")){
+                                            v = v.substring(1, v.length()-1);
+                                        }
+                                        StringBuilder str = new StringBuilder("(");
+                                        String[] a = v.split(","); //very weak!
+                                        for (int i=0; i<a.length; i++){
+                                            if (i>0) str.append(" OR ");
+                                            String s = a[i];
+                                            if (stringFields.contains(fieldName)){
+                                                if (!(s.startsWith("'") && s.endsWith("'"))){
+                                                    s = "'" + s.replace("'","''") + "'";
                                                 }
-                                                str.append(")");
-                                                arr.add(str.toString());
                                             }
+                                            str.append("(" + s + " = ANY(" + tableName + "." + columnName + "))");
                                         }
-                                        else{
-                                            //Not sure what other array operations we can support...
-                                        }
-
+                                        str.append(")");
+                                        arr.add(str.toString());
                                     }
-                                    else{
-
-                                      //Most statements are generated here
-                                        arr.add("(" + tableName + "." + columnName + " " + op + " " + v + ")");
-
-                                    }
-
-
-                                    break;
+                                }
+                                else{
+                                    //Not sure what other array operations we can support...
                                 }
 
-                                if (foundField) break;
                             }
+                            else{
+
+                              //Most statements are generated here
+                                String val = bind(v, op, metadata.getFieldType(fieldName), params);
+                                arr.add("(" + tableName + "." + columnName + " " + op + " " + val + ")");
 
-                            //console.log(foundField, name, tableName);
+                            }
                         }
 
+                        //console.log(foundField, name, tableName);
                     }
+
                 }
+            }
 
-                if (!arr.isEmpty()){
-                    if (arr.size()>1){
-                        a2.add("(" + String.join(" and ", arr) + ")");
-                    }
-                    else{
-                        a2.add(arr.get(0));
-                    }
+            if (!arr.isEmpty()){
+                if (arr.size()>1){
+                    a2.add("(" + String.join(" and ", arr) + ")");
+                }
+                else{
+                    a2.add(arr.get(0));
                 }
             }
+        }
 
 
-            if (!a2.isEmpty()){
-                where = String.join(" and ", a2);
-            }
+        if (!a2.isEmpty()){
+            where = String.join(" and ", a2);
         }
+        return where;
+    }
 
 
-      //Fallback to the where parameter in the request (legacy)
-        if (where==null){
-            where = getWhere();
-            if (where!=null){
-                where = where.trim();
-                if (where.toLowerCase().startsWith("where")){
-                    where = where.substring(5).trim();
-                    if (where.isEmpty()) where = null;
-                }
+  //**************************************************************************
+  //** bind
+  //**************************************************************************
+  /** Used to replace a literal value in a where statement with a "?"
+   *  placeholder. The value is added to the list of parameters. Returns the
+   *  original value if the list of parameters is null or if the value can't
+   *  be converted to the given field type.
+   *  @param v A SQL literal (e.g. "'Bob'", "123", "(1,2,3)")
+   *  @param op SQL operator (e.g. "=", "IN")
+   */
+    private static String bind(String v, String op, Class fieldType, List<Object> params){
+        if (params==null || v==null || fieldType==null) return v;
+
+        if (op.equals("IN") || op.equals("NOT IN")){
+            if (!(v.startsWith("(") && v.endsWith(")"))) return v;
+            ArrayList<Object> values = new ArrayList<>();
+            StringBuilder str = new StringBuilder("(");
+            for (String s : v.substring(1, v.length()-1).split(",")){
+                Object param = getParam(s, fieldType);
+                if (param==null) return v;
+                if (!values.isEmpty()) str.append(",");
+                str.append("?");
+                values.add(param);
             }
+            str.append(")");
+            params.addAll(values);
+            return str.toString();
+        }
+        else if (op.equals("=") || op.equals("<>") || op.equals(">") || op.equals(">=") ||
+                 op.equals("<") || op.equals("<=") || op.equals("LIKE") || op.equals("NOT LIKE")){
+            Object param = getParam(v, fieldType);
+            if (param==null) return v;
+            params.add(param);
+            return "?";
         }
 
-        //console.log(where);
-        return where;
+        return v;
+    }
+
+
+  //**************************************************************************
+  //** getParam
+  //**************************************************************************
+  /** Used to convert a SQL literal into a Java object for a given field type.
+   *  Returns null if the literal can't be converted.
+   */
+    private static Object getParam(String v, Class fieldType){
+        if (fieldType.equals(String.class)){
+            if (v.length()<2 || !v.startsWith("'") || !v.endsWith("'")) return null;
+            String str = v.substring(1, v.length()-1);
+            if (str.replace("''", "").contains("'")) return null;
+            return str.replace("''", "'");
+        }
+
+        v = v.trim();
+        try{
+            if (fieldType.equals(Long.class) || fieldType.equals(Long.TYPE)){
+                if (v.matches("-?\\d+")) return Long.parseLong(v);
+            }
+            else if (fieldType.equals(Integer.class) || fieldType.equals(Integer.TYPE) ||
+                fieldType.equals(Short.class) || fieldType.equals(Short.TYPE)){
+                if (v.matches("-?\\d+")) return Integer.parseInt(v);
+            }
+            else if (fieldType.equals(Double.class) || fieldType.equals(Double.TYPE) ||
+                fieldType.equals(Float.class) || fieldType.equals(Float.TYPE)){
+                if (v.matches("-?\\d+(\\.\\d+)?")) return Double.parseDouble(v);
+            }
+            else if (fieldType.equals(java.math.BigDecimal.class)){
+                if (v.matches("-?\\d+(\\.\\d+)?")) return new java.math.BigDecimal(v);
+            }
+            else if (fieldType.equals(Boolean.class) || fieldType.equals(Boolean.TYPE)){
+                if (v.equalsIgnoreCase("true")) return true;
+                if (v.equalsIgnoreCase("false")) return false;
+            }
+        }
+        catch(NumberFormatException e){}
+        return null;
     }
 
 
@@ -2018,8 +3244,8 @@ public class ServiceRequest {
 
         StringBuilder sql = new StringBuilder();
 
-      //Get offset
-        Object offset = getOffset();
+      //Get offset. Note that offsets are ignored when using cursors.
+        Object offset = hasCursor() ? null : getOffset();
         if (offset!=null){
             Long x = (Long) offset;
             if (x<1) offset = "";
@@ -2043,18 +3269,7 @@ public class ServiceRequest {
       //Get limit
         Object limit = getLimit();
         if (limit!=null){
-            StringBuilder str = new StringBuilder();
-            if (driver.equals("Oracle")){
-                str.append(" fetch next ");
-                str.append(limit);
-                str.append(" only");
-            }
-            else { //PostgreSQL and H2
-                str.append(" limit ");
-                str.append(limit);
-            }
-
-            limit = str.toString();
+            limit = getLimitStatement((Long) limit, driver);
         }
         else{
             limit = "";
@@ -2074,4 +3289,23 @@ public class ServiceRequest {
         return sql.toString();
     }
 
-}
\ No newline at end of file
+
+  //**************************************************************************
+  //** getLimitStatement
+  //**************************************************************************
+  /** Returns a SQL limit statement for a given number of rows, starting with
+   *  a white space " " for convenience. The given Driver is used to determine
+   *  which keywords to use (e.g. "limit 10" or "fetch next 10 rows only").
+   *  @param driver An instance of a javaxt.sql.Driver class. This parameter
+   *  is optional.
+   */
+    public static String getLimitStatement(long limit, javaxt.sql.Driver driver){
+        if (driver!=null && driver.equals("Oracle")){
+            return " fetch next " + limit + " rows only";
+        }
+        else{ //PostgreSQL and H2
+            return " limit " + limit;
+        }
+    }
+
+}
@@ -1,6 +1,7 @@
 package javaxt.express;
 
 import java.util.*;
+import java.util.concurrent.*;
 import java.io.IOException;
 
 import javaxt.json.*;
@@ -28,7 +29,14 @@ public class ServiceResponse {
     private String cacheControl;
     private String authMessage;
     private Object response;
+    private long timeout;
+    private Runnable onComplete;
+    private volatile Runnable onCancel;
     private HashMap<String, Object> properties = new HashMap<>();
+    private LinkedHashMap<String, String> headers = new LinkedHashMap<>();
+
+    private static volatile boolean serverTiming = false;
+    private static volatile SlowRequestLog slowRequestLog;
 
 
     public ServiceResponse(byte[] response){
@@ -43,6 +51,12 @@ public class ServiceResponse {
         this.response = file;
     }
 
+    public ServiceResponse(java.io.File file){
+        this.contentType = javaxt.io.File.getContentType(file.getName());
+        this.contentLength = file.length();
+        this.response = file;
+    }
+
     public ServiceResponse(java.io.InputStream response){
         this.response = response;
     }
@@ -82,6 +96,17 @@ public class ServiceResponse {
         this.status = status;
     }
 
+  /** Creates an asynchronous response that will be sent to the client when
+   *  the given future completes.
+   *  @param timeout Maximum time to wait for the future to complete, in
+   *  milliseconds. A 504 response is sent to the client if the future does
+   *  not complete in time. Set to 0 to wait indefinitely.
+   */
+    public ServiceResponse(CompletionStage<ServiceResponse> future, long timeout){
+        this.response = future.toCompletableFuture();
+        this.timeout = timeout;
+    }
+
     public ServiceResponse(Exception e){
         this((Throwable) e);
     }
@@ -274,8 +299,10 @@ public class ServiceResponse {
   //**************************************************************************
   //** set
   //**************************************************************************
-  /** Used to set a custom response header (e.g. ETag). This method is not
-   *  commonly used and may be removed in a future release.
+  /** Used to set a custom response property. Only the "ETag" and
+   *  "Last-Modified" properties are sent to the client as response headers.
+   *  Use setHeader() to add other headers. This method is not commonly used
+   *  and may be removed in a future release.
    */
     public void set(String key, Object val){
         properties.put(key, val);
@@ -292,6 +319,30 @@ public class ServiceResponse {
     }
 
 
+  //**************************************************************************
+  //** setHeader
+  //**************************************************************************
+  /** Used to add a response header (e.g. "X-Next-Cursor"). Unlike the set()
+   *  method, headers are always sent to the client.
+   *  @param key Header name.
+   *  @param val Header value. If null, the header is removed.
+   */
+    public void setHeader(String key, String val){
+        if (val==null) headers.remove(key);
+        else headers.put(key, val);
+    }
+
+
+  //**************************************************************************
+  //** getHeader
+  //**************************************************************************
+  /** Returns a response header set using the setHeader() method.
+   */
+    public String getHeader(String key){
+        return headers.get(key);
+    }
+
+
   //**************************************************************************
   //** getResponse
   //**************************************************************************
@@ -304,6 +355,194 @@ public class ServiceResponse {
     }
 
 
+  //**************************************************************************
+  //** onComplete
+  //**************************************************************************
+  /** Used to specify a callback that is called after the entire response
+   *  has been sent to the client. Currently only used with java.io.File
+   *  responses (e.g. to delete a temp file after it has been downloaded).
+   *  The callback is not called for partial (range) requests.
+   */
+    public void onComplete(Runnable callback){
+        this.onComplete = callback;
+    }
+
+
+  //**************************************************************************
+  //** onCancel
+  //**************************************************************************
+  /** Used to specify a callback that is called if an asynchronous response
+   *  times out or if the thread waiting for the response is interrupted.
+   *  Typically used to cancel the request that is generating the response
+   *  (see ServiceRequest.cancel).
+   */
+    public void onCancel(Runnable callback){
+        this.onCancel = callback;
+    }
+
+
+  //**************************************************************************
+  //** isAsync
+  //**************************************************************************
+  /** Returns true if the response was created using a CompletableFuture.
+   */
+    public boolean isAsync(){
+        return response instanceof CompletableFuture;
+    }
+
+
+  //**************************************************************************
+  //** getFuture
+  //**************************************************************************
+  /** Returns a future that completes with the response. For synchronous
+   *  responses, returns a completed future. Servlet containers that support
+   *  asynchronous requests can use this method to release the request thread
+   *  while the response is generated. If the future does not complete before
+   *  the timeout, the returned future completes with a 504 response, the
+   *  onCancel callback is called, and any response generated after the
+   *  timeout is closed (see discard).
+   */
+    public CompletableFuture<ServiceResponse> getFuture(){
+        if (!isAsync()) return CompletableFuture.completedFuture(this);
+        CompletableFuture<ServiceResponse> future = (CompletableFuture<ServiceResponse>) response;
+        if (timeout>0){
+
+          //Use a separate future for the timeout so that the original future
+          //is not completed and a late response can still be closed
+            CompletableFuture<ServiceResponse> f = new CompletableFuture<>();
+            future.whenComplete((r, e) -> {
+                if (e!=null) f.completeExceptionally(e);
+                else if (!f.complete(r) && r!=null) r.close();
+            });
+            future = f.orTimeout(timeout, TimeUnit.MILLISECONDS).whenComplete((r, e) -> {
+                if (e instanceof TimeoutException) cancel();
+            });
+        }
+        return future.handle((r, e) -> e==null ? merge(r) : getErrorResponse(e))
+        .thenCompose(r -> r.getFuture());
+    }
+
+
+  //**************************************************************************
+  //** resolve
+  //**************************************************************************
+  /** Returns the response generated by the future. Waits for the future to
+   *  complete, up to the timeout specified in the constructor. Returns a 504
+   *  response if the future does not complete in time and a 503 response if
+   *  the request was rejected or cancelled. The onCancel callback is called
+   *  on timeout and responses generated after the timeout are closed (see
+   *  discard). For synchronous responses, simply
+   *  returns this object.
+   */
+    public ServiceResponse resolve(){
+        if (!isAsync()) return this;
+
+        CompletableFuture<ServiceResponse> future = (CompletableFuture<ServiceResponse>) response;
+        ServiceResponse r;
+        try{
+            r = merge(timeout>0 ? future.get(timeout, TimeUnit.MILLISECONDS) : future.get());
+        }
+        catch(InterruptedException e){
+            Thread.currentThread().interrupt();
+            cancel();
+            discard(future);
+            r = new ServiceResponse(503, "Service Unavailable");
+        }
+        catch(Exception e){
+            if (e instanceof TimeoutException){
+                cancel();
+                discard(future);
+            }
+            r = getErrorResponse(e);
+        }
+        return r.resolve();
+    }
+
+
+  //**************************************************************************
+  //** cancel
+  //**************************************************************************
+  /** Used to call the onCancel callback, if one is defined.
+   */
+    private void cancel(){
+        Runnable callback = onCancel;
+        if (callback==null) return;
+        try{ callback.run(); }
+        catch(Exception e){}
+    }
+
+
+  //**************************************************************************
+  //** discard
+  //**************************************************************************
+  /** Used to release a response that is no longer needed (e.g. after a
+   *  timeout). Note that the future is not cancelled. Cancelling a future
+   *  doesn't stop the task that generates the response and the response
+   *  would be dropped without being closed (e.g. an InputStream holding a
+   *  database connection). Instead, the response is closed whenever the
+   *  future completes.
+   */
+    private static void discard(CompletableFuture<ServiceResponse> future){
+        future.whenComplete((r, e) -> {
+            if (r!=null) r.close();
+        });
+    }
+
+
+  //**************************************************************************
+  //** close
+  //**************************************************************************
+  /** Used to close a response that will not be sent to the client. Closes
+   *  InputStreams and discards nested asynchronous responses.
+   */
+    protected void close(){
+        if (response instanceof java.io.InputStream){
+            try{ ((java.io.InputStream) response).close(); }
+            catch(Exception e){}
+        }
+        else if (isAsync()){
+            discard((CompletableFuture<ServiceResponse>) response);
+        }
+    }
+
+
+  //**************************************************************************
+  //** merge
+  //**************************************************************************
+  /** Used to copy properties (e.g. headers) set on an asynchronous response
+   *  to the response generated by the future.
+   */
+    private ServiceResponse merge(ServiceResponse r){
+        if (r==null) return new ServiceResponse(500, "Missing response");
+        for (String key : properties.keySet()){
+            if (!r.properties.containsKey(key)) r.properties.put(key, properties.get(key));
+        }
+        for (String key : headers.keySet()){
+            if (!r.headers.containsKey(key)) r.headers.put(key, headers.get(key));
+        }
+        if (r.cacheControl==null) r.cacheControl = cacheControl;
+        return r;
+    }
+
+
+  //**************************************************************************
+  //** getErrorResponse
+  //**************************************************************************
+  /** Returns a ServiceResponse for an error thrown by a future.
+   */
+    private static ServiceResponse getErrorResponse(Throwable e){
+        while ((e instanceof ExecutionException || e instanceof CompletionException) &&
+            e.getCause()!=null){
+            e = e.getCause();
+        }
+        if (e instanceof TimeoutException) return new ServiceResponse(504, "Request Timeout");
+        if (e instanceof RejectedExecutionException || e instanceof CancellationException){
+            return new ServiceResponse(503, "Service Unavailable");
+        }
+        return new ServiceResponse(e);
+    }
+
+
   //**************************************************************************
   //** send
   //**************************************************************************
@@ -313,11 +552,18 @@ public class ServiceResponse {
    *  cacheable. Cacheable responses include "ETag", "Last-Modified", and
    *  "Cache-Control" headers. If the "ETag" matches the "if-none-match"
    *  or if the "Last-Modified" matches the "if-modified-since" request
-   *  headers then a 304 "Not Modified" is returned.
+   *  headers then a 304 "Not Modified" is returned. Asynchronous responses
+   *  are sent when the future completes (see resolve).
    *  @param response An javaxt.http.servlet.HttpServletResponse to write to.
    */
     public void send(HttpServletResponse response) throws IOException {
 
+      //Wait for asynchronous responses
+        if (isAsync()){
+            resolve().send(response);
+            return;
+        }
+
         HttpServletRequest request = response.getRequest();
 
 
@@ -353,6 +599,13 @@ public class ServiceResponse {
             if (status==304) return;
 
 
+          //Add other user-defined headers (e.g. "X-Next-Cursor")
+            for (String key : headers.keySet()){
+                response.setHeader(key, headers.get(key));
+            }
+
+
+
 
           //Set authentication header as needed
             String authType = request==null ? null : request.getAuthType();
@@ -419,6 +672,47 @@ public class ServiceResponse {
                 response.write(file.toFile(), fileName, contentType, true);
 
             }
+            else if (obj instanceof java.io.File){
+                java.io.File file = (java.io.File) obj;
+                long length = file.length();
+                response.setHeader("Accept-Ranges", "bytes");
+                if (contentDisposition!=null) response.setHeader("Content-Disposition", contentDisposition);
+
+
+              //Check whether the client requested a range of bytes (e.g. to
+              //resume a download)
+                long start = 0;
+                long end = length-1;
+                long[] range = request==null ? null : getRange(request.getHeader("Range"), length);
+                if (range!=null){
+                    if (range[0]<0){
+                        response.setStatus(416);
+                        response.setHeader("Content-Range", "bytes */" + length);
+                        return;
+                    }
+                    start = range[0];
+                    end = range[1];
+                    response.setStatus(206);
+                    response.setHeader("Content-Range", "bytes " + start + "-" + end + "/" + length);
+                }
+
+
+              //Send file. The file is streamed from disk so that large files
+              //are not loaded into memory.
+                response.setHeader("Content-Length", (end-start+1)+"");
+                try (java.nio.channels.FileChannel channel =
+                    java.nio.channels.FileChannel.open(file.toPath())){
+                    channel.position(start);
+                    FileRange fileRange = new FileRange(channel, end-start+1);
+                    response.write(fileRange, false);
+
+
+                  //Call the onComplete callback if the entire file was sent
+                    if (range==null && fileRange.isComplete() && onComplete!=null){
+                        onComplete.run();
+                    }
+                }
+            }
             else if (obj instanceof java.io.InputStream){
                 java.io.InputStream inputStream = (java.io.InputStream) obj;
                 boolean compressOutput = true;
@@ -431,11 +725,15 @@ public class ServiceResponse {
                 }
 
 
-              //Send response
+              //Send response. Close the stream when we're done so that any
+              //resources associated with the stream (e.g. database
+              //connections) are released.
                 try{
                     response.write(inputStream, compressOutput);
                 }
                 catch(Exception e){
+                }
+                finally{
                     try{inputStream.close();}catch(Exception ex){}
                 }
 
@@ -451,10 +749,45 @@ public class ServiceResponse {
   //**************************************************************************
   //** send
   //**************************************************************************
-  /** Used to send the response to a client.
+  /** Used to send the response to a client. Records the time spent sending
+   *  the response in the request, adds a "Server-Timing" header if enabled
+   *  (see setServerTiming), and logs slow requests as needed (see
+   *  setSlowRequestLog).
+   *  @param response An javaxt.http.servlet.HttpServletResponse to write to.
+   *  @param req A javaxt.express.ServiceRequest used to initiate the response.
    */
     public void send(HttpServletResponse response, ServiceRequest req) throws IOException {
-        send(response);
+        if (req==null){
+            send(response);
+            return;
+        }
+
+
+      //Wait for asynchronous responses
+        if (isAsync()){
+            long t = System.nanoTime();
+            ServiceResponse r = resolve();
+            req.addTiming("wait", System.nanoTime()-t);
+            r.send(response, req);
+            return;
+        }
+
+
+      //Add Server-Timing header. Note that the header is sent before the
+      //body so it doesn't include the time spent sending the response.
+        if (serverTiming) response.setHeader("Server-Timing", req.getServerTiming());
+
+
+      //Send response
+        long t = System.nanoTime();
+        try{
+            send(response);
+        }
+        finally{
+            req.addTiming("send", System.nanoTime()-t);
+            SlowRequestLog slowRequestLog = ServiceResponse.slowRequestLog;
+            if (slowRequestLog!=null) slowRequestLog.log(req, status);
+        }
     }
 
 
@@ -466,7 +799,7 @@ public class ServiceResponse {
    *  @param req A javaxt.express.ServiceRequest used to initiate the response.
    */
     public void send(javax.servlet.http.HttpServletResponse response, ServiceRequest req) throws IOException {
-        send(new HttpServletResponse(req.getRequest(), response));
+        send(new HttpServletResponse(req.getRequest(), response), req);
     }
 
 
@@ -478,7 +811,125 @@ public class ServiceResponse {
    *  @param req A javaxt.express.ServiceRequest used to initiate the response.
    */
     public void send(jakarta.servlet.http.HttpServletResponse response, ServiceRequest req) throws IOException {
-        send(new HttpServletResponse(req.getRequest(), response));
+        send(new HttpServletResponse(req.getRequest(), response), req);
+    }
+
+
+  //**************************************************************************
+  //** setServerTiming
+  //**************************************************************************
+  /** Used to add a "Server-Timing" header to responses sent using the
+   *  send(response, req) method. The header includes the time spent in each
+   *  phase of the request (see ServiceRequest.addTiming). Disabled by
+   *  default since the header exposes server internals to clients.
+   */
+    public static void setServerTiming(boolean enable){
+        serverTiming = enable;
+    }
+
+
+  //**************************************************************************
+  //** isServerTimingEnabled
+  //**************************************************************************
+  /** Returns true if "Server-Timing" headers are enabled.
+   */
+    public static boolean isServerTimingEnabled(){
+        return serverTiming;
+    }
+
+
+  //**************************************************************************
+  //** setSlowRequestLog
+  //**************************************************************************
+  /** Used to log slow requests sent using the send(response, req) method.
+   *  @param log SlowRequestLog. Set to null to disable (default).
+   */
+    public static void setSlowRequestLog(SlowRequestLog log){
+        slowRequestLog = log;
+    }
+
+
+  //**************************************************************************
+  //** getRange
+  //**************************************************************************
+  /** Returns the start and end of a byte range requested via a "Range"
+   *  request header (e.g. "bytes=100-", "bytes=100-199", "bytes=-500").
+   *  Returns null if the header is missing, invalid, or requests multiple
+   *  ranges, in which case the entire file should be sent. Returns {-1, -1}
+   *  if the range cannot be satisfied.
+   */
+    private static long[] getRange(String header, long length){
+        if (header==null) return null;
+        header = header.trim();
+        if (!header.toLowerCase().startsWith("bytes=")) return null;
+        String str = header.substring(6).trim();
+        if (str.contains(",")) return null;
+        int idx = str.indexOf("-");
+        if (idx<0) return null;
+        try{
+            String a = str.substring(0, idx).trim();
+            String b = str.substring(idx+1).trim();
+            long start, end;
+            if (a.isEmpty()){ //suffix range (e.g. last 500 bytes)
+                long n = Long.parseLong(b);
+                if (n<=0) return new long[]{-1, -1};
+                start = Math.max(length-n, 0);
+                end = length-1;
+            }
+            else{
+                start = Long.parseLong(a);
+                end = b.isEmpty() ? length-1 : Math.min(Long.parseLong(b), length-1);
+                if (end<start && start<length) return null;
+            }
+            if (start>=length) return new long[]{-1, -1};
+            return new long[]{start, end};
+        }
+        catch(NumberFormatException e){
+            return null;
+        }
+    }
+
+
+  //**************************************************************************
+  //** FileRange
+  //**************************************************************************
+  /** InputStream used to read a range of bytes from a FileChannel.
+   */
+    private static class FileRange extends java.io.FilterInputStream {
+        private long remaining;
+
+        public FileRange(java.nio.channels.FileChannel channel, long length){
+            super(java.nio.channels.Channels.newInputStream(channel));
+            remaining = length;
+        }
+
+        public int read() throws IOException {
+            if (remaining<=0) return -1;
+            int b = super.read();
+            if (b>=0) remaining--;
+            return b;
+        }
+
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (remaining<=0) return -1;
+            int n = super.read(b, off, (int) Math.min(len, remaining));
+            if (n>0) remaining -= n;
+            return n;
+        }
+
+        public long skip(long n) throws IOException {
+            long k = super.skip(Math.min(n, remaining));
+            remaining -= k;
+            return k;
+        }
+
+        public int available() throws IOException {
+            return (int) Math.min(super.available(), remaining);
+        }
+
+        public boolean isComplete(){
+            return remaining==0;
+        }
     }
 
 
@@ -0,0 +1,111 @@
+package javaxt.express;
+
+import java.util.*;
+
+//******************************************************************************
+//**  SlowRequestLog
+//******************************************************************************
+/**
+ *   Used to log requests that take longer than a given threshold. Entries
+ *   include the time spent in each phase of the request (see
+ *   ServiceRequest.addTiming) along with any diagnostic information added to
+ *   the request (e.g. sql and row counts). Entries are written using a Logger
+ *   which creates a new log file every day. Example:
+ *   <pre>
+    Logger logger = new Logger(new java.io.File("/logs/slow"));
+    new Thread(logger).start();
+    ServiceResponse.setSlowRequestLog(new SlowRequestLog(logger, 1000));
+ *   </pre>
+ *
+ ******************************************************************************/
+
+public class SlowRequestLog {
+
+    private Logger logger;
+    private long threshold;
+    private double sampleRate;
+
+
+  //**************************************************************************
+  //** Constructor
+  //**************************************************************************
+  /** @param logger Logger used to write entries to a file.
+   *  @param threshold Minimum request time, in milliseconds.
+   */
+    public SlowRequestLog(Logger logger, long threshold){
+        this(logger, threshold, 1.0);
+    }
+
+
+  //**************************************************************************
+  //** Constructor
+  //**************************************************************************
+  /** @param logger Logger used to write entries to a file.
+   *  @param threshold Minimum request time, in milliseconds.
+   *  @param sampleRate Percentage of slow requests to log, from 0 to 1. Used
+   *  to limit the size of the log when the server is under heavy load.
+   */
+    public SlowRequestLog(Logger logger, long threshold, double sampleRate){
+        if (logger==null) throw new IllegalArgumentException("Logger is required");
+        this.logger = logger;
+        this.threshold = Math.max(threshold, 0)*1000000L;
+        this.sampleRate = Math.min(Math.max(sampleRate, 0), 1);
+    }
+
+
+  //**************************************************************************
+  //** log
+  //**************************************************************************
+  /** Used to log a request if the elapsed time exceeds the threshold.
+   *  @param request Completed request.
+   *  @param status HTTP status code returned to the client.
+   *  @return True if the request was logged.
+   */
+    public boolean log(ServiceRequest request, int status){
+        long elapsedTime = request.getElapsedTime();
+        if (elapsedTime<threshold) return false;
+        if (sampleRate<1 && java.util.concurrent.ThreadLocalRandom.current().nextDouble()>=sampleRate){
+            return false;
+        }
+
+
+      //Get request info
+        String method = "";
+        String url = "";
+        String clientIP = "";
+        try{
+            javaxt.http.servlet.HttpServletRequest r = request.getRequest();
+            method = r.getMethod();
+            url = r.getURL();
+            clientIP = request.getClientIP();
+        }
+        catch(Exception e){}
+
+
+      //Generate log entry
+        StringBuilder str = new StringBuilder();
+        str.append("Slow Request: " + method + " " + url + "\r\n");
+        str.append("TimeStamp: " + logger.getDate().toString("yyyy-MM-dd HH:mm:ss a") + "\r\n");
+        str.append("Client: " + clientIP + "\r\n");
+        str.append("Status: " + status + "\r\n");
+        str.append("Elapsed Time: " + ServiceRequest.toMillis(elapsedTime) + "ms\r\n");
+
+        LinkedHashMap<String, Long> timings = request.getTimings();
+        if (!timings.isEmpty()){
+            str.append("Timings:");
+            for (String phase : timings.keySet()){
+                str.append(" " + phase + "=" + ServiceRequest.toMillis(timings.get(phase)) + "ms");
+            }
+            str.append("\r\n");
+        }
+
+        LinkedHashMap<String, Object> info = request.getTimingInfo();
+        for (String key : info.keySet()){
+            str.append(key + ": " + info.get(key) + "\r\n");
+        }
+        str.append("\r\n");
+
+        logger.log(str.toString());
+        return true;
+    }
+}
@@ -2,6 +2,7 @@ package javaxt.express;
 import javaxt.express.ServiceRequest.Sort;
 import javaxt.express.ServiceRequest.Field;
 import javaxt.express.ServiceRequest.Filter;
+import javaxt.express.ServiceRequest.Cursor;
 import javaxt.express.utils.*;
 
 import javaxt.sql.*;
@@ -11,10 +12,11 @@ import javaxt.http.servlet.ServletException;
 
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
-import java.lang.reflect.Constructor;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
 import java.lang.reflect.Method;
 import java.lang.reflect.Modifier;
-import java.lang.reflect.Parameter;
 
 //******************************************************************************
 //**  WebService
@@ -29,8 +31,34 @@ public abstract class WebService {
 
     private ConcurrentHashMap<String, DomainClass> classes = new ConcurrentHashMap<>();
     private LinkedHashMap<String, ArrayList<Method>> serviceMethods = new LinkedHashMap<>();
+    private HashMap<String, ServiceMethod[]> serviceRoutes = new HashMap<>();
+    private volatile HashMap<String, ModelRoute> modelRoutes = new HashMap<>();
+    private Set<Class> streamingModels = ConcurrentHashMap.newKeySet();
+    private RecordCounter counter = new RecordCounter();
+    private ConcurrentHashMap<String, java.util.concurrent.atomic.AtomicLong> tableVersions = new ConcurrentHashMap<>();
+    private Set<Class> eTagModels = ConcurrentHashMap.newKeySet();
+    private Set<Class> cachedModels = ConcurrentHashMap.newKeySet();
+    private volatile ResponseCache responseCache;
+    private final String epoch = Long.toString(System.currentTimeMillis(), 36);
+    private boolean customRecordset = false;
+    private volatile String spatialEncoding;
+    private volatile java.util.concurrent.Executor executor;
+    private volatile long asyncTimeout = 30000;
+    private volatile int queryTimeout = 0;
+    private ConcurrentHashMap<Class, Integer> queryTimeouts = new ConcurrentHashMap<>();
+    private volatile Database[] readDatabases;
+    private volatile boolean leastLoaded = false;
+    private volatile long readAfterWriteWindow = 5000;
+    private final java.util.concurrent.atomic.AtomicInteger nextReadDatabase = new java.util.concurrent.atomic.AtomicInteger();
+    private final ConcurrentHashMap<String, Long> lastWrites = new ConcurrentHashMap<>(); //user -> time
+    private final ConcurrentHashMap<String, Long> tableWrites = new ConcurrentHashMap<>(); //table -> time
     private boolean strictLookup = false;
 
+    private static final Metrics.Counter connections = Metrics.counter(
+        "javaxt_db_connections_total", "Number of database connections requested");
+    private static final MethodType serviceMethodType = MethodType.methodType(
+        Object.class, ServiceRequest.class, Database.class);
+
     public static Console console = new Console(); //do not replace with static import!
 
     private class DomainClass {
@@ -49,6 +77,88 @@ public abstract class WebService {
     }
 
 
+  //**************************************************************************
+  //** ServiceMethod
+  //**************************************************************************
+  /** Used to encapsulate a concrete service method found in the subclass.
+   *  The method is resolved to a MethodHandle, bound to this instance, with a
+   *  uniform (ServiceRequest, Database) signature so it can be invoked without
+   *  allocating an input array for every request.
+   */
+    private class ServiceMethod {
+        private Method method;
+        private MethodHandle handle;
+        private boolean hasDatabase;
+        private Metrics.Histogram latency;
+
+        public ServiceMethod(Method m){
+            this.method = m;
+            this.hasDatabase = m.getParameterTypes().length==2;
+            this.latency = Metrics.histogram("javaxt_service_method_seconds",
+            "Time spent in service methods",
+            "service", WebService.this.getClass().getSimpleName(), "method", m.getName());
+            try{
+                m.setAccessible(true);
+                MethodHandle mh = MethodHandles.lookup().unreflect(m);
+                if (!Modifier.isStatic(m.getModifiers())) mh = mh.bindTo(WebService.this);
+                if (!hasDatabase) mh = MethodHandles.dropArguments(mh, 1, Database.class);
+                handle = mh.asType(serviceMethodType);
+            }
+            catch(Exception e){
+              //Fallback to reflection (e.g. method is not accessible)
+            }
+        }
+
+        public ServiceResponse invoke(ServiceRequest request, Database database) throws Throwable {
+            Object obj;
+            if (handle!=null){
+                obj = (Object) handle.invokeExact(request, database);
+            }
+            else{
+                try{
+                    Object[] inputs = hasDatabase ?
+                    new Object[]{request, database} : new Object[]{request};
+                    obj = method.invoke(WebService.this, inputs);
+                }
+                catch(java.lang.reflect.InvocationTargetException e){
+                    throw e.getCause();
+                }
+            }
+
+
+          //Wrap futures returned by asynchronous service methods. Cancel the
+          //request if the response times out.
+            if (obj instanceof java.util.concurrent.CompletionStage){
+                ServiceResponse response = new ServiceResponse(
+                (java.util.concurrent.CompletionStage<ServiceResponse>) obj, asyncTimeout);
+                response.onCancel(request::cancel);
+                return response;
+            }
+            return (ServiceResponse) obj;
+        }
+    }
+
+
+  //**************************************************************************
+  //** ModelRoute
+  //**************************************************************************
+  /** Used to map a method name (e.g. "getUsers") to a CRUD operation for a
+   *  given model.
+   */
+    private class ModelRoute {
+        private DomainClass domainClass;
+        private String op;
+        private Metrics.Histogram latency;
+        public ModelRoute(DomainClass domainClass, String op){
+            this.domainClass = domainClass;
+            this.op = op;
+            this.latency = Metrics.histogram("javaxt_model_request_seconds",
+            "Time spent in CRUD operations",
+            "model", domainClass.c.getSimpleName(), "op", op);
+        }
+    }
+
+
   //**************************************************************************
   //** Constructor
   //**************************************************************************
@@ -56,14 +166,15 @@ public abstract class WebService {
 
       //Generate a list of all the service methods in the subclass. Service
       //methods are public methods that accept a ServiceRequest parameter and
-      //return a ServiceResponse object. Implementation note:
+      //return a ServiceResponse object or a CompletableFuture with a
+      //ServiceResponse (see isServiceMethod). Implementation note:
       //The getDeclaredMethod() method will only find methods declared in the
       //current Class, not inherited from supertypes. So we may need to
       //traverse up the concrete class hierarchy if this becomes a requirement.
         for (Method m : this.getClass().getDeclaredMethods()){
             if (Modifier.isPrivate(m.getModifiers())) continue;
 
-            if (m.getReturnType().equals(ServiceResponse.class)){
+            if (isServiceMethod(m)){
 
                 Class<?>[] params = m.getParameterTypes();
                 if (params.length>0){
@@ -88,7 +199,7 @@ public abstract class WebService {
             for (Method m : this.getClass().getMethods()){
                 if (Modifier.isPrivate(m.getModifiers())) continue;
 
-                if (m.getReturnType().equals(ServiceResponse.class)){
+                if (isServiceMethod(m)){
 
                     Class<?>[] params = m.getParameterTypes();
                     if (params.length>0){
@@ -106,6 +217,126 @@ public abstract class WebService {
                 }
             }
         }
+
+
+      //Compile routing table
+        updateServiceRoutes();
+
+
+      //Check whether the subclass overrides the getRecordset() method. If
+      //so, queries must be executed via getRecordset() using literal SQL.
+      //Otherwise, queries can be executed using PreparedStatements.
+        Class cls = this.getClass();
+        while (cls!=null && !cls.equals(WebService.class)){
+            try{
+                cls.getDeclaredMethod("getRecordset", ServiceRequest.class,
+                String.class, Class.class, String.class, Connection.class);
+                customRecordset = true;
+                break;
+            }
+            catch(NoSuchMethodException e){
+                cls = cls.getSuperclass();
+            }
+        }
+    }
+
+
+  //**************************************************************************
+  //** updateServiceRoutes
+  //**************************************************************************
+  /** Used to generate a lookup table that maps method names returned by
+   *  ServiceRequest.getMethod() to concrete service methods. The table
+   *  includes aliases for the "get", "save", and "delete" prefixes so that
+   *  the prefix logic found in getServiceResponse() is resolved once, up
+   *  front, instead of on every request.
+   */
+    private void updateServiceRoutes(){
+        HashMap<String, ServiceMethod[]> routes = new HashMap<>();
+
+
+      //Add service methods, skipping methods that can't accept the inputs
+      //and overrides of getServiceResponse (prevents recursion)
+        for (String key : serviceMethods.keySet()){
+            ArrayList<ServiceMethod> arr = new ArrayList<>();
+            for (Method m : serviceMethods.get(key)){
+                if (m.getName().equals("getServiceResponse")) continue;
+                Class<?>[] params = m.getParameterTypes();
+                if (params.length==1 ||
+                   (params.length==2 && params[1].isAssignableFrom(Database.class))){
+                    arr.add(new ServiceMethod(m));
+                }
+            }
+            if (!arr.isEmpty()) routes.put(key, arr.toArray(new ServiceMethod[arr.size()]));
+        }
+
+
+      //Add aliases for simple methods like search() or update() without a
+      //"get", "save", or "delete" prefix
+        HashMap<String, ServiceMethod[]> aliases = new HashMap<>();
+        for (String key : routes.keySet()){
+            String name = strictLookup ? key.substring(0, 1).toUpperCase() + key.substring(1) : key;
+            for (String prefix : new String[]{"get", "save", "delete"}){
+                String alias = prefix + name;
+                if (!routes.containsKey(alias)) aliases.put(alias, routes.get(key));
+            }
+        }
+
+
+      //Add aliases for POST requests (e.g. "POST /companies") that map to a
+      //"save" method (e.g. saveCompanies) that does not exist. In these cases,
+      //fallback to a "get" method (e.g. getCompanies)
+        for (String key : routes.keySet()){
+            if (!key.startsWith("get")) continue;
+            String alias = "save" + key.substring(3);
+            if (routes.containsKey(alias) || aliases.containsKey(alias)) continue;
+            aliases.put(alias, routes.get(key));
+        }
+
+
+        routes.putAll(aliases);
+        serviceRoutes = routes;
+    }
+
+
+  //**************************************************************************
+  //** updateModelRoutes
+  //**************************************************************************
+  /** Used to generate a lookup table that maps method names returned by
+   *  ServiceRequest.getMethod() to CRUD operations (e.g. "getUser",
+   *  "getUsers", "saveUser", "deleteUser"). Plural names are generated from
+   *  the registered model names and validated against the
+   *  getClassFromPluralName() method. Any name that is not found in the
+   *  table is resolved dynamically in getServiceResponse().
+   */
+    private void updateModelRoutes(){
+        HashMap<String, ModelRoute> routes = new HashMap<>();
+
+
+      //Add plural names first so that singular names take precedence
+        for (String name : classes.keySet()){
+            DomainClass c = classes.get(name);
+            ArrayList<String> plurals = new ArrayList<>();
+            plurals.add(name + "s");
+            plurals.add(name + "es");
+            if (name.endsWith("y")) plurals.add(name.substring(0, name.length()-1) + "ies");
+            for (String plural : plurals){
+                if (getClassFromPluralName(plural)!=c) continue;
+                routes.put("get" + plural, new ModelRoute(c, "list"));
+                routes.put("save" + plural, new ModelRoute(c, "saveAll"));
+                routes.put("delete" + plural, new ModelRoute(c, "deleteAll"));
+            }
+        }
+
+
+      //Add singular names
+        for (String name : classes.keySet()){
+            DomainClass c = classes.get(name);
+            routes.put("get" + name, new ModelRoute(c, "get"));
+            routes.put("save" + name, new ModelRoute(c, "save"));
+            routes.put("delete" + name, new ModelRoute(c, "delete"));
+        }
+
+        modelRoutes = routes;
     }
 
 
@@ -140,8 +371,14 @@ public abstract class WebService {
         int idx = name.lastIndexOf(".");
         if (idx>0) name = name.substring(idx+1);
 
+      //Generate model metadata (table name, fields, methods, etc). If the
+      //metadata can't be generated now, it will be generated on demand.
+        try{ ModelMetadata.get(c); }
+        catch(Exception e){}
+
         synchronized(classes){
             classes.put(name, new DomainClass(c, readOnly));
+            updateModelRoutes();
             classes.notify();
         }
     }
@@ -191,102 +428,393 @@ public abstract class WebService {
       //keyword to the request path (e.g. get, save, delete) depending on the
       //HTTP request method (e.g. GET, POST, PUT, DELETE)
         String methodName = request.getMethod();
+        if (!strictLookup) methodName = methodName.toLowerCase();
 
 
 
       //Find a concrete implementation of the requested method in the subclass
-        if (!strictLookup) methodName = methodName.toLowerCase();
-        ArrayList<Method> methods = null;
-        if (serviceMethods.containsKey(methodName)){
-            methods = serviceMethods.get(methodName);
-        }
-        else{
-            int i = 0;
-            if (methodName.startsWith("get")) i = 4;
-            if (methodName.startsWith("save")) i = 5;
-            if (methodName.startsWith("delete")) i = 6;
+        ServiceMethod[] methods = serviceRoutes.get(methodName);
+        if (methods!=null){
+            for (ServiceMethod m : methods){
 
-            if (i>0){
 
-              //Check for a simple method like search() or update() without a
-              //"get" or "save" or "delete" prefix
-                methodName = methodName.substring(i-1, i).toLowerCase() + methodName.substring(i);
-                methods = serviceMethods.get(methodName);
+              //Ensure that we don't want to invoke this function! For example,
+              //a service method might call super.getServiceResponse(request,
+              //database) for its own request, possibly from another thread
+              //(e.g. an asynchronous task). If so, we would end up in a
+              //recursion causing a stack overflow. Instead of calling the
+              //service method again, let's just flow down to the CRUD handlers
+              //below.
+                if (!request.addServiceMethod(m)) break;
 
 
-              //Special case for POST requests (e.g. "POST /companies") that
-              //map to a "save" method (e.g. saveCompanies) that does not exist.
-              //Let's check if there's a suitable "get" method instead (e.g. getCompanies).
-                if (methods==null && i==5){ // && methodName.endsWith("s")
-                    methods = serviceMethods.get("get" + methodName);
+              //If we're still here, call the requested method and return
+              //the response
+                long startTime = System.nanoTime();
+                try{
+                    return m.invoke(request, database);
+                }
+                catch(Throwable e){
+                    return new ServiceResponse(e);
+                }
+                finally{
+                    m.latency.record(System.nanoTime()-startTime);
                 }
-
             }
         }
 
 
-      //Return ServiceResponse
-        if (methods!=null){
-            for (Method m : methods){
-                Class<?>[] params = m.getParameterTypes();
+      //If we're still here, see if the requested method corresponds to a
+      //standard CRUD operation.
+        String method = strictLookup ? methodName.toLowerCase() : methodName; //don't use the original methodName!
+        ModelRoute route = modelRoutes.get(method);
+        if (route==null) route = getModelRoute(method);
+        if (route==null) return new ServiceResponse(501, "Not Implemented.");
+
+
+      //Execute the CRUD operation using the executor, if one is defined. Note
+      //that CRUD operations requested by service methods (e.g. a service
+      //method calling super.getServiceResponse) are executed immediately so
+      //that the service method can inspect the response.
+        java.util.concurrent.Executor executor = this.executor;
+        if (executor==null || request.hasServiceMethod()){
+            return getServiceResponse(route, request, database);
+        }
+        try{
+
+          //Note that the task completes the future itself rather than using
+          //supplyAsync() so that a response generated after the future was
+          //cancelled (e.g. an InputStream with a database connection) can be
+          //closed instead of being dropped.
+            ModelRoute r = route;
+            java.util.concurrent.CompletableFuture<ServiceResponse> future =
+            new java.util.concurrent.CompletableFuture<>();
+            executor.execute(() -> {
+                if (request.isCanceled()) future.cancel(false);
+                if (future.isDone()) return;
+                try{
+                    ServiceResponse response = getServiceResponse(r, request, database);
+                    if (!future.complete(response)) response.close();
+                }
+                catch(Throwable e){
+                    future.completeExceptionally(e);
+                }
+            });
+            ServiceResponse response = new ServiceResponse(future, asyncTimeout);
+            response.onCancel(request::cancel);
+            return response;
+        }
+        catch(java.util.concurrent.RejectedExecutionException e){
+            return new ServiceResponse(503, "Service Unavailable");
+        }
+    }
+
+
+  //**************************************************************************
+  //** getServiceResponse
+  //**************************************************************************
+  /** Used to execute a CRUD operation for a given route and record the
+   *  elapsed time.
+   */
+    private ServiceResponse getServiceResponse(ModelRoute route, ServiceRequest request,
+        Database database){
+        long startTime = System.nanoTime();
+        try{
+            return execute(route, request, database);
+        }
+        finally{
+            route.latency.record(System.nanoTime()-startTime);
+        }
+    }
 
 
-              //Check whether the method accepts a ServiceRequest
-              //or ServiceRequest + Database as inputs
-                Object[] inputs = null;
-                if (params.length==1){
-                    inputs = new Object[]{request};
+  //**************************************************************************
+  //** execute
+  //**************************************************************************
+  /** Used to execute a CRUD operation for a given route. Read operations are
+   *  routed to a read replica, if available (see getReadDatabase). Write
+   *  operations are executed using the given database (primary).
+   */
+    private ServiceResponse execute(ModelRoute route, ServiceRequest request,
+        Database database){
+        DomainClass c = route.domainClass;
+        switch (route.op) {
+            case "get":
+                return get(c.c, request, getReadDatabase(request, database));
+            case "list":
+                return list(c.c, request, getReadDatabase(request, database));
+            case "save":
+                if (c.isReadOnly()){
+                    return get(c.c, request, getReadDatabase(request, database));
                 }
-                else if (params.length==2){
-                    if (Database.class.isAssignableFrom(params[1])){
-                        inputs = new Object[]{request, database};
-                    }
+                else{
+                    return setLastWrite(request, save(c.c, request, database));
+                }
+            case "saveAll":
+                if (c.isReadOnly()){
+                    return list(c.c, request, getReadDatabase(request, database));
+                }
+                else if (isBatch(request)){
+                    return setLastWrite(request, saveAll(c.c, request, database));
+                }
+                else if (isBulkUpdate(request)){
+                    return setLastWrite(request, bulkUpdate(c.c, request, database));
                 }
+                else{
+                    return list(c.c, request, getReadDatabase(request, database));
+                }
+            case "deleteAll":
+                if (c.isReadOnly()){
+                    return new ServiceResponse(403, "Delete access forbidden.");
+                }
+                else{
+                    return setLastWrite(request, bulkDelete(c.c, request, database));
+                }
+            case "delete":
+                if (c.isReadOnly()){
+                    return new ServiceResponse(403, "Delete access forbidden.");
+                }
+                else{
+                    return setLastWrite(request, delete(c.c, request, database));
+                }
+        }
 
-                if (inputs!=null){
+        return new ServiceResponse(501, "Not Implemented.");
+    }
 
 
-                  //Ensure that we don't want to invoke this function!
-                  //For example, the caller might want to call
-                  //super.getServiceResponse(request, database);
-                  //If so, we would end up in a recursion causing a stack
-                  //overflow. Instead of calling getServiceResponse()
-                  //let's just flow down to the CRUD handlers below.
-                    StackTraceElement[] stackTrace = new Exception().getStackTrace();
-                    StackTraceElement el = stackTrace[1];
-                    if (m.getName().equals(el.getMethodName())){
-                        break;
-                    }
+  //**************************************************************************
+  //** setReadDatabases
+  //**************************************************************************
+  /** Used to specify one or more read replicas for read operations (e.g. get
+   *  and list requests). Write operations (e.g. save and delete) are always
+   *  executed using the database passed to getServiceResponse() (primary).
+   *  Read operations are routed to the primary when the request is pinned to
+   *  the primary (see ServiceRequest.setUsePrimary) or if the same user has
+   *  written to the database recently (see setReadAfterWriteWindow). ETags
+   *  and cached responses are not generated for reads from a replica if the
+   *  table was updated within the read-after-write window.
+   *  @param databases Read replicas. Set to null to route all requests to
+   *  the primary (default).
+   */
+    public void setReadDatabases(Database... databases){
+        if (databases!=null && databases.length==0) databases = null;
+        readDatabases = databases;
+    }
 
 
-                  //If we're still here, call the requested method and return
-                  //the response
-                    try{
-                        m.setAccessible(true);
-                        return (ServiceResponse) m.invoke(this, inputs);
-                    }
-                    catch(Exception e){
-                        return getServiceResponse(e);
-                    }
+  //**************************************************************************
+  //** setReadStrategy
+  //**************************************************************************
+  /** Used to specify how read replicas are selected.
+   *  @param strategy "round-robin" (default) or "least-loaded". The
+   *  "least-loaded" strategy selects the replica with the fewest active
+   *  connections in its connection pool.
+   */
+    public void setReadStrategy(String strategy){
+        strategy = strategy==null ? "round-robin" : strategy.trim().toLowerCase();
+        if (strategy.equals("round-robin")) leastLoaded = false;
+        else if (strategy.equals("least-loaded")) leastLoaded = true;
+        else throw new IllegalArgumentException("Unsupported strategy: " + strategy);
+    }
+
+
+  //**************************************************************************
+  //** setReadAfterWriteWindow
+  //**************************************************************************
+  /** Used to specify how long read operations are routed to the primary
+   *  after a user writes to the database so that users can read their own
+   *  writes. Users are identified using getCacheScope(). The window is also
+   *  used as the maximum replication lag when deciding whether responses
+   *  from a replica can be cached (see isReplicaLagging).
+   *  @param window Time in milliseconds. Default is 5 seconds. Set to 0 to
+   *  disable.
+   */
+    public void setReadAfterWriteWindow(long window){
+        readAfterWriteWindow = Math.max(window, 0);
+    }
+
+
+  //**************************************************************************
+  //** getReadDatabase
+  //**************************************************************************
+  /** Returns a database for read operations. Returns the primary database if
+   *  no read replicas are defined, if the request is pinned to the primary,
+   *  or if the user has written to the database recently.
+   *  @param database Primary database
+   */
+    protected Database getReadDatabase(ServiceRequest request, Database database){
+        Database[] readDatabases = this.readDatabases;
+        if (readDatabases==null) return database;
+
+
+      //Check whether to use the primary
+        if (request!=null){
+            if (request.usePrimary()) return database;
+            if (readAfterWriteWindow>0 && !lastWrites.isEmpty()){
+                String scope = getCacheScope(request);
+                Long lastWrite = scope.isEmpty() ? null : lastWrites.get(scope);
+                if (lastWrite!=null && System.currentTimeMillis()-lastWrite<readAfterWriteWindow){
+                    return database;
                 }
             }
         }
 
 
-      //If we're still here, see if the requested method corresponds to a
-      //standard CRUD operation.
-        String method = request.getMethod().toLowerCase(); //don't use methodName!
+      //Select replica
+        if (readDatabases.length==1) return readDatabases[0];
+        if (leastLoaded){
+            Database db = null;
+            int min = Integer.MAX_VALUE;
+            for (Database d : readDatabases){
+                ConnectionPool pool = d.getConnectionPool();
+                int active = pool==null ? 0 : pool.getActiveConnections();
+                if (active<min){
+                    min = active;
+                    db = d;
+                }
+            }
+            return db;
+        }
+        int idx = (nextReadDatabase.getAndIncrement() & Integer.MAX_VALUE) % readDatabases.length;
+        return readDatabases[idx];
+    }
+
+
+  //**************************************************************************
+  //** setLastWrite
+  //**************************************************************************
+  /** Used to record the time of a successful write operation for the user
+   *  associated with a request so that subsequent reads are routed to the
+   *  primary (see getReadDatabase). Failed requests and requests without a
+   *  user (i.e. getCacheScope returns an empty string) are ignored so that
+   *  anonymous users don't pin each other to the primary. Returns the given
+   *  response.
+   */
+    private ServiceResponse setLastWrite(ServiceRequest request, ServiceResponse response){
+        if (readDatabases!=null && readAfterWriteWindow>0){
+            int status = response.getStatus();
+            if (status<200 || status>299) return response;
+            String scope = getCacheScope(request);
+            if (scope.isEmpty()) return response;
+            long now = System.currentTimeMillis();
+            if (lastWrites.size()>10000){
+                lastWrites.values().removeIf(t -> now-t>readAfterWriteWindow);
+            }
+            lastWrites.put(scope, now);
+        }
+        return response;
+    }
+
+
+  //**************************************************************************
+  //** isReplicaLagging
+  //**************************************************************************
+  /** Returns true if the given database is a read replica and the table was
+   *  updated within the read-after-write window (see setReadAfterWriteWindow).
+   *  In that case, the replica may not have the latest records and the
+   *  response should not be associated with the current table version (e.g.
+   *  ETags and cached responses). Otherwise, stale data would be returned
+   *  until the table is updated again.
+   */
+    private boolean isReplicaLagging(String tableName, Database database){
+        Database[] readDatabases = this.readDatabases;
+        if (readDatabases==null || tableWrites.isEmpty()) return false;
+        boolean isReplica = false;
+        for (Database d : readDatabases){
+            if (d==database){
+                isReplica = true;
+                break;
+            }
+        }
+        if (!isReplica) return false;
+        Long lastWrite = tableWrites.get(tableName.toLowerCase());
+        return lastWrite!=null && System.currentTimeMillis()-lastWrite<readAfterWriteWindow;
+    }
+
+
+  //**************************************************************************
+  //** setExecutor
+  //**************************************************************************
+  /** Used to specify an executor for the built-in CRUD operations (e.g. a
+   *  thread pool sized to the database connection pool). When an executor
+   *  is defined, the getServiceResponse() method returns an asynchronous
+   *  ServiceResponse and the CRUD operation is executed by the executor.
+   *  If the executor rejects the request, a 503 response is returned.
+   *  @param executor Executor used to run CRUD operations. Set to null to
+   *  run CRUD operations in the calling thread (default).
+   */
+    public void setExecutor(java.util.concurrent.Executor executor){
+        this.executor = executor;
+    }
+
+
+  //**************************************************************************
+  //** setAsyncTimeout
+  //**************************************************************************
+  /** Used to set the maximum amount of time to wait for asynchronous
+   *  responses, including service methods that return a CompletableFuture
+   *  and CRUD operations run using an executor. A 504 response is returned
+   *  if the response is not ready in time. The default is 30 seconds.
+   *  @param timeout Timeout in milliseconds. Set to 0 to wait indefinitely.
+   */
+    public void setAsyncTimeout(long timeout){
+        this.asyncTimeout = Math.max(timeout, 0);
+    }
+
+
+  //**************************************************************************
+  //** getConnection
+  //**************************************************************************
+  /** Returns a connection from the database and updates the connection
+   *  metrics.
+   */
+    private static Connection getConnection(Database database) throws java.sql.SQLException {
+        connections.inc();
+        return database.getConnection();
+    }
+
+
+  //**************************************************************************
+  //** isServiceMethod
+  //**************************************************************************
+  /** Returns true if the given method returns a ServiceResponse or a
+   *  CompletableFuture (or any other CompletionStage) with a ServiceResponse.
+   */
+    private static boolean isServiceMethod(Method m){
+        Class returnType = m.getReturnType();
+        if (returnType.equals(ServiceResponse.class)) return true;
+        if (!java.util.concurrent.CompletionStage.class.isAssignableFrom(returnType)) return false;
+
+        java.lang.reflect.Type type = m.getGenericReturnType();
+        if (type instanceof java.lang.reflect.ParameterizedType){
+            java.lang.reflect.Type[] args =
+            ((java.lang.reflect.ParameterizedType) type).getActualTypeArguments();
+            return args.length==1 && args[0].equals(ServiceResponse.class);
+        }
+        return false;
+    }
+
+
+  //**************************************************************************
+  //** getModelRoute
+  //**************************************************************************
+  /** Used to resolve a CRUD operation for a method name that is not found in
+   *  the precompiled routing table (e.g. irregular plurals).
+   *  @param method Method name in lowercase (e.g. "getusers")
+   */
+    private ModelRoute getModelRoute(String method){
         if (method.startsWith("get")){
 
           //Find and return model
             String className = method.substring(3);
             DomainClass c = getClass(className);
-            if (c!=null) return get(c.c, request, database);
+            if (c!=null) return new ModelRoute(c, "get");
 
 
           //Special case for plural-form of a model. Return list of models.
             c = getClassFromPluralName(className);
-            if (c!=null) return list(c.c, request, database);
+            if (c!=null) return new ModelRoute(c, "list");
 
         }
         else if (method.startsWith("save")){
@@ -294,35 +822,25 @@ public abstract class WebService {
           //Find model and save
             String className = method.substring(4);
             DomainClass c = getClass(className);
-            if (c!=null){
-                if (c.isReadOnly()){
-                    return get(c.c, request, database);
-                }
-                else{
-                    return save(c.c, request, database);
-                }
-            }
+            if (c!=null) return new ModelRoute(c, "save");
 
 
-          //Special case for plural-form of a model. Return list of models.
+          //Special case for plural-form of a model. Save or list models.
             c = getClassFromPluralName(className);
-            if (c!=null) return list(c.c, request, database);
+            if (c!=null) return new ModelRoute(c, "saveAll");
 
         }
         else if (method.startsWith("delete")){
             String className = method.substring(6);
             DomainClass c = getClass(className);
-            if (c!=null){
-                if (c.isReadOnly()){
-                    return new ServiceResponse(403, "Delete access forbidden.");
-                }
-                else{
-                    return delete(c.c, request, database);
-                }
-            }
-        }
+            if (c!=null) return new ModelRoute(c, "delete");
 
-        return new ServiceResponse(501, "Not Implemented.");
+
+          //Special case for plural-form of a model. Delete models.
+            c = getClassFromPluralName(className);
+            if (c!=null) return new ModelRoute(c, "deleteAll");
+        }
+        return null;
     }
 
 
@@ -362,16 +880,31 @@ public abstract class WebService {
     private ServiceResponse get(Class c, ServiceRequest request, Database database) {
         try{
 
-          //Compile sql statement
-            HashMap<String, Object> tablesAndFields = getTableAndFields(c);
-            String tableName = (String) tablesAndFields.get("tableName");
-            String sql = "select " + tableName + ".id from " +  tableName +
-            " where ";
+          //Compile sql statement. If the model has simple fields, select all
+          //the columns so we can generate a response in a single query.
+          //Otherwise, select the id and use the model to generate a response.
+            ModelMetadata metadata = ModelMetadata.get(c);
+            String tableName = metadata.getTableName();
+
+
+          //Check whether the client has the latest version of the response
+            String eTag = getETag(c, tableName, request, database);
+            if (eTag!=null && request.isCacheable(eTag, null)){
+                return getNotModifiedResponse(eTag);
+            }
+
+
+            boolean selectAll = metadata.hasSimpleFields();
+            String sql = selectAll ?
+                "select " + metadata.getSelectStatement() + " from " + tableName + " where " :
+                metadata.getSelectIDStatement();
 
 
+            ArrayList<Object> params = customRecordset ? null : new ArrayList<>();
             Long id = request.getID();
             if (id==null){
-                String where = request.getWhereStatement(tablesAndFields);
+                String where = params==null ? request.getWhereStatement(metadata) :
+                               request.getWhereStatement(metadata, params);
                 if (where==null) return new ServiceResponse(404);
                 else sql += where;
             }
@@ -380,19 +913,32 @@ public abstract class WebService {
             }
 
 
-          //Apply filter
-            try (Connection conn = database.getConnection()){
-                try (Recordset rs = getRecordset(request, "get", c, sql, conn)){
-                    if (rs.EOF) id = null;
-                    else id = rs.getValue("id").toLong();
+          //Apply filter and generate json from the record as needed. Note
+          //that the json will be null if the sql was modified in the
+          //getRecordset() method and the record is missing any columns.
+            JSONObject json = null;
+            try (Connection conn = getConnection(database)){
+                try (RowReader row = getRowReader(request, "get", c, sql, params, conn)){
+                    long t = System.nanoTime();
+                    if (!row.next()) id = null;
+                    else{
+                        id = row.getValue("id").toLong();
+                        if (selectAll) json = metadata.toJson(row.getValues());
+                    }
+                    request.addTiming("hydrate", System.nanoTime()-t);
                 }
             }
             if (id==null) return new ServiceResponse(404);
+            if (json==null){
+                long t = System.nanoTime();
+                json = metadata.toJson(metadata.newInstance(id));
+                request.addTiming("hydrate", System.nanoTime()-t);
+            }
 
 
-            Object obj = newInstance(c, id);
-            Method toJson = getMethod("toJson", c);
-            return new ServiceResponse((JSONObject) toJson.invoke(obj));
+            ServiceResponse response = new ServiceResponse(json);
+            setETag(response, eTag);
+            return response;
         }
         catch(Exception e){
             return getServiceResponse(e);
@@ -409,32 +955,90 @@ public abstract class WebService {
 
 
       //Get tableName and fields associated with the Model
-        HashMap<String, Object> tablesAndFields;
-        HashSet<String> spatialFields;
+        ModelMetadata metadata;
+        Set<String> spatialFields;
         String tableName;
         try{
-            tablesAndFields = getTableAndFields(c);
-            tableName = (String) tablesAndFields.get("tableName");
-            spatialFields = (HashSet<String>) tablesAndFields.get("spatialFields");
+            metadata = ModelMetadata.get(c);
+            tableName = metadata.getTableName();
+            spatialFields = metadata.getSpatialFields();
+        }
+        catch(Exception e){
+            return getServiceResponse(e);
+        }
+
+
+      //Check whether the client has the latest version of the response
+        String eTag = getETag(c, tableName, request, database);
+        if (eTag!=null && request.isCacheable(eTag, null)){
+            return getNotModifiedResponse(eTag);
+        }
+
+
+      //Check whether the response is in the cache. Note that the table
+      //version is used to ensure that stale responses are not cached if
+      //the table is updated while the response is being generated.
+        ResponseCache responseCache = this.responseCache;
+        String cacheKey = null;
+        long tableVersion = getTableVersion(tableName).get();
+        if (responseCache!=null && useResponseCache(c, request) &&
+            !isReplicaLagging(tableName, database)){
+            cacheKey = c.getName() + "\n" + getCacheScope(request) + "\n" + request.getCacheKey();
+            ResponseCache.Entry entry = responseCache.get(cacheKey);
+            if (entry!=null){
+                ServiceResponse response = entry.toServiceResponse();
+                setETag(response, eTag);
+                return response;
+            }
+        }
+
+
+      //Get cursor for keyset pagination as needed
+        Cursor cursor;
+        try{
+            cursor = request.getCursor();
         }
         catch(Exception e){
             return getServiceResponse(e);
         }
 
 
+      //Check whether to encode spatial fields in the database
+        String spatialEncoding = this.spatialEncoding;
+        if (spatialFields.isEmpty() || !database.getDriver().equals("PostgreSQL")){
+            spatialEncoding = null;
+        }
+
+
       //Compile SQL statement
         StringBuilder sql = new StringBuilder("select ");
-        sql.append(request.getSelectStatement(tablesAndFields));
+        if (spatialEncoding==null) sql.append(request.getSelectStatement(metadata));
+        else sql.append(request.getSelectStatement(metadata,
+            spatialEncoding.equals("geojson") ? "ST_AsGeoJSON" : "ST_AsText"));
+        if (cursor!=null) sql.append(cursor.getSelectStatement());
         sql.append(" from ");
         sql.append(tableName);
-        String where = request.getWhereStatement(tablesAndFields);
-        if (where!=null){
+        ArrayList<Object> params = customRecordset ? null : new ArrayList<>();
+        String filter = request.getWhereStatement(metadata, params);
+        List<Object> filterParams = params==null ? null : new ArrayList<>(params);
+        String keysetWhere = cursor==null ? null : cursor.getWhereStatement(params);
+        if (filter!=null || keysetWhere!=null){
             sql.append(" where ");
-            sql.append(where);
+            if (filter==null) sql.append(keysetWhere);
+            else if (keysetWhere==null) sql.append(filter);
+            else{
+                sql.append("(");
+                sql.append(filter);
+                sql.append(") and ");
+                sql.append(keysetWhere);
+            }
         }
 
         Long offset = request.getOffset();
-        if (offset==null || offset<1){
+        if (cursor!=null){
+            sql.append(cursor.getOrderByStatement());
+        }
+        else if (offset==null || offset<1){
             sql.append(request.getOrderByStatement());
         }
         else{
@@ -463,261 +1067,1909 @@ public abstract class WebService {
 
       //Get output format
         String format = request.getFormat();
+        String contentType = format.equals("csv") ? "text/csv" : "application/json";
 
 
-      //Excute query and generate response
-        try (Connection conn = database.getConnection()){
-            try (Recordset rs = getRecordset(request, "list", c, sql.toString(), conn)){
+      //Start count as needed. Note that the count is only returned with the
+      //default output format.
+        ListCount count = null;
+        if (request.getCount() && !format.equals("csv") && !format.equals("json")){
+            boolean estimate = request.getCountEstimate() || counter.useEstimates();
+            count = new ListCount(tableName, filter, filterParams, estimate, database);
+        }
 
 
-                ServiceResponse response;
-                if (format.equals("csv")){
+      //Check whether to stream the response. Note that csv and json
+      //responses are not streamed when using a cursor because the next
+      //cursor is returned in a response header.
+        boolean stream = isStreaming(c, request) && cacheKey==null;
+        if (cursor!=null && (format.equals("csv") || format.equals("json"))){
+            stream = false;
+        }
 
-                    StringBuilder csv = new StringBuilder();
-                    long x = 0;
-                    while (rs.next()){
-                        if (x>0) csv.append("\r\n");
 
+      //Excute query and generate response
+        Connection conn = null;
+        RowReader rs = null;
+        boolean resetAutoCommit = false;
+        try{
+            conn = getConnection(database);
+
+
+          //Disable autocommit when streaming. Some drivers (e.g. PostgreSQL)
+          //ignore the fetch size in autocommit mode and read the entire
+          //result set into memory.
+            if (stream){
+                java.sql.Connection jdbc = conn.getConnection();
+                if (jdbc.getAutoCommit()){
+                    jdbc.setAutoCommit(false);
+                    resetAutoCommit = true;
+                }
+            }
+
+
+            rs = getRowReader(request, "list", c, sql.toString(), params, conn);
+            ListWriter writer = new ListWriter(format, spatialFields, spatialEncoding, database);
+            if (cursor!=null) writer.setCursor(cursor, request.getLimit());
+
+
+          //Stream response as needed. The stream is responsible for closing
+          //the recordset and the database connection.
+            if (stream){
+                ServiceResponse response = new ServiceResponse(
+                    new ListStream(writer, rs, conn, count, resetAutoCommit));
+                response.setContentType(contentType);
+                setETag(response, eTag);
+                return response;
+            }
+
+
+          //If we're still here, generate the entire response in memory
+            long t = System.nanoTime();
+            long rows = 0;
+            StringBuilder str = new StringBuilder();
+            while (rs.next()){
+                writer.write(rs, str);
+                rows++;
+
+
+              //Stop if the request was cancelled (e.g. async timeout). Note
+              //that JDBC queries are also cancelled by the JdbcReader.
+                if (request.isCanceled()){
+                    throw new java.sql.SQLTimeoutException("Request cancelled");
+                }
+            }
+            rs.close();
+            request.addTiming("serialize", System.nanoTime()-t);
+            request.setTimingInfo("rows", rows);
+
+
+          //Count records as needed
+            t = System.nanoTime();
+            RecordCounter.Count total = count==null ? null : count.get(conn);
+            if (count!=null) request.addTiming("count", System.nanoTime()-t);
+            conn.close();
+
+
+            writer.close(total, str);
+            ServiceResponse response = new ServiceResponse(str);
+            response.setContentType(contentType);
+            HashMap<String, String> headers = new HashMap<>();
+            String next = writer.getNext();
+            if (next!=null){
+                response.setHeader("X-Next-Cursor", next);
+                headers.put("X-Next-Cursor", next);
+            }
+
+
+          //Update cache as needed
+            if (cacheKey!=null){
+                responseCache.put(cacheKey, tableVersion, new ResponseCache.Entry(
+                tableName.toLowerCase(), (byte[]) response.getResponse(), contentType, headers));
+            }
+
+            setETag(response, eTag);
+            return response;
+        }
+        catch(Exception e){
+            if (rs!=null){
+                rs.cancel();
+                rs.close();
+            }
+            if (conn!=null){
+                if (resetAutoCommit) resetAutoCommit(conn);
+                conn.close();
+            }
+            if (count!=null) count.cancel();
+            return getServiceResponse(e);
+        }
+    }
+
+
+  //**************************************************************************
+  //** resetAutoCommit
+  //**************************************************************************
+  /** Used to end the read-only transaction used to stream records and turn
+   *  autocommit back on before a connection is returned to the pool.
+   */
+    private static void resetAutoCommit(Connection conn){
+        try{
+            java.sql.Connection jdbc = conn.getConnection();
+            jdbc.rollback();
+            jdbc.setAutoCommit(true);
+        }
+        catch(Exception e){}
+    }
+
+
+  //**************************************************************************
+  //** getRecordCounter
+  //**************************************************************************
+  /** Returns the RecordCounter used to count records for list requests with
+   *  "count=true". The RecordCounter can be used to enable count caching,
+   *  approximate counts, and parallel counts.
+   */
+    public RecordCounter getRecordCounter(){
+        return counter;
+    }
+
+
+  //**************************************************************************
+  //** ListCount
+  //**************************************************************************
+  /** Used to count records for a list request. If parallel counts are
+   *  enabled, the count is started when the class is instantiated. Otherwise,
+   *  the count is executed when the get() method is called.
+   */
+    private class ListCount {
+        private String tableName;
+        private String where;
+        private List<Object> params;
+        private boolean estimate;
+        private java.util.concurrent.CompletableFuture<RecordCounter.Count> future;
+
+      /** @param where Where clause without the "where" keyword. Optional.
+       *  @param params Values for the "?" placeholders in the where clause.
+       */
+        public ListCount(String tableName, String where, List<Object> params,
+            boolean estimate, Database database){
+            this.tableName = tableName;
+            this.where = where;
+            this.params = params;
+            this.estimate = estimate;
+            if (counter.isParallel() && counter.getCachedCount(tableName, where, params)==null){
+                future = counter.countAsync(tableName, where, params, estimate, database);
+            }
+        }
+
+        public RecordCounter.Count get(Connection conn) throws Exception {
+            if (future!=null){
+                try{
+                    return future.get();
+                }
+                catch(java.util.concurrent.ExecutionException e){
+                    Throwable t = e.getCause();
+                    if (t instanceof java.util.concurrent.CompletionException) t = t.getCause();
+                    if (t instanceof Exception) throw (Exception) t;
+                    throw e;
+                }
+            }
+            return counter.count(tableName, where, params, estimate, conn);
+        }
+
+        public void cancel(){
+            if (future!=null) future.cancel(true);
+        }
+    }
+
+
+  //**************************************************************************
+  //** setETags
+  //**************************************************************************
+  /** Used to enable or disable ETags for get and list requests associated
+   *  with a given model. When enabled, responses include an ETag derived from
+   *  the version of the table, the request, and the user (see
+   *  getCacheScope). Clients that send an "If-None-Match" header with the
+   *  current ETag receive a 304 "Not Modified" response without querying the
+   *  database. The table version is incremented whenever records are created,
+   *  updated, or deleted via this class. Applications that modify the table
+   *  by other means should call notifyChange(). Note that ETags only reflect
+   *  changes to the model table. Models with responses that depend on other
+   *  tables (e.g. via a custom getRecordset) should not use ETags or should
+   *  call notifyChange() when the other tables are updated.
+   *  @param c A Java class that extends the javaxt.sql.Model abstract class.
+   */
+    public void setETags(Class c, boolean enable){
+        if (enable) eTagModels.add(c);
+        else eTagModels.remove(c);
+    }
+
+
+  //**************************************************************************
+  //** setResponseCache
+  //**************************************************************************
+  /** Used to set the cache used to store list responses. Caching is disabled
+   *  if the cache is null (default). Models must be added to the cache using
+   *  the setCaching() method. Cached responses are removed whenever a model
+   *  is created, updated, or deleted via this class or when notifyChange()
+   *  is called.
+   */
+    public void setResponseCache(ResponseCache responseCache){
+        this.responseCache = responseCache;
+    }
+
+
+  //**************************************************************************
+  //** getResponseCache
+  //**************************************************************************
+  /** Returns the cache used to store list responses. Returns null if a
+   *  cache has not been set. The cache can be used to get cache statistics.
+   */
+    public ResponseCache getResponseCache(){
+        return responseCache;
+    }
+
+
+  //**************************************************************************
+  //** setCaching
+  //**************************************************************************
+  /** Used to enable or disable caching for list requests associated with a
+   *  given model. Note that a cache must be set using setResponseCache().
+   *  Cached responses are keyed by model, request parameters (e.g. filter,
+   *  sort, fields, offset, limit, format), and the user (see getCacheScope).
+   *  @param c A Java class that extends the javaxt.sql.Model abstract class.
+   */
+    public void setCaching(Class c, boolean enable){
+        if (enable) cachedModels.add(c);
+        else cachedModels.remove(c);
+    }
+
+
+  //**************************************************************************
+  //** useResponseCache
+  //**************************************************************************
+  /** Returns true if a list request should use the response cache. By
+   *  default, returns true for GET requests associated with models added via
+   *  setCaching(). Override this method to add custom rules (e.g. bypass the
+   *  cache for certain users or parameters). Streaming requests are not
+   *  cached.
+   */
+    protected boolean useResponseCache(Class c, ServiceRequest request){
+        if (!cachedModels.contains(c)) return false;
+        String method = request.getRequest().getMethod();
+        if (method==null || !method.equals("GET")) return false;
+        Boolean stream = request.getStream();
+        if (stream!=null && stream) return false;
+        return true;
+    }
+
+
+  //**************************************************************************
+  //** notifyChange
+  //**************************************************************************
+  /** Used to notify the service that records in a table have been created,
+   *  updated, or deleted. Increments the table version used to generate ETags
+   *  and removes cached counts for the table. This method is called
+   *  internally whenever a model is saved or deleted via this class. Call
+   *  this method directly when a table is updated outside of this class.
+   *  @param tableName Name of the table that was updated.
+   */
+    public void notifyChange(String tableName){
+        if (tableName==null) return;
+        if (readDatabases!=null) tableWrites.put(tableName.toLowerCase(), System.currentTimeMillis());
+        long version = getTableVersion(tableName).incrementAndGet();
+        counter.invalidate(tableName);
+        ResponseCache responseCache = this.responseCache;
+        if (responseCache!=null) responseCache.invalidate(tableName.toLowerCase(), version);
+    }
+
+
+  //**************************************************************************
+  //** notifyChange
+  //**************************************************************************
+  /** Used to notify the service that records associated with a given model
+   *  have been created, updated, or deleted outside of this class.
+   *  @param c A Java class that extends the javaxt.sql.Model abstract class.
+   */
+    public void notifyChange(Class c){
+        try{
+            notifyChange(ModelMetadata.get(c).getTableName());
+        }
+        catch(Exception e){}
+    }
+
+
+  //**************************************************************************
+  //** getCacheScope
+  //**************************************************************************
+  /** Returns a string used to distinguish cached responses for different
+   *  users (e.g. ETags and responses in the ResponseCache). By default, returns the name of the authenticated
+   *  user or an empty string if the request is not authenticated. Override
+   *  this method if responses depend on something other than the user (e.g.
+   *  roles or tenants) or if responses are the same for all users.
+   */
+    protected String getCacheScope(ServiceRequest request){
+        java.security.Principal user = request.getUser();
+        if (user==null) return "";
+        String name = user.getName();
+        return name==null ? "" : name;
+    }
+
+
+  //**************************************************************************
+  //** getETag
+  //**************************************************************************
+  /** Returns an ETag for a get or list request. Returns null if ETags are not
+   *  enabled for the model, if the request is not a GET request, or if the
+   *  request is executed on a read replica that may not have the latest
+   *  version of the table (see isReplicaLagging).
+   *  @param database Database used to execute the request.
+   */
+    private String getETag(Class c, String tableName, ServiceRequest request, Database database){
+        if (!eTagModels.contains(c)) return null;
+        String method = request.getRequest().getMethod();
+        if (method==null || !method.equals("GET")) return null;
+        if (isReplicaLagging(tableName, database)) return null;
+
+        long version = getTableVersion(tableName).get();
+        String key = request.getCacheKey() + "\n" + getCacheScope(request);
+        try{
+            java.security.MessageDigest md = java.security.MessageDigest.getInstance("MD5");
+            byte[] b = md.digest(key.getBytes(java.nio.charset.StandardCharsets.UTF_8));
+            StringBuilder hash = new StringBuilder();
+            for (int i=0; i<8; i++){
+                hash.append(String.format("%02x", b[i]));
+            }
+            return "\"" + epoch + "-" + version + "-" + hash + "\"";
+        }
+        catch(Exception e){
+            return null;
+        }
+    }
+
+
+  //**************************************************************************
+  //** setETag
+  //**************************************************************************
+  /** Used to add an ETag to a response. Clients are instructed to revalidate
+   *  the response before using a cached copy.
+   */
+    private void setETag(ServiceResponse response, String eTag){
+        if (eTag==null) return;
+        response.set("ETag", eTag);
+        response.setCacheControl("no-cache");
+    }
+
+
+  //**************************************************************************
+  //** getNotModifiedResponse
+  //**************************************************************************
+    private ServiceResponse getNotModifiedResponse(String eTag){
+        ServiceResponse response = new ServiceResponse(304);
+        setETag(response, eTag);
+        return response;
+    }
+
+
+  //**************************************************************************
+  //** getTableVersion
+  //**************************************************************************
+    private java.util.concurrent.atomic.AtomicLong getTableVersion(String tableName){
+        return tableVersions.computeIfAbsent(tableName.toLowerCase(),
+        k -> new java.util.concurrent.atomic.AtomicLong());
+    }
+
+
+  //**************************************************************************
+  //** setStreaming
+  //**************************************************************************
+  /** Used to enable or disable streaming for list requests associated with a
+   *  given model. When streaming is enabled, records are written to the
+   *  client as they are read from the database instead of buffering the
+   *  entire response in memory. Clients can override this setting using the
+   *  "stream" parameter (e.g. "GET /users?stream=true").
+   *  @param c A Java class that extends the javaxt.sql.Model abstract class.
+   */
+    public void setStreaming(Class c, boolean stream){
+        if (stream) streamingModels.add(c);
+        else streamingModels.remove(c);
+    }
+
+
+  //**************************************************************************
+  //** isStreaming
+  //**************************************************************************
+  /** Returns true if the response to a list request should be streamed to
+   *  the client.
+   */
+    private boolean isStreaming(Class c, ServiceRequest request){
+        Boolean stream = request.getStream();
+        if (stream!=null) return stream;
+        return streamingModels.contains(c);
+    }
+
+
+  //**************************************************************************
+  //** setSpatialEncoding
+  //**************************************************************************
+  /** Used to specify how spatial fields are encoded in list responses. By
+   *  default, geometries are returned by PostgreSQL as hex encoded WKB and
+   *  decoded using JTS (see createGeom). Alternatively, the database can be
+   *  asked to encode the geometries using PostGIS functions in the select
+   *  statement so that no decoding is required. Note that this option is
+   *  only used with PostgreSQL.
+   *  @param encoding "wkt" to return geometries as WKT strings (ST_AsText),
+   *  "geojson" to return geometries as GeoJSON objects (ST_AsGeoJSON), or
+   *  null to decode geometries using JTS.
+   */
+    public void setSpatialEncoding(String encoding){
+        if (encoding!=null){
+            encoding = encoding.trim().toLowerCase();
+            if (!encoding.equals("wkt") && !encoding.equals("geojson")){
+                throw new IllegalArgumentException("Unsupported encoding: " + encoding);
+            }
+        }
+        spatialEncoding = encoding;
+    }
+
+
+  //**************************************************************************
+  //** ListWriter
+  //**************************************************************************
+  /** Used to encode records from a Recordset as csv, json, or the default
+   *  "rows" and "cols" json format. Records are written incrementally so the
+   *  writer can be used to generate responses in memory or to stream
+   *  responses to the client.
+   */
+    private class ListWriter {
+        private String format;
+        private Set<String> spatialFields;
+        private boolean parseGeometry;
+        private boolean geoJson;
+        private Projection projection;
+        private long x = 0;
+        private Cursor cursor;
+        private Long limit;
+        private javaxt.utils.Value[] lastRow;
+        private String next;
+
+        public ListWriter(String format, Set<String> spatialFields,
+            String spatialEncoding, Database database){
+            this.format = format;
+            this.spatialFields = spatialFields;
+            this.parseGeometry = !spatialFields.isEmpty() && spatialEncoding==null &&
+                                 database.getDriver().equals("PostgreSQL");
+            this.geoJson = "geojson".equals(spatialEncoding);
+        }
+
+
+      /** Used to set the cursor used to generate a token for the next page.
+       *  The cursor key columns are expected at the end of each record and
+       *  are not written to the output.
+       */
+        public void setCursor(Cursor cursor, Long limit){
+            this.cursor = cursor;
+            this.limit = limit;
+        }
+
+
+      /** Returns the token for the next page. Returns null if a cursor was
+       *  not set or if there are no more records.
+       */
+        public String getNext(){
+            return next;
+        }
+
+
+      /** Used to append the current record in the RowReader to a buffer
+       */
+        public void write(RowReader rs, StringBuilder str) throws Exception {
+
+
+          //Create projection using the first record
+            if (projection==null) projection = new Projection(rs);
+
+
+          //Get cursor keys as needed
+            if (cursor!=null){
+                int numKeys = cursor.getKeys().size();
+                int numFields = rs.getColumnCount()-numKeys;
+                lastRow = new javaxt.utils.Value[numKeys];
+                for (int i=0; i<numKeys; i++){
+                    lastRow[i] = rs.getValue(numFields+i);
+                }
+            }
+
+
+            int[] columns = projection.columns;
+            if (format.equals("csv")){
+
+                if (x>0) str.append("\r\n");
+
+
+              //Add header row as needed
+                if (x==0){
+                    for (int i=0; i<columns.length; i++){
+                        if (i>0) str.append(",");
+                        str.append(projection.names[i]);
+                    }
+                    str.append("\r\n");
+                }
+
+
+              //Add data row
+                for (int i=0; i<columns.length; i++){
+                    if (i>0) str.append(",");
+                    javaxt.sql.Value value = rs.getValue(columns[i]);
+
+                    if (!value.isNull()){
+                        String val = value.toString();
+
+
+                      //Update spatial data as needed
+                        if (projection.spatial[i] && parseGeometry){
+                            val = createGeom(val).toString();
+                        }
+
+
+                        if (val.contains("\"") || val.contains(",")){
+                            str.append("\"");
+                            str.append(val);
+                            str.append("\"");
+                        }
+                        else{
+                            str.append(val);
+                        }
+                    }
+                }
+
+            }
+            else if (format.equals("json")){
+
+                str.append(x==0 ? "[{" : ",{");
+                for (int i=0; i<columns.length; i++){
+                    if (i>0) str.append(",");
+                    str.append(projection.keys[i]);
+                    writeValue(rs, columns[i], projection.spatial[i], str);
+                }
+                str.append("}");
+
+            }
+            else {
+
+                str.append(x==0 ? "{\"rows\":[[" : ",[");
+                for (int i=0; i<columns.length; i++){
+                    if (i>0) str.append(",");
+                    writeValue(rs, columns[i], projection.spatial[i], str);
+                }
+                str.append("]");
+            }
+
+            x++;
+        }
+
+
+      /** Used to append a JSON encoded value to a buffer. Strings, numbers,
+       *  booleans, dates, and arrays are encoded directly (see writeObject).
+       *  Other values are encoded using the JSON library.
+       */
+        private void writeValue(RowReader rs, int col, boolean isSpatial, StringBuilder str)
+            throws Exception {
+
+            Object obj = rs.getValue(col).toObject();
+            if (obj==null){
+                str.append("null");
+            }
+            else if (isSpatial){
+                if (parseGeometry) writeString(createGeom(obj.toString()).toString(), str);
+                else str.append(obj.toString()); //GeoJSON
+            }
+            else{
+                int len = str.length();
+                if (!writeObject(obj, str)){
+                    str.setLength(len);
+                    JSONValue val = rs.getJsonValue(col);
+                    if (val.isNull()){
+                        str.append("null");
+                    }
+                    else{
+                        JSONArray arr = new JSONArray();
+                        arr.add(val);
+                        String s = arr.toString();
+                        str.append(s, 1, s.length()-1);
+                    }
+                }
+            }
+        }
+
+
+      /** Used to append a JSON encoded value to a buffer without creating
+       *  intermediate JSON objects. Dates are encoded as ISO 8601 strings and
+       *  arrays are encoded recursively. Returns false if the value (or an
+       *  item in an array) is not supported, in which case the buffer may
+       *  contain a partial value.
+       */
+        private boolean writeObject(Object obj, StringBuilder str){
+            if (obj==null){
+                str.append("null");
+            }
+            else if (obj instanceof String){
+                writeString((String) obj, str);
+            }
+            else if (obj instanceof Integer || obj instanceof Long ||
+                obj instanceof Short || obj instanceof Byte || obj instanceof Boolean ||
+                obj instanceof java.math.BigDecimal || obj instanceof java.math.BigInteger){
+                str.append(obj);
+            }
+            else if (obj instanceof Double || obj instanceof Float){
+                writeNumber((Number) obj, str);
+            }
+            else if (obj instanceof java.util.Date){
+                writeString(new javaxt.utils.Date((java.util.Date) obj).toISOString(), str);
+            }
+            else if (obj instanceof javaxt.utils.Date){
+                writeString(((javaxt.utils.Date) obj).toISOString(), str);
+            }
+            else if (obj instanceof java.util.UUID || obj instanceof Character){
+                writeString(obj.toString(), str);
+            }
+            else if (obj instanceof Object[]){
+                Object[] arr = (Object[]) obj;
+                str.append("[");
+                for (int i=0; i<arr.length; i++){
+                    if (i>0) str.append(",");
+                    if (!writeObject(arr[i], str)) return false;
+                }
+                str.append("]");
+            }
+            else{
+                return false;
+            }
+            return true;
+        }
+
+
+      /** Used to append a JSON encoded floating point number to a buffer.
+       *  Trailing zeros are removed (e.g. 1.0 is written as 1) to match the
+       *  JSON library. NaN and infinite values are written as null.
+       */
+        private void writeNumber(Number n, StringBuilder str){
+            double d = n.doubleValue();
+            if (Double.isNaN(d) || Double.isInfinite(d)){
+                str.append("null");
+                return;
+            }
+            int len = str.length();
+            if (n instanceof Float) str.append(n.floatValue());
+            else str.append(d);
+            if (str.indexOf("E", len)>-1) return;
+            int end = str.length();
+            while (str.charAt(end-1)=='0') end--;
+            if (str.charAt(end-1)=='.') end--;
+            str.setLength(end);
+        }
+
+
+      /** Used to append a JSON encoded string to a buffer.
+       */
+        private void writeString(String s, StringBuilder str){
+            str.append("\"");
+            for (int i=0; i<s.length(); i++){
+                char c = s.charAt(i);
+                switch (c){
+                    case '"': str.append("\\\""); break;
+                    case '\\': str.append("\\\\"); break;
+                    case '\n': str.append("\\n"); break;
+                    case '\r': str.append("\\r"); break;
+                    case '\t': str.append("\\t"); break;
+                    case '\b': str.append("\\b"); break;
+                    case '\f': str.append("\\f"); break;
+                    default:
+                        if (c<0x20){
+                            str.append(String.format("\\u%04x", (int) c));
+                        }
+                        else{
+                            str.append(c);
+                        }
+                }
+            }
+            str.append("\"");
+        }
+
+
+      /** Used to map columns in a record to fields in the output. The
+       *  projection is generated once, using the first record, and reused
+       *  for all subsequent records. Duplicate columns and cursor keys are
+       *  excluded from the projection.
+       */
+        private class Projection {
+            private int[] columns; //column indexes
+            private String[] names; //field names
+            private String[] keys; //json encoded field names, with colon
+            private boolean[] spatial;
+
+            public Projection(RowReader rs){
+                int numFields = rs.getColumnCount();
+                if (cursor!=null) numFields = numFields-cursor.getKeys().size();
+
+                boolean csv = format.equals("csv");
+                ArrayList<Integer> idx = new ArrayList<>();
+                ArrayList<String> arr = new ArrayList<>();
+                for (int j=0; j<numFields; j++){
+                    String fieldName = rs.getColumnName(j).toLowerCase();
+                    if (!csv) fieldName = StringUtils.underscoreToCamelCase(fieldName);
+                    if (arr.contains(fieldName)) continue;
+                    idx.add(j);
+                    arr.add(fieldName);
+                }
+
+                columns = new int[idx.size()];
+                names = new String[idx.size()];
+                keys = new String[idx.size()];
+                spatial = new boolean[idx.size()];
+                for (int i=0; i<columns.length; i++){
+                    columns[i] = idx.get(i);
+                    names[i] = arr.get(i);
+
+                    StringBuilder key = new StringBuilder();
+                    writeString(names[i], key);
+                    key.append(":");
+                    keys[i] = key.toString();
+
+                    if (parseGeometry || geoJson){
+                        String fieldName = names[i];
+                        if (csv) fieldName = StringUtils.underscoreToCamelCase(fieldName);
+                        spatial[i] = spatialFields.contains(fieldName);
+                    }
+                }
+            }
+        }
+
+
+      /** Used to append closing brackets, columns, and count (optional) to
+       *  a buffer after all the records have been written.
+       */
+        public void close(RecordCounter.Count count, StringBuilder str){
+
+
+          //Generate token for the next page. If fewer records were returned
+          //than requested then there are no more records.
+            if (cursor!=null && limit!=null && x>0 && x>=limit){
+                next = cursor.getNext(lastRow);
+            }
+
+
+            if (format.equals("csv")){
+                //Nothing to add
+            }
+            else if (format.equals("json")){
+                if (x==0) str.append("[");
+                str.append("]");
+            }
+            else{
+                if (x==0) str.append("{\"rows\":[");
+                str.append("]");
+
+
+              //Append columns
+                str.append(",\"cols\":[");
+                if (projection!=null){
+                    for (int i=0; i<projection.names.length; i++){
+                        if (i>0) str.append(",");
+                        writeString(projection.names[i], str);
+                    }
+                }
+                str.append("]");
+
+
+              //Append count as needed
+                if (count!=null){
+                    str.append(",\"count\":");
+                    str.append(count.getValue());
+                    str.append(",\"countEstimated\":");
+                    str.append(count.isEstimated());
+                }
+
+
+              //Append cursor as needed
+                if (next!=null){
+                    str.append(",\"next\":\"");
+                    str.append(next);
+                    str.append("\"");
+                }
+
+                str.append("}");
+            }
+        }
+    }
+
+
+  //**************************************************************************
+  //** ListStream
+  //**************************************************************************
+  /** InputStream used to stream records from a Recordset to the client. The
+   *  stream reads records from the Recordset on demand, as the client
+   *  consumes the stream, so memory usage is bounded by the size of the
+   *  internal buffer instead of the number of records. Closes the Recordset
+   *  and database connection when the last record is read or when the
+   *  stream is closed.
+   */
+    private class ListStream extends java.io.InputStream {
+        private ListWriter writer;
+        private RowReader rs;
+        private Connection conn;
+        private ListCount count;
+        private boolean resetAutoCommit;
+        private StringBuilder str = new StringBuilder();
+        private byte[] buffer = new byte[0];
+        private int pos = 0;
+        private boolean eof = false;
+        private boolean closed = false;
+        private static final int bufferSize = 64*1024;
+
+      /** @param resetAutoCommit If true, autocommit is turned back on when the
+       *  stream is closed (see resetAutoCommit).
+       */
+        public ListStream(ListWriter writer, RowReader rs, Connection conn,
+            ListCount count, boolean resetAutoCommit){
+            this.writer = writer;
+            this.rs = rs;
+            this.conn = conn;
+            this.count = count;
+            this.resetAutoCommit = resetAutoCommit;
+        }
+
+        public int read() throws java.io.IOException {
+            if (!fill()) return -1;
+            return buffer[pos++] & 0xff;
+        }
+
+        public int read(byte[] b, int off, int len) throws java.io.IOException {
+            if (len==0) return 0;
+            if (!fill()) return -1;
+            int n = Math.min(len, buffer.length-pos);
+            System.arraycopy(buffer, pos, b, off, n);
+            pos += n;
+            return n;
+        }
+
+
+      /** Used to encode records into the buffer as needed. Returns false if
+       *  there are no more bytes to read.
+       */
+        private boolean fill() throws java.io.IOException {
+            while (pos>=buffer.length){
+                if (eof) return false;
+                str.setLength(0);
+                try{
+                    while (str.length()<bufferSize){
+                        if (rs.next()){
+                            writer.write(rs, str);
+                        }
+                        else{
+
+                          //Close recordset and count records as needed
+                            eof = true;
+                            rs.close();
+                            RecordCounter.Count total = count==null ? null : count.get(conn);
+                            close();
+
+                            writer.close(total, str);
+                            break;
+                        }
+                    }
+                }
+                catch(Exception e){
+                    close();
+                    throw new java.io.IOException(e);
+                }
+                buffer = str.toString().getBytes(java.nio.charset.StandardCharsets.UTF_8);
+                pos = 0;
+            }
+            return true;
+        }
+
+        public void close(){
+            if (closed) return;
+            closed = true;
+
+
+          //Cancel the query if the stream is closed before all the records
+          //are read (e.g. client disconnected)
+            if (!eof){
+                eof = true;
+                rs.cancel();
+            }
+
+            rs.close();
+            if (resetAutoCommit) resetAutoCommit(conn);
+            conn.close();
+            if (count!=null) count.cancel();
+        }
+    }
+
+
+  //**************************************************************************
+  //** getRowReader
+  //**************************************************************************
+  /** Returns a RowReader used to read records from the database. If the
+   *  subclass overrides the getRecordset() method, or if no parameters are
+   *  given, records are read from the Recordset returned by getRecordset().
+   *  Otherwise, the query is executed using a PreparedStatement. Note that
+   *  JDBC drivers typically cache PreparedStatements (e.g. server-side
+   *  prepared statements in PostgreSQL) so queries with the same SQL reuse
+   *  the same query plan.
+   *  @param params Values for the "?" placeholders in the SQL. Optional.
+   */
+    private RowReader getRowReader(ServiceRequest request, String op, Class c,
+        String sql, List<Object> params, Connection conn) throws Exception {
+        request.setTimingInfo("sql", sql);
+        long t = System.nanoTime();
+        try{
+            if (customRecordset || params==null){
+                return new RecordsetReader(getRecordset(request, op, c, sql, conn));
+            }
+            else{
+                return new JdbcReader(sql, params, conn.getConnection(),
+                op.equals("list") ? 1000 : 0, getQueryTimeout(c, request), request);
+            }
+        }
+        finally{
+            request.addTiming("sql", System.nanoTime()-t);
+        }
+    }
+
+
+  //**************************************************************************
+  //** setQueryTimeout
+  //**************************************************************************
+  /** Used to set the maximum amount of time that list and get queries can
+   *  run before they are cancelled. Clients can request a shorter timeout
+   *  using the "timeout" parameter (e.g. "GET /users?timeout=5"). Requests
+   *  that time out return a 504 response. Note that timeouts are not applied
+   *  to queries executed by subclasses that override getRecordset().
+   *  @param timeout Timeout in seconds. Set to 0 to disable (default).
+   */
+    public void setQueryTimeout(int timeout){
+        queryTimeout = Math.max(timeout, 0);
+    }
+
+
+  //**************************************************************************
+  //** setQueryTimeout
+  //**************************************************************************
+  /** Used to set the query timeout for a given model. Overrides the default
+   *  timeout set using setQueryTimeout(int).
+   *  @param c A Java class that extends the javaxt.sql.Model abstract class.
+   *  @param timeout Timeout in seconds. Set to 0 to disable.
+   */
+    public void setQueryTimeout(Class c, int timeout){
+        queryTimeouts.put(c, Math.max(timeout, 0));
+    }
+
+
+  //**************************************************************************
+  //** getQueryTimeout
+  //**************************************************************************
+  /** Returns the query timeout for a given model and request, in seconds.
+   *  Returns 0 if there is no timeout.
+   */
+    private int getQueryTimeout(Class c, ServiceRequest request){
+        Integer timeout = queryTimeouts.get(c);
+        if (timeout==null) timeout = queryTimeout;
+        Integer requestedTimeout = request.getTimeout();
+        if (requestedTimeout!=null){
+            if (timeout==0 || requestedTimeout<timeout) timeout = requestedTimeout;
+        }
+        return timeout;
+    }
+
+
+  //**************************************************************************
+  //** isTimeout
+  //**************************************************************************
+  /** Returns true if the given exception was caused by a query timeout or
+   *  a cancelled query.
+   */
+    private static boolean isTimeout(Throwable e){
+        while (e!=null){
+            if (e instanceof java.sql.SQLTimeoutException) return true;
+            if (e instanceof java.sql.SQLException){
+                String state = ((java.sql.SQLException) e).getSQLState();
+                if ("57014".equals(state)) return true; //query_canceled
+            }
+            if (e.getCause()==e) break;
+            e = e.getCause();
+        }
+        return false;
+    }
+
+
+  //**************************************************************************
+  //** RowReader
+  //**************************************************************************
+  /** Used to iterate through records returned by a query. Provides a common
+   *  interface for records read from a javaxt.sql.Recordset or a JDBC
+   *  ResultSet.
+   */
+    private abstract class RowReader implements AutoCloseable {
+
+      /** Used to move to the next record. Returns false if there are no more
+       *  records. */
+        public abstract boolean next() throws Exception;
+
+      /** Returns the number of columns in the record. */
+        public abstract int getColumnCount();
+
+      /** Returns the name of a column in the record. */
+        public abstract String getColumnName(int i);
+
+      /** Returns the value of a column in the record. */
+        public abstract javaxt.sql.Value getValue(int i);
+
+      /** Returns the value of a column in the record as a JSON value. */
+        public abstract JSONValue getJsonValue(int i);
+
+        public abstract void close();
+
+      /** Used to cancel a running query. */
+        public void cancel(){}
+
+      /** Returns the value of a column using a case insensitive search for
+       *  the column name. Returns a null value if the column is not found. */
+        public javaxt.sql.Value getValue(String columnName){
+            for (int i=0; i<getColumnCount(); i++){
+                if (getColumnName(i).equalsIgnoreCase(columnName)) return getValue(i);
+            }
+            return new javaxt.sql.Value(null);
+        }
+
+      /** Returns all the values in the record, keyed by column name. */
+        public HashMap<String, javaxt.sql.Value> getValues(){
+            HashMap<String, javaxt.sql.Value> values = new HashMap<>();
+            for (int i=0; i<getColumnCount(); i++){
+                String columnName = getColumnName(i).toLowerCase();
+                if (!values.containsKey(columnName)) values.put(columnName, getValue(i));
+            }
+            return values;
+        }
+    }
 
-                      //Add header row as needed
-                        if (x==0){
-                            int i = 0;
-                            HashSet<String> fieldNames = new HashSet<>();
-                            for (javaxt.sql.Field field : rs.getFields()){
-                                String fieldName = field.getName().toLowerCase();
 
-                                if (fieldNames.contains(fieldName)) continue;
-                                fieldNames.add(fieldName);
+  //**************************************************************************
+  //** RecordsetReader
+  //**************************************************************************
+    private class RecordsetReader extends RowReader {
+        private Recordset rs;
+        private javaxt.sql.Field[] fields;
+
+        public RecordsetReader(Recordset rs){
+            this.rs = rs;
+            if (!rs.EOF) fields = rs.getFields();
+        }
+
+        public boolean next(){
+            boolean hasNext = rs.next();
+            fields = rs.getFields();
+            return hasNext;
+        }
+
+        public int getColumnCount(){
+            return fields==null ? 0 : fields.length;
+        }
+
+        public String getColumnName(int i){
+            return fields[i].getName();
+        }
+
+        public javaxt.sql.Value getValue(int i){
+            return fields[i].getValue();
+        }
+
+        public JSONValue getJsonValue(int i){
+            return fields[i].toJson().get("value");
+        }
+
+        public void close(){
+            rs.close();
+        }
+    }
+
+
+  //**************************************************************************
+  //** JdbcReader
+  //**************************************************************************
+    private class JdbcReader extends RowReader {
+        private java.sql.PreparedStatement stmt;
+        private java.sql.ResultSet rs;
+        private String[] columns;
+        private javaxt.sql.Value[] values;
+        private JSONObject json = new JSONObject();
+        private ServiceRequest request;
+        private Runnable cancelHandler = this::cancel;
+
+      /** @param request If given, the query is cancelled via Statement.cancel()
+       *  when the request is cancelled (see ServiceRequest.cancel).
+       */
+        public JdbcReader(String sql, List<Object> params, java.sql.Connection conn,
+            int fetchSize, int timeout, ServiceRequest request) throws Exception {
+            try{
+                stmt = conn.prepareStatement(sql);
+                if (fetchSize>0) stmt.setFetchSize(fetchSize);
+                if (timeout>0) stmt.setQueryTimeout(timeout);
+                for (int i=0; i<params.size(); i++){
+                    stmt.setObject(i+1, params.get(i));
+                }
+                if (request!=null){
+                    this.request = request;
+                    request.addCancelHandler(cancelHandler);
+                    if (request.isCanceled()){
+                        throw new java.sql.SQLTimeoutException("Request cancelled");
+                    }
+                }
+                rs = stmt.executeQuery();
+                java.sql.ResultSetMetaData rsmd = rs.getMetaData();
+                columns = new String[rsmd.getColumnCount()];
+                for (int i=0; i<columns.length; i++){
+                    columns[i] = rsmd.getColumnLabel(i+1);
+                }
+                values = new javaxt.sql.Value[columns.length];
+            }
+            catch(Exception e){
+                close();
+                throw e;
+            }
+        }
+
+        public boolean next() throws Exception {
+            if (!rs.next()) return false;
+            for (int i=0; i<values.length; i++){
+                Object obj = rs.getObject(i+1);
+                if (obj instanceof java.sql.Array){
+                    obj = ((java.sql.Array) obj).getArray();
+                }
+                else if (obj instanceof java.sql.Clob){
+                    java.sql.Clob clob = (java.sql.Clob) obj;
+                    obj = clob.getSubString(1, (int) clob.length());
+                }
+                else if (obj!=null && obj.getClass().getName().equals("org.postgresql.util.PGobject")){
+                    obj = obj.toString();
+                }
+                values[i] = new javaxt.sql.Value(obj);
+            }
+            return true;
+        }
+
+        public int getColumnCount(){
+            return columns.length;
+        }
+
+        public String getColumnName(int i){
+            return columns[i];
+        }
+
+        public javaxt.sql.Value getValue(int i){
+            return values[i];
+        }
+
+      /** Returns the value of a column as a JSON value. The value is converted
+       *  by adding it to a JSONObject, which is how javaxt.sql.Field.toJson()
+       *  converts values for the RecordsetReader, so dates, arrays, and json
+       *  columns are serialized the same way by both readers.
+       */
+        public JSONValue getJsonValue(int i){
+            json.set("value", values[i]);
+            return json.get("value");
+        }
+
+        public void cancel(){
+            try{ if (stmt!=null && !stmt.isClosed()) stmt.cancel(); }
+            catch(Exception e){}
+        }
+
+        public void close(){
+            if (request!=null) request.removeCancelHandler(cancelHandler);
+            try{ if (rs!=null) rs.close(); }
+            catch(Exception e){}
+            try{ if (stmt!=null) stmt.close(); }
+            catch(Exception e){}
+        }
+    }
+
+
+  //**************************************************************************
+  //** save
+  //**************************************************************************
+  /** Used to create or update an object in the database. Returns the object
+   *  ID.
+   */
+    private ServiceResponse save(Class c, ServiceRequest request, Database database) {
+        try{
+
+          //Parse json
+            JSONObject json = request.getJson();
+            if (json==null || json.isEmpty()) throw new Exception("JSON is empty.");
+            Long id = json.get("id").toLong();
+            boolean isNew = id==null;
+
+
+          //Apply filter
+            ModelMetadata metadata = ModelMetadata.get(c);
+            String tableName = metadata.getTableName();
+            String sql = metadata.getSelectIDStatement() +
+            tableName + ".id=" + (id==null ? -1 : id);
+            try (Connection conn = getConnection(database)){
+                try (Recordset rs = getRecordset(request, "save", c, sql, conn)){
+                    if (rs.EOF) id = null;
+                    else id = rs.getValue("id").toLong();
+                }
+            }
+            if (id==null && !isNew) return new ServiceResponse(404);
+
+
+
+          //Reparse json (json may have changed in getRecordset)
+            json = request.getJson();
+            id = json.get("id").toLong();
+            isNew = id==null;
+
+
+          //Create new instance of the class
+            Object obj;
+            if (id!=null){
+                obj = metadata.newInstance(id);
+                beforeUpdate(obj, request);
+                metadata.update(obj, json);
+            }
+            else{
+                obj = metadata.newInstance(json);
+                beforeCreate(obj, request);
+                isNew = true;
+            }
+
+
+
+          //Call the save method
+            metadata.save(obj);
+            notifyChange(tableName);
+
+
+          //Get id
+            id = metadata.getID(obj);
+            if (id==null) return new ServiceResponse(500, "Failed to retrieve ID on save");
+
+
+          //Fire event
+            if (isNew) onCreate(obj, request);
+            else onUpdate(obj, request);
+
+
+          //Return response
+            return new ServiceResponse(id+"");
+        }
+        catch(Exception e){
+            return getServiceResponse(e);
+        }
+    }
+
+
+  //**************************************************************************
+  //** saveAll
+  //**************************************************************************
+  /** Used to create or update multiple objects in the database. The request
+   *  payload should contain a JSON array or newline delimited JSON objects.
+   *  Updates are authorized using the getRecordset() method. The
+   *  beforeCreate() and beforeUpdate() methods are called for each object
+   *  before any records are written. Records are then written using JDBC
+   *  batches in a single transaction. Models that can't be written in
+   *  batches (e.g. models that override toJson() or save(), or models with
+   *  spatial fields or many-to-many relationships) are saved individually
+   *  using the save() method. Returns a JSON array with an id or an error for
+   *  each object in the request.
+   */
+    private ServiceResponse saveAll(Class c, ServiceRequest request, Database database) {
+        try{
+
+          //Parse payload
+            byte[] payload = request.getPayload();
+            ArrayList<JSONObject> items = getBatch(request);
+            JSONObject[] results = new JSONObject[items.size()];
+            Object[] models = new Object[items.size()];
+            boolean[] isNew = new boolean[items.size()];
+            Long[] requestedIDs = new Long[items.size()];
+
+
+          //Get ids of existing records
+            ModelMetadata metadata = ModelMetadata.get(c);
+            String tableName = metadata.getTableName();
+            LinkedHashSet<Long> ids = new LinkedHashSet<>();
+            for (int i=0; i<items.size(); i++){
+                JSONObject json = items.get(i);
+                if (json==null){
+                    results[i] = getError(400, "Invalid JSON object");
+                    continue;
+                }
+                Long id = json.get("id").toLong();
+                requestedIDs[i] = id;
+                if (id!=null) ids.add(id);
+            }
+
 
-                                if (i>0) csv.append(",");
-                                csv.append(fieldName);
-                                i++;
+          //Apply filter to existing records
+            HashSet<Long> validIDs = new HashSet<>();
+            if (!ids.isEmpty()){
+                ArrayList<Long> arr = new ArrayList<>(ids);
+                try (Connection conn = getConnection(database)){
+                    for (int i=0; i<arr.size(); i+=1000){
+                        StringBuilder sql = new StringBuilder(metadata.getSelectIDStatement());
+                        sql.append(tableName);
+                        sql.append(".id in (");
+                        List<Long> chunk = arr.subList(i, Math.min(i+1000, arr.size()));
+                        for (int j=0; j<chunk.size(); j++){
+                            if (j>0) sql.append(",");
+                            sql.append(chunk.get(j));
+                        }
+                        sql.append(")");
+                        try (Recordset rs = getRecordset(request, "save", c, sql.toString(), conn)){
+                            while (rs.next()){
+                                validIDs.add(rs.getValue("id").toLong());
                             }
-                            csv.append("\r\n");
                         }
+                    }
+                }
+            }
 
 
-                      //Add data row
-                        int i = 0;
-                        HashSet<String> fieldNames = new HashSet<>();
-                        for (javaxt.sql.Field field : rs.getFields()){
-                            String fieldName = field.getName().toLowerCase();
+          //Reparse payload (payload may have changed in getRecordset)
+            if (request.getPayload()!=payload){
+                items = getBatch(request);
+                if (items.size()!=results.length){
+                    throw new IllegalArgumentException("Payload size changed");
+                }
+            }
 
-                            if (fieldNames.contains(fieldName)) continue;
-                            fieldNames.add(fieldName);
 
-                            if (i>0) csv.append(",");
-                            javaxt.sql.Value value = field.getValue();
+          //Create models and fire events
+            for (int i=0; i<items.size(); i++){
+                if (results[i]!=null) continue;
+                JSONObject json = items.get(i);
+                if (json==null){
+                    results[i] = getError(400, "Invalid JSON object");
+                    continue;
+                }
+                try{
+                    if (requestedIDs[i]!=null && !validIDs.contains(requestedIDs[i])){
+                        results[i] = getError(404, "Not found");
+                        continue;
+                    }
+                    Long id = json.get("id").toLong();
+                    if (id!=null){
+                        Object obj = metadata.newInstance(id);
+                        beforeUpdate(obj, request);
+                        metadata.update(obj, json);
+                        models[i] = obj;
+                    }
+                    else{
+                        Object obj = metadata.newInstance(json);
+                        beforeCreate(obj, request);
+                        models[i] = obj;
+                        isNew[i] = true;
+                    }
+                }
+                catch(Exception e){
+                    results[i] = getError(e);
+                }
+            }
 
-                            if (!value.isNull()){
-                                String val = value.toString();
 
+          //Save models
+            boolean isBatch;
+            try (Connection conn = getConnection(database)){
+                java.sql.Connection jdbc = conn.getConnection();
+                BatchWriter writer = new BatchWriter(metadata, jdbc);
+                isBatch = writer.isSupported();
+                if (isBatch){
+                    boolean autoCommit = jdbc.getAutoCommit();
+                    jdbc.setAutoCommit(false);
+                    try{
+                        for (int i=0; i<models.length; i++){
+                            if (models[i]==null) continue;
+                            if (isNew[i]) writer.insert(models[i]);
+                            else writer.update(models[i]);
+                        }
+                        writer.execute();
+                        jdbc.commit();
+                    }
+                    catch(Exception e){
+                        jdbc.rollback();
+                        JSONObject error = getError(e);
+                        for (int i=0; i<models.length; i++){
+                            if (models[i]==null) continue;
+                            results[i] = error;
+                            models[i] = null;
+                        }
+                    }
+                    finally{
+                        jdbc.setAutoCommit(autoCommit);
+                    }
+                }
+            }
+            if (!isBatch){
+                for (int i=0; i<models.length; i++){
+                    if (models[i]==null) continue;
+                    try{
+                        metadata.save(models[i]);
+                    }
+                    catch(Exception e){
+                        results[i] = getError(e);
+                        models[i] = null;
+                    }
+                }
+            }
+            notifyChange(tableName);
+
+
+          //Fire events and generate response
+            JSONArray arr = new JSONArray();
+            for (int i=0; i<models.length; i++){
+                Object obj = models[i];
+                if (obj!=null){
+                    if (isNew[i]) onCreate(obj, request);
+                    else onUpdate(obj, request);
+                    JSONObject result = new JSONObject();
+                    result.set("id", metadata.getID(obj));
+                    results[i] = result;
+                }
+                arr.add(results[i]);
+            }
+            return new ServiceResponse(arr);
+        }
+        catch(Exception e){
+            return getServiceResponse(e);
+        }
+    }
 
-                              //Update spatial data as needed
-                                fieldName = StringUtils.underscoreToCamelCase(fieldName);
-                                if (spatialFields.contains(fieldName)){
-                                    if (database.getDriver().equals("PostgreSQL")){
-                                        val = createGeom(val.toString()).toString();
-                                    }
-                                }
 
+  //**************************************************************************
+  //** bulkDelete
+  //**************************************************************************
+  /** Used to delete all the records that match the filter in the request
+   *  (e.g. "DELETE /users?status=expired"). See bulkUpdate() for more info.
+   */
+    private ServiceResponse bulkDelete(Class c, ServiceRequest request, Database database) {
+        return bulkOperation(c, request, database, "delete", null);
+    }
 
-                                if (val.contains("\"") || val.contains(",")){
-                                    val = "\"" + val + "\"";
-                                }
 
-                                csv.append(val);
-                            }
+  //**************************************************************************
+  //** bulkUpdate
+  //**************************************************************************
+  /** Used to update all the records that match the filter in the request.
+   *  The fields to update are defined in a "set" object in the payload (e.g.
+   *  "PUT /users?status=expired" with {"set":{"status":"archived"}}).
+   *  Records are selected using the getRecordset() method with a "save" op so
+   *  the same authorization rules apply as for regular updates. Records are
+   *  then updated in chunks using set-based update statements. Note that the
+   *  beforeUpdate() and onUpdate() methods are not called for individual
+   *  records. Instead, the beforeBulkUpdate() and onBulkUpdate() methods are
+   *  called for each chunk. Returns the number of records affected. If the
+   *  "stream" parameter is true, progress is streamed to the client using
+   *  newline delimited JSON.
+   */
+    private ServiceResponse bulkUpdate(Class c, ServiceRequest request, Database database) {
+        try{
+            ModelMetadata metadata = ModelMetadata.get(c);
+            JSONObject set = request.getJson().get("set").toJSONObject();
+            if (set==null || set.isEmpty()) throw new IllegalArgumentException("Missing values to set");
+
+            LinkedHashMap<String, JSONValue> values = new LinkedHashMap<>();
+            for (String key : set.keySet()){
+                String[] field = metadata.getField(key);
+                if (field==null || field[1]==null) throw new IllegalArgumentException("Invalid field: " + key);
+                if (field[1].equalsIgnoreCase("id")) throw new IllegalArgumentException("Cannot update id");
+                values.put(field[1], set.get(key));
+            }
 
-                            i++;
-                        }
+            return bulkOperation(c, request, database, "update", values);
+        }
+        catch(Exception e){
+            return getServiceResponse(e);
+        }
+    }
 
 
-                        x++;
-                    }
+  //**************************************************************************
+  //** bulkOperation
+  //**************************************************************************
+  /** Used to execute a bulk update or delete operation.
+   */
+    private ServiceResponse bulkOperation(Class c, ServiceRequest request, Database database,
+        String op, Map<String, JSONValue> values) {
 
+        BulkOperation operation = null;
+        try{
 
-                    response = new ServiceResponse(csv);
-                    response.setContentType("text/csv");
+          //Compile where clause. Note that a filter is required to avoid
+          //accidentally deleting or updating every record in the table.
+            ModelMetadata metadata = ModelMetadata.get(c);
+            String where = request.getWhereStatement(metadata);
+            if (where==null) throw new IllegalArgumentException("A filter is required for bulk operations");
 
-                }
-                else if (format.equals("json")){
-                    StringBuilder arr = new StringBuilder("[");
 
-                    long x = 0;
-                    while (rs.next()){
-                        JSONObject json = DbUtils.getJson(rs);
+          //Start operation
+            operation = new BulkOperation(c, request, database, op, values, where);
 
-                      //Update spatial data as needed
-                        for (String fieldName : json.keySet()){
-                            JSONValue val = json.get(fieldName);
-                            if (!val.isNull()){
-                                if (spatialFields.contains(fieldName)){
-                                    if (database.getDriver().equals("PostgreSQL")){
-                                        val = new JSONValue(createGeom(val.toString()));
-                                        json.set(fieldName, val);
-                                    }
-                                }
-                            }
-                        }
 
-                        if (x>0) arr.append(",");
-                        arr.append(json);
-                        x++;
-                    }
-                    arr.append("]");
+          //Stream progress as needed
+            Boolean stream = request.getStream();
+            if (stream!=null && stream){
+                ServiceResponse response = new ServiceResponse(new BulkOperationStream(operation));
+                response.setContentType("application/x-ndjson");
+                return response;
+            }
 
-                    response = new ServiceResponse(arr.toString());
-                    response.setContentType("application/json");
 
-                }
-                else {
+          //If we're still here, run the operation to completion
+            while (operation.next()){}
+            return new ServiceResponse(operation.toJson());
+        }
+        catch(Exception e){
+            if (operation!=null) operation.close();
+            return getServiceResponse(e);
+        }
+    }
 
-                    long x = 0;
-                    JSONArray cols = new JSONArray();
-                    StringBuilder json = new StringBuilder("{\"rows\":[");
 
-                    while (rs.next()){
-                        JSONArray row = new JSONArray();
+  //**************************************************************************
+  //** beforeBulkUpdate
+  //**************************************************************************
+  /** This method is called immediately before a chunk of records is updated
+   *  in a bulk update. Override this method to process the event. Throw an
+   *  exception to cancel the operation.
+   *  @param c The Model (Java class) associated with the request.
+   *  @param ids IDs of the records that will be updated.
+   *  @param values Column names and values that will be set.
+   */
+    public void beforeBulkUpdate(Class c, List<Long> ids, Map<String, JSONValue> values,
+        ServiceRequest request) throws Exception {};
 
-                        HashSet<String> fieldNames = new HashSet<>();
-                        for (javaxt.sql.Field field : rs.getFields()){
-                            String fieldName = field.getName().toLowerCase();
-                            fieldName = StringUtils.underscoreToCamelCase(fieldName);
 
-                            if (fieldNames.contains(fieldName)) continue;
-                            fieldNames.add(fieldName);
-                            if (x==0) cols.add(fieldName);
+  //**************************************************************************
+  //** onBulkUpdate
+  //**************************************************************************
+  /** This method is called immediately after a chunk of records is updated
+   *  in a bulk update. Override this method to process the event.
+   */
+    public void onBulkUpdate(Class c, List<Long> ids, Map<String, JSONValue> values,
+        ServiceRequest request){};
 
-                            JSONObject f = field.toJson();
-                            JSONValue val = f.get("value");
 
+  //**************************************************************************
+  //** beforeBulkDelete
+  //**************************************************************************
+  /** This method is called immediately before a chunk of records is deleted
+   *  in a bulk delete. Override this method to process the event. Throw an
+   *  exception to cancel the operation.
+   *  @param c The Model (Java class) associated with the request.
+   *  @param ids IDs of the records that will be deleted.
+   */
+    public void beforeBulkDelete(Class c, List<Long> ids, ServiceRequest request)
+        throws Exception {};
 
-                          //Update spatial data as needed
-                            if (!val.isNull()){
-                                if (spatialFields.contains(fieldName)){
-                                    if (database.getDriver().equals("PostgreSQL")){
-                                        val = new JSONValue(createGeom(val.toString()));
-                                    }
-                                }
-                            }
 
-                            row.add(val);
-                        }
+  //**************************************************************************
+  //** onBulkDelete
+  //**************************************************************************
+  /** This method is called immediately after a chunk of records is deleted
+   *  in a bulk delete. Override this method to process the event.
+   */
+    public void onBulkDelete(Class c, List<Long> ids, ServiceRequest request){};
 
-                        if (x>0) json.append(",");
-                        json.append(row.toString());
-                        x++;
-                    }
 
-                    json.append("]");
+  //**************************************************************************
+  //** BulkOperation
+  //**************************************************************************
+  /** Used to update or delete records in chunks. Chunks are defined by id
+   *  ranges: each chunk starts after the last id in the previous chunk and
+   *  ends at the id of the Nth record that matches the filter (keyset
+   *  pagination) so only one chunk of ids is held in memory and no cursor is
+   *  left open between chunks. Record IDs in a chunk are selected using a
+   *  Recordset returned by the getRecordset() method. The SQL passed to
+   *  getRecordset() is a plain "select ... where ..." statement without an
+   *  "order by" or limit so subclasses can append their own constraints.
+   *  Each chunk is written in its own transaction so that locks are held for
+   *  a short period of time.
+   */
+    private class BulkOperation {
+        private Class c;
+        private ServiceRequest request;
+        private Database database;
+        private String op;
+        private Map<String, JSONValue> values;
+        private String tableName;
+        private String selectID;
+        private String where;
+        private Connection writeConn;
+        private BatchWriter writer;
+        private Long lastID;
+        private long processed = 0;
+        private long affected = 0;
+        private boolean done = false;
+        private static final int chunkSize = 1000;
+
+      /** @param where SQL filter used to select records (e.g.
+       *  "status='expired'").
+       */
+        public BulkOperation(Class c, ServiceRequest request, Database database,
+            String op, Map<String, JSONValue> values, String where) throws Exception {
+            this.c = c;
+            this.request = request;
+            this.database = database;
+            this.op = op;
+            this.values = values;
+            this.where = where;
+            try{
+                ModelMetadata metadata = ModelMetadata.get(c);
+                tableName = metadata.getTableName();
+                selectID = metadata.getSelectIDStatement();
+                writeConn = getConnection(database);
+                writer = new BatchWriter(metadata, writeConn.getConnection());
+            }
+            catch(Exception e){
+                close();
+                throw e;
+            }
+        }
 
 
-                  //Append columns
-                    json.append(",\"cols\":");
-                    json.append(cols.toString());
+      /** Used to process the next chunk of records. Returns false when there
+       *  are no more records to process.
+       */
+        public boolean next() throws Exception {
+            if (done) return false;
+            try{
 
+              //Get ids
+                ArrayList<Long> ids = getIDs();
+                if (ids==null){
+                    close();
+                    return false;
+                }
+                if (ids.isEmpty()) return true;
 
-                  //Append count as needed
-                    if (request.getCount()){
-                        rs.close();
-                        Record r = conn.getRecord("select count(id) from " +
-                        tableName + (where==null ? "" : " where " + where));
-                        if (r!=null){
-                            json.append(",\"count\":");
-                            json.append(r.get(0).toLong());
-                        }
-                    }
 
-                    json.append("}");
-                    response = new ServiceResponse(json.toString());
-                    response.setContentType("application/json");
+              //Update or delete records
+                if (op.equals("update")){
+                    beforeBulkUpdate(c, ids, values, request);
+                    affected += writer.update(values, ids);
+                    notifyChange(tableName);
+                    onBulkUpdate(c, ids, values, request);
+                }
+                else{
+                    beforeBulkDelete(c, ids, request);
+                    affected += writer.delete(ids);
+                    notifyChange(tableName);
+                    onBulkDelete(c, ids, request);
                 }
+                processed += ids.size();
+                return true;
+            }
+            catch(Exception e){
+                close();
+                throw e;
+            }
+        }
 
-                return response;
+
+      /** Returns the ids in the next chunk of records. The list may be empty
+       *  if none of the records in the chunk are returned by getRecordset().
+       *  Returns null if there are no more records to process.
+       */
+        private ArrayList<Long> getIDs() throws Exception {
+            StringBuilder str = new StringBuilder(selectID);
+            str.append("(");
+            str.append(where);
+            str.append(")");
+            if (lastID!=null){
+                str.append(" and ");
+                str.append(tableName);
+                str.append(".id>");
+                str.append(lastID.longValue());
+            }
+
+            ArrayList<Long> ids = new ArrayList<>();
+            try (Connection conn = getConnection(database)){
+
+              //Find the last id in the chunk
+                javaxt.sql.Record record = conn.getRecord(
+                    "select max(id) from (" + str + " order by " + tableName + ".id" +
+                    ServiceRequest.getLimitStatement(chunkSize, database.getDriver()) +
+                    ") chunk"
+                );
+                Long maxID = record==null ? null : record.get(0).toLong();
+                if (maxID==null) return null;
+
+
+              //Select ids in the chunk
+                str.append(" and ");
+                str.append(tableName);
+                str.append(".id<=");
+                str.append(maxID.longValue());
+                try (Recordset rs = getRecordset(request, op.equals("update") ? "save" : "delete", c, str.toString(), conn)){
+                    while (rs.next()){
+                        ids.add(rs.getValue("id").toLong());
+                    }
+                }
+                lastID = maxID;
             }
+            Collections.sort(ids);
+            return ids;
         }
-        catch(Exception e){
-            return getServiceResponse(e);
+
+        public JSONObject toJson(){
+            JSONObject json = new JSONObject();
+            json.set("processed", processed);
+            json.set("affected", affected);
+            json.set("done", done);
+            return json;
+        }
+
+        public void close(){
+            done = true;
+            if (writeConn!=null) writeConn.close();
+            writeConn = null;
         }
     }
 
 
   //**************************************************************************
-  //** save
+  //** BulkOperationStream
   //**************************************************************************
-  /** Used to create or update an object in the database. Returns the object
-   *  ID.
+  /** InputStream used to stream the progress of a BulkOperation to the
+   *  client. A JSON object is written for each chunk of records processed.
+   *  Errors are reported in the last line.
    */
-    private ServiceResponse save(Class c, ServiceRequest request, Database database) {
-        try{
+    private class BulkOperationStream extends java.io.InputStream {
+        private BulkOperation operation;
+        private byte[] buffer = new byte[0];
+        private int pos = 0;
+        private boolean eof = false;
+
+        public BulkOperationStream(BulkOperation operation){
+            this.operation = operation;
+        }
 
-          //Parse json
-            JSONObject json = request.getJson();
-            if (json==null || json.isEmpty()) throw new Exception("JSON is empty.");
-            Long id = json.get("id").toLong();
-            boolean isNew = id==null;
+        public int read() throws java.io.IOException {
+            if (!fill()) return -1;
+            return buffer[pos++] & 0xff;
+        }
 
+        public int read(byte[] b, int off, int len) throws java.io.IOException {
+            if (len==0) return 0;
+            if (!fill()) return -1;
+            int n = Math.min(len, buffer.length-pos);
+            System.arraycopy(buffer, pos, b, off, n);
+            pos += n;
+            return n;
+        }
 
-          //Apply filter
-            HashMap<String, Object> tablesAndFields = getTableAndFields(c);
-            String tableName = (String) tablesAndFields.get("tableName");
-            String sql = "select " + tableName + ".id from " + tableName +
-            " where " + tableName + ".id=" + (id==null ? -1 : id);
-            try (Connection conn = database.getConnection()){
-                try (Recordset rs = getRecordset(request, "save", c, sql, conn)){
-                    if (rs.EOF) id = null;
-                    else id = rs.getValue("id").toLong();
-                }
+        private boolean fill(){
+            if (pos<buffer.length) return true;
+            if (eof) return false;
+            JSONObject json;
+            try{
+                operation.next();
+                json = operation.toJson();
             }
-            if (id==null && !isNew) return new ServiceResponse(404);
-
-
+            catch(Exception e){
+                json = operation.toJson();
+                json.set("error", getError(e));
+            }
+            if (operation.done) eof = true;
+            buffer = (json.toString() + "\n").getBytes(java.nio.charset.StandardCharsets.UTF_8);
+            pos = 0;
+            return true;
+        }
 
-          //Reparse json (json may have changed in getRecordset)
-            json = request.getJson();
-            id = json.get("id").toLong();
-            isNew = id==null;
+        public void close(){
+            eof = true;
+            operation.close();
+        }
+    }
 
 
-          //Create new instance of the class
-            Object obj;
-            if (id!=null){
-                obj = newInstance(c, id);
-                beforeUpdate(obj, request);
-                Method update = c.getDeclaredMethod("update", JSONObject.class);
-                update.invoke(obj, new Object[]{json});
-            }
-            else{
-                obj = newInstance(c, json);
-                beforeCreate(obj, request);
-                isNew = true;
+  //**************************************************************************
+  //** isBatch
+  //**************************************************************************
+  /** Returns true if the request payload contains a JSON array or if the
+   *  request has a newline delimited JSON content type (e.g.
+   *  "application/x-ndjson").
+   */
+    private boolean isBatch(ServiceRequest request){
+        String contentType = request.getRequest().getContentType();
+        if (contentType!=null){
+            contentType = contentType.toLowerCase();
+            if (contentType.contains("ndjson") || contentType.contains("jsonl")) return true;
+        }
+        byte[] b = request.getPayload();
+        if (b!=null){
+            for (byte c : b){
+                if (Character.isWhitespace(c)) continue;
+                return c=='[';
             }
+        }
+        return false;
+    }
 
 
+  //**************************************************************************
+  //** isBulkUpdate
+  //**************************************************************************
+  /** Returns true if the request is a PUT request with a "set" object in the
+   *  payload. See bulkUpdate() for more info.
+   */
+    private boolean isBulkUpdate(ServiceRequest request){
+        String method = request.getRequest().getMethod();
+        if (method==null || !method.equals("PUT")) return false;
+        JSONObject json = request.getJson();
+        return json!=null && json.has("set");
+    }
 
-          //Call the save method
-            Method save = getMethod("save", c);
-            save.invoke(obj);
-
-
-          //Get id
-            Method getID = getMethod("getID", c);
-            id = (Long) getID.invoke(obj);
-            if (id==null) return new ServiceResponse(500, "Failed to retrieve ID on save");
 
+  //**************************************************************************
+  //** getBatch
+  //**************************************************************************
+  /** Returns a list of JSON objects from a request payload containing a JSON
+   *  array or newline delimited JSON. Invalid entries are returned as nulls.
+   */
+    private ArrayList<JSONObject> getBatch(ServiceRequest request) throws Exception {
+        ArrayList<JSONObject> items = new ArrayList<>();
+        byte[] b = request.getPayload();
+        if (b==null) return items;
+        String str = new String(b, "UTF-8").trim();
+        if (str.startsWith("[")){
+            JSONArray arr = new JSONArray(str);
+            for (int i=0; i<arr.length(); i++){
+                JSONObject json = null;
+                try{ json = arr.get(i).toJSONObject(); }
+                catch(Exception e){}
+                items.add(json);
+            }
+        }
+        else{
+            for (String line : str.split("\n")){
+                line = line.trim();
+                if (line.isEmpty()) continue;
+                JSONObject json = null;
+                try{ json = new JSONObject(line); }
+                catch(Exception e){}
+                items.add(json);
+            }
+        }
+        return items;
+    }
 
-          //Fire event
-            if (isNew) onCreate(obj, request);
-            else onUpdate(obj, request);
 
+  //**************************************************************************
+  //** getError
+  //**************************************************************************
+  /** Returns a JSON object with an HTTP status code and error message for a
+   *  given exception. Used to report errors for individual items in a batch.
+   */
+    private JSONObject getError(Exception e){
+        ServiceResponse response = getServiceResponse(e);
+        Object msg = response.getResponse();
+        String error = msg instanceof byte[] ?
+            new String((byte[]) msg, java.nio.charset.StandardCharsets.UTF_8) :
+            e.getMessage();
+        return getError(response.getStatus(), error);
+    }
 
-          //Return response
-            return new ServiceResponse(id+"");
-        }
-        catch(Exception e){
-            return getServiceResponse(e);
-        }
+    private JSONObject getError(int status, String error){
+        JSONObject json = new JSONObject();
+        json.set("status", status);
+        json.set("error", error);
+        return json;
     }
 
 
@@ -728,12 +2980,13 @@ public abstract class WebService {
    *  of the object that was deleted.
    */
     private ServiceResponse delete(Class c, ServiceRequest request, Database database) {
-        try (Connection conn = database.getConnection()){
+        try (Connection conn = getConnection(database)){
 
           //Apply filter
+            ModelMetadata metadata = ModelMetadata.get(c);
             Long id = request.getID();
             try (Recordset rs = getRecordset(request, "delete", c,
-                "select id from " + getTableName(c.newInstance()) +
+                "select id from " + metadata.getTableName() +
                 " where id=" + id, conn)){
                 if (rs.EOF) id = null;
                 else id = rs.getValue("id").toLong();
@@ -747,7 +3000,7 @@ public abstract class WebService {
 
 
           //Create new instance of the class
-            Object obj = newInstance(c, id);
+            Object obj = metadata.newInstance(id);
 
 
           //Fire event
@@ -755,8 +3008,8 @@ public abstract class WebService {
 
 
           //Delete object
-            Method delete = getMethod("delete", c);
-            delete.invoke(obj);
+            metadata.delete(obj);
+            notifyChange(metadata.getTableName());
 
 
           //Fire event
@@ -764,9 +3017,7 @@ public abstract class WebService {
 
 
           //Return response
-            Method toJson = getMethod("toJson", c);
-            JSONObject json = (JSONObject) toJson.invoke(obj);
-            return new ServiceResponse(json);
+            return new ServiceResponse(metadata.toJson(obj));
         }
         catch(Exception e){
             return getServiceResponse(e);
@@ -912,125 +3163,15 @@ public abstract class WebService {
     }
 
 
-  //**************************************************************************
-  //** getMethod
-  //**************************************************************************
-  /** Returns a declared (public) method defined in a given class.
-   */
-    private Method getMethod(String name, Class clazz){
-        while (clazz != null) {
-            Method[] methods = clazz.getDeclaredMethods();
-            for (Method method : methods) {
-                if (method.getName().equals(name)) {
-                    return method;
-                }
-            }
-            clazz = clazz.getSuperclass();
-        }
-        return null;
-    }
-
-
-  //**************************************************************************
-  //** newInstance
-  //**************************************************************************
-  /** Returns a new instance for a given class using an ID and a connection to
-   *  the database.
-   */
-    private Object newInstance(Class c, long id) throws Exception {
-        Constructor constructor = c.getDeclaredConstructor(new Class[]{Long.TYPE});
-        return constructor.newInstance(new Object[]{id});
-    }
-
-
-  //**************************************************************************
-  //** newInstance
-  //**************************************************************************
-  /** Returns a new instance for a given class using a JSON object.
-   */
-    private Object newInstance(Class c, JSONObject json) throws Exception {
-        Constructor constructor = c.getDeclaredConstructor(new Class[]{JSONObject.class});
-        return constructor.newInstance(new Object[]{json});
-    }
-
-
-  //**************************************************************************
-  //** getTableName
-  //**************************************************************************
-  /** Returns the "tableName" private variable associated with a model
-   */
-    private String getTableName(Object obj) throws Exception {
-        java.lang.reflect.Field field = obj.getClass().getSuperclass().getDeclaredField("tableName");
-        field.setAccessible(true);
-        String tableName = (String) field.get(obj);
-        return tableName;
-    }
-
-
   //**************************************************************************
   //** getTableAndFields
   //**************************************************************************
   /** Returns a HashMap with the table name and fields associated with a given
-   *  model.
+   *  model. This method is provided for backwards compatibility. Use the
+   *  ModelMetadata class instead.
    */
     protected static HashMap<String, Object> getTableAndFields(Class c) throws Exception {
-
-        String tableName;
-        HashMap<String, String> fieldMap = new HashMap<>();
-        HashSet<String> stringFields = new HashSet<>();
-        HashSet<String> arrayFields = new HashSet<>();
-        HashSet<String> spatialFields = new HashSet<>();
-
-        Object obj = c.newInstance(); //maybe clone instead?
-
-      //Get tableName
-        java.lang.reflect.Field field = obj.getClass().getSuperclass().getDeclaredField("tableName");
-        field.setAccessible(true);
-        tableName = (String) field.get(obj);
-
-
-      //Get fieldMap
-        field = obj.getClass().getSuperclass().getDeclaredField("fieldMap");
-        field.setAccessible(true);
-        HashMap<String, String> map = (HashMap<String, String>) field.get(obj);
-        Iterator<String> it = map.keySet().iterator();
-        while (it.hasNext()){
-            String fieldName = it.next();
-            String columnName = map.get(fieldName);
-            fieldMap.put(fieldName, columnName);
-        }
-        fieldMap.put("id", "id");
-
-
-      //Get spatial fields
-        for (java.lang.reflect.Field f : obj.getClass().getDeclaredFields()){
-            Class fieldType = f.getType();
-            String packageName = fieldType.getPackage()==null ? "" :
-                                 fieldType.getPackage().getName();
-
-            if (packageName.startsWith("javaxt.geospatial.geometry") ||
-                packageName.startsWith("com.vividsolutions.jts.geom") ||
-                packageName.startsWith("org.locationtech.jts.geom")){
-                spatialFields.add(f.getName());
-            }
-
-            if (fieldType.equals(String.class) || fieldType.equals(String[].class)){
-                stringFields.add(f.getName());
-            }
-
-            if (fieldType.isArray()){
-                arrayFields.add(f.getName());
-            }
-
-        }
-
-        HashMap<String, Object> p = new HashMap<>();
-        p.put("tableName", tableName);
-        p.put("fieldMap", fieldMap);
-        p.put("stringFields", stringFields);
-        p.put("arrayFields", arrayFields);
-        p.put("spatialFields", spatialFields);
-        return p;
+        return ModelMetadata.get(c).toHashMap();
     }
 
 
@@ -1041,7 +3182,10 @@ public abstract class WebService {
   /** Returns a ServiceResponse for a given Exception.
    */
     private ServiceResponse getServiceResponse(Exception e){
-        if (e instanceof java.lang.reflect.InvocationTargetException){
+        if (isTimeout(e)){
+            return new ServiceResponse(504, "Query Timeout");
+        }
+        else if (e instanceof java.lang.reflect.InvocationTargetException){
             return new ServiceResponse(e.getCause());
         }
         else if (e instanceof SecurityException){
@@ -1059,44 +3203,10 @@ public abstract class WebService {
   //**************************************************************************
   //** createGeom
   //**************************************************************************
-  /** Used to create a JTS Geometry from a EWKT formatted string returned from
-   *  PostgreSQL/PostGIS
+  /** Used to create a JTS Geometry from a hex encoded WKB string returned
+   *  from PostgreSQL/PostGIS
    */
     public Object createGeom(String hex) throws Exception {
-
-        //byte[] b = WKBReader.hexToBytes(hex);
-        //return new WKBReader().read(b);
-
-
-        Class c;
-        try{
-            c = Class.forName("com.vividsolutions.jts.io.WKBReader");
-        }
-        catch(ClassNotFoundException e){
-            try{
-                c = Class.forName("org.locationtech.jts.io.WKBReader");
-            }
-            catch(ClassNotFoundException ex){
-                throw new Exception("JTS not found!");
-            }
-        }
-
-
-        Method hexToBytes, read;
-        hexToBytes = read = null;
-        for (Method method : c.getDeclaredMethods()) {
-            String methodName = method.getName();
-            if (methodName.equals("hexToBytes")) {
-                hexToBytes = method;
-            }
-            else if (methodName.equals("read")) {
-                Parameter[] parameters = method.getParameters();
-                if (parameters.length==1 && parameters[0].getType().equals(byte[].class)){
-                    read = method;
-                }
-            }
-        }
-        byte[] b = (byte[]) hexToBytes.invoke(null, new Object[]{hex});
-        return read.invoke(c.newInstance(), new Object[]{b});
+        return SpatialCodec.decode(hex);
     }
 }
\ No newline at end of file
@@ -1,5 +1,7 @@
 package javaxt.express.cms;
 import javaxt.express.FileManager;
+import javaxt.express.Metrics;
+import javaxt.express.ServiceResponse;
 import javaxt.express.utils.Git;
 import javaxt.express.utils.MDParser;
 import javaxt.http.servlet.*;
@@ -39,6 +41,9 @@ public abstract class WebSite extends HttpServlet {
     private AtomicLong wsID;
     private ConcurrentHashMap<String, Long> recentSaves; //paths saved via browser, to avoid double-commit
 
+    private static final Metrics.Histogram htmlTime = Metrics.histogram(
+        "javaxt_cms_html_seconds", "Time spent generating and sending html pages");
+
 
     private String[] fileExtensions = new String[]{
         ".html", ".txt", ".md"
@@ -475,6 +480,7 @@ public abstract class WebSite extends HttpServlet {
     throws ServletException, IOException {
 
         long t = System.currentTimeMillis();
+        long startTime = System.nanoTime();
         String servletPath = getServletPath();
         if (!servletPath.endsWith("/")) servletPath += "/";
 
@@ -644,6 +650,7 @@ public abstract class WebSite extends HttpServlet {
 
       //Trim the html
         html = html.trim();
+        long elapsedTime = System.nanoTime()-startTime;
         //console.log("html", System.currentTimeMillis()-t);
 
 
@@ -655,10 +662,14 @@ public abstract class WebSite extends HttpServlet {
       //Set response headers
         response.setStatus(content.getStatusCode());
         response.setContentType("text/html");
+        if (ServiceResponse.isServerTimingEnabled()){
+            response.setHeader("Server-Timing", "html;dur=" + Math.round(elapsedTime/10000d)/100d);
+        }
 
 
       //Send response
         response.write(html, lastModified);
+        htmlTime.record(System.nanoTime()-startTime);
         //console.log("sendHTML", System.currentTimeMillis()-t);
     }
 
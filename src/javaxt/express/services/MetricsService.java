@@ -0,0 +1,30 @@
+package javaxt.express.services;
+
+import javaxt.express.*;
+
+//******************************************************************************
+//**  MetricsService
+//******************************************************************************
+/**
+ *   Used to expose server metrics in the Prometheus text format. Example:
+ *   <pre>GET /metrics</pre>
+ *   Note that this service does not perform any authorization. Subclasses
+ *   can override the getServiceResponse() method to restrict access.
+ *
+ ******************************************************************************/
+
+public class MetricsService extends WebService {
+
+
+  //**************************************************************************
+  //** getMetrics
+  //**************************************************************************
+  /** Returns all the metrics in the registry.
+   */
+    public ServiceResponse getMetrics(ServiceRequest request){
+        ServiceResponse response = new ServiceResponse(Metrics.toPrometheus());
+        response.setContentType("text/plain; version=0.0.4; charset=utf-8");
+        response.setCacheControl("no-cache, no-store");
+        return response;
+    }
+}
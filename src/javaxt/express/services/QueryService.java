@@ -5,6 +5,7 @@ import javaxt.express.*;
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
 import java.io.StringReader;
+import java.io.IOException;
 import java.math.BigDecimal;
 import java.sql.SQLException;
 
@@ -45,20 +46,46 @@ public class QueryService extends WebService {
     private javaxt.io.Directory jobDir;
     private javaxt.io.Directory logDir;
     private Map<String, QueryJob> jobs = new ConcurrentHashMap<>();
-    private List<String> pendingJobs = new LinkedList<>();
-    private List<String> completedJobs = new LinkedList<>();
+    private JobQueue pendingJobs = new JobQueue();
     private java.util.List<SelectItem> selectCount;
+    private volatile long jobTTL = 60*60*1000L;
+    private volatile ResultCache resultCache;
+
+    private static final Metrics.Histogram queueTime = Metrics.histogram(
+        "javaxt_query_queue_seconds", "Time query jobs spend in the queue");
+    private static final Metrics.Histogram executionTime = Metrics.histogram(
+        "javaxt_query_execution_seconds", "Time spent executing query jobs");
+    private static final Metrics.Histogram serializationTime = Metrics.histogram(
+        "javaxt_query_serialization_seconds", "Time spent writing query results");
 
 
   //**************************************************************************
   //** Constructor
   //**************************************************************************
-  /** Used to create a new instance of this class
+  /** Used to create a new instance of this class with a single thread used
+   *  to execute queries.
    *  @param database Database connection info
    *  @param jobDir Temp directory used to save query results (required)
    *  @param logDir Directory used to log queries (optional)
    */
     public QueryService(Database database, javaxt.io.Directory jobDir, javaxt.io.Directory logDir){
+        this(database, jobDir, logDir, 1);
+    }
+
+
+  //**************************************************************************
+  //** Constructor
+  //**************************************************************************
+  /** Used to create a new instance of this class
+   *  @param database Database connection info
+   *  @param jobDir Temp directory used to save query results (required)
+   *  @param logDir Directory used to log queries (optional)
+   *  @param numThreads Number of threads used to execute queries. Jobs are
+   *  scheduled round-robin across users and each user can run up to half
+   *  of the threads at a time by default (see setMaxJobsPerUser).
+   */
+    public QueryService(Database database, javaxt.io.Directory jobDir, javaxt.io.Directory logDir, int numThreads){
+        if (numThreads<1) throw new IllegalArgumentException("Invalid \"numThreads\"");
         this.database = database;
 
       //Set path to the jobs directory
@@ -99,10 +126,88 @@ public class QueryService extends WebService {
 
 
       //Spawn threads used to execute queries
-        int numThreads = 1; //TODO: Make configurable...
+        pendingJobs.setMaxJobsPerUser(Math.max(1, numThreads/2));
         for (int i=0; i<numThreads; i++){
             new Thread(new QueryProcessor(database, this)).start();
         }
+
+
+      //Start cleanup task to remove expired jobs
+        java.util.concurrent.ScheduledExecutorService cleanupScheduler =
+        java.util.concurrent.Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r);
+            t.setDaemon(true);
+            return t;
+        });
+        cleanupScheduler.scheduleAtFixedRate(this::deleteExpiredJobs, 1, 1,
+        java.util.concurrent.TimeUnit.MINUTES);
+    }
+
+
+  //**************************************************************************
+  //** setMaxJobsPerUser
+  //**************************************************************************
+  /** Used to set the maximum number of queries a user can run at the same
+   *  time. Additional jobs wait in the queue so that other users can run
+   *  their queries.
+   */
+    public void setMaxJobsPerUser(int maxJobs){
+        if (maxJobs<1) throw new IllegalArgumentException("Invalid \"maxJobs\"");
+        pendingJobs.setMaxJobsPerUser(maxJobs);
+    }
+
+
+  //**************************************************************************
+  //** setJobTTL
+  //**************************************************************************
+  /** Used to set how long completed and failed jobs are kept after they are
+   *  done. Job output is normally deleted after it has been downloaded.
+   *  Jobs that are not downloaded, or only partially downloaded, are deleted
+   *  when they expire.
+   *  @param ttl Time in milliseconds. Default is 1 hour.
+   */
+    public void setJobTTL(long ttl){
+        jobTTL = Math.max(ttl, 0);
+    }
+
+
+  //**************************************************************************
+  //** setResultCache
+  //**************************************************************************
+  /** Used to set the cache used to store query results. Caching is disabled
+   *  by default. When enabled, jobs with the same query, offset, limit, and
+   *  output options as a previous job are completed immediately using the
+   *  cached output. Results are cached per user. Cached results are removed
+   *  when a table referenced in the query is updated via notifyChange().
+   *  Queries with temporary tables are not cached.
+   */
+    public void setResultCache(ResultCache resultCache){
+        this.resultCache = resultCache;
+    }
+
+
+  //**************************************************************************
+  //** getResultCache
+  //**************************************************************************
+  /** Returns the cache used to store query results. Returns null if a cache
+   *  has not been set. The cache can be used to get cache statistics.
+   */
+    public ResultCache getResultCache(){
+        return resultCache;
+    }
+
+
+  //**************************************************************************
+  //** notifyChange
+  //**************************************************************************
+  /** Used to notify the service that records in a table have been created,
+   *  updated, or deleted. Removes cached query results for the table.
+   *  @param tableName Name of the table that was updated.
+   */
+    public void notifyChange(String tableName){
+        super.notifyChange(tableName);
+        ResultCache resultCache = this.resultCache;
+        if (resultCache!=null) resultCache.invalidate(tableName);
     }
 
 
@@ -147,7 +252,7 @@ public class QueryService extends WebService {
                 }
             }
             else if (path.equals("tables")){
-                return getTables(request, database);
+                return getTables(request, getReadDatabase(request, database));
             }
             else{
                 return new ServiceResponse(501, "Not implemented");
@@ -182,6 +287,10 @@ public class QueryService extends WebService {
    *  <li>count - Returns total number of records regardless of offset and/or
    *  limit (optional). Default is false.
    *  </li>
+   *  <li>priority - "high" or "low" (optional). High priority jobs are
+   *  executed before low priority jobs. Default is "low" for csv, tsv, and
+   *  jsv exports and "high" for everything else.
+   *  </li>
    *  </ul>
    */
     private ServiceResponse query(ServiceRequest request, boolean async) {
@@ -205,6 +314,8 @@ public class QueryService extends WebService {
 
 
           //Parse sql statement using JSQLParser
+            request.setTimingInfo("sql", query);
+            long t = System.nanoTime();
             Select select = null;
             CreateTable createTempTable = null;
             Statements statements = CCJSqlParserUtil.parseStatements(query);
@@ -247,6 +358,7 @@ public class QueryService extends WebService {
 
           //Check whether the select statement has illegal or unsupported functions
             checkSelect((PlainSelect) select.getSelectBody());
+            request.addTiming("parse", System.nanoTime()-t);
 
 
 
@@ -261,6 +373,8 @@ public class QueryService extends WebService {
             if (count!=null && count==true){
                 params.set("count", true);
             }
+            String priority = getParameter("priority", request).toString();
+            if (priority!=null) params.set("priority", priority);
 
 
 
@@ -269,23 +383,39 @@ public class QueryService extends WebService {
             Long userID = user==null ? 0 : user.getID();
             QueryJob job = new QueryJob(userID, select, offset, limit, params);
             if (createTempTable!=null) job.addTempTable(createTempTable);
+
+
+          //Route the query to a read replica as needed. Note that temporary
+          //tables cannot be created on a hot standby so queries with temp
+          //tables are executed using the primary database.
+            job.database = createTempTable==null ?
+            getReadDatabase(request, database) : database;
             String key = job.getKey();
+
+
+          //Check whether the results are in the cache. If so, link the
+          //cached output to the job and skip the queue.
+            ResultCache resultCache = this.resultCache;
+            if (resultCache!=null && createTempTable==null){
+                job.setCacheKey(resultCache);
+                if (job.cacheKey!=null){
+                    if (resultCache.get(job.cacheKey, job.getOutput().toFile())){
+                        job.cached = true;
+                        job.cacheKey = null;
+                        job.setStatus("complete");
+                    }
+                }
+            }
             job.log();
             notify(job);
 
 
           //Update list of jobs
-            synchronized(jobs) {
-                jobs.put(key, job);
-                jobs.notify();
-            }
+            jobs.put(key, job);
 
 
           //Update pendingJobs
-            synchronized(pendingJobs) {
-                pendingJobs.add(key);
-                pendingJobs.notify();
-            }
+            if (!job.cached) pendingJobs.add(job);
 
 
           //Generate response
@@ -293,17 +423,14 @@ public class QueryService extends WebService {
                 return new ServiceResponse(job.toJson());
             }
             else{
-                synchronized (completedJobs) {
-                    while (!completedJobs.contains(key)) {
-                        try {
-                            completedJobs.wait();
-                        }
-                        catch (InterruptedException e) {
-                            break;
-                        }
-                    }
+                t = System.nanoTime();
+                try{
+                    job.future.get();
+                }
+                catch(InterruptedException | java.util.concurrent.ExecutionException e){
                 }
-                return getJobResponse(job);
+                request.addTiming("wait", System.nanoTime()-t);
+                return getJobResponse(job, request);
             }
         }
         catch(Exception e){
@@ -328,11 +455,16 @@ public class QueryService extends WebService {
   //**************************************************************************
   //** Writer
   //**************************************************************************
-  /** Used to generate json, csv, tsv, etc using records from the database
+  /** Used to generate json, csv, tsv, etc using records from the database.
+   *  Records are written to a file as they are read from the database so
+   *  memory use does not grow with the size of the result. Metadata, total
+   *  rows, and elapsed time are written at the end of the file when the
+   *  writer is closed.
    */
     private class Writer {
 
         private String format;
+        private java.io.Writer out;
         private StringBuilder str;
         private long x = 0;
         private Long elapsedTime;
@@ -341,13 +473,16 @@ public class QueryService extends WebService {
         private boolean addMetadata = false;
         private boolean isClosed = false;
 
-        public Writer(String format, boolean addMetadata){
+        public Writer(java.io.File file, String format, boolean addMetadata) throws IOException {
+            file.getParentFile().mkdirs();
+            out = new java.io.BufferedWriter(new java.io.OutputStreamWriter(
+                new java.io.FileOutputStream(file), java.nio.charset.StandardCharsets.UTF_8), 65536);
             str = new StringBuilder();
             this.format = format;
             this.addMetadata = addMetadata;
         }
 
-        public void write(Recordset rs){
+        public void write(Recordset rs) throws IOException {
             if (isClosed) return; //throw exception?
 
             Field[] fields = rs.getFields();
@@ -455,6 +590,7 @@ public class QueryService extends WebService {
             }
 
             x++;
+            flush();
         }
 
 
@@ -473,7 +609,8 @@ public class QueryService extends WebService {
         }
 
 
-        public void close(){
+        public void close() throws IOException {
+            if (isClosed) return;
             isClosed = true;
 
             if (format.equals("json")){
@@ -517,12 +654,29 @@ public class QueryService extends WebService {
                 }
             }
 
+            try{
+                flush();
+            }
+            finally{
+                out.close();
+            }
         }
 
 
-        public String toString(){
-            if (!isClosed) close();
-            return str.toString();
+      /** Used to close the file without writing the trailer (e.g. failed or
+       *  canceled query).
+       */
+        public void abort(){
+            isClosed = true;
+            try{ out.close(); }
+            catch(Exception e){}
+        }
+
+
+      /** Used to write the current row to the file. */
+        private void flush() throws IOException {
+            out.append(str);
+            str.setLength(0);
         }
     }
 
@@ -536,12 +690,9 @@ public class QueryService extends WebService {
 
         User user = (User) request.getUser();
         JSONArray arr = new JSONArray();
-        synchronized (jobs) {
-            for (String key : jobs.keySet()){
-                QueryJob job = jobs.get(key);
-                if (job.userID==user.getID()){
-                    arr.add(job.toJson());
-                }
+        for (QueryJob job : jobs.values()){
+            if (job.userID==user.getID()){
+                arr.add(job.toJson());
             }
         }
 
@@ -561,20 +712,17 @@ public class QueryService extends WebService {
         Long userID = user==null ? 0 : user.getID();
         QueryJob job = getJob(id, userID);
         if (job==null) return new ServiceResponse(404);
-        return getJobResponse(job);
+        return getJobResponse(job, request);
     }
 
 
   //**************************************************************************
   //** getJob
   //**************************************************************************
-  /** Returns a job for a given jobID and user. Checks both the pending and
-   *  completed job queues.
+  /** Returns a job for a given jobID and user.
    */
     private QueryJob getJob(String jobID, long userID){
-        synchronized (jobs) {
-            return jobs.get(userID + ":" + jobID);
-        }
+        return jobs.get(userID + ":" + jobID);
     }
 
 
@@ -585,7 +733,7 @@ public class QueryService extends WebService {
    *  or is complete, returns the output of the job. If the job is pending or
    *  running, simply returns the job status.
    */
-    private ServiceResponse getJobResponse(QueryJob job){
+    private ServiceResponse getJobResponse(QueryJob job, ServiceRequest request){
         ServiceResponse response;
         if (job.status.equals("failed")){
             javaxt.io.File file = job.getOutput();
@@ -594,11 +742,27 @@ public class QueryService extends WebService {
             deleteJob(job);
         }
         else if (job.status.equals("complete")){
+
+          //Add job timings to the request
+            request.addTiming("queue", job.queueTime);
+            request.addTiming("sql", job.executionTime);
+            request.addTiming("write", job.writeTime);
+            request.setTimingInfo("sql", job.getQuery());
+            request.setTimingInfo("rows", job.rows);
+
+
+          //Stream results from the output file. The job is deleted after
+          //the entire file has been sent or when the job expires (see
+          //setJobTTL). Clients can request partial content using a "Range"
+          //header to resume a download.
             javaxt.io.File file = job.getOutput();
-            String str = file.getText();
-            response = new ServiceResponse(str);
+            if (!file.exists()){
+                deleteJob(job);
+                return new ServiceResponse(404);
+            }
+            response = new ServiceResponse(file.toFile());
             response.setContentType(file.getContentType());
-            deleteJob(job);
+            response.onComplete(() -> deleteJob(job));
         }
         else{
             response = new ServiceResponse(job.status);
@@ -610,29 +774,35 @@ public class QueryService extends WebService {
   //**************************************************************************
   //** deleteJob
   //**************************************************************************
-  /** Removes a job from the queue and deletes any output files that might
-   *  have been created with the job.
+  /** Removes a job from the list of jobs and deletes any output files that
+   *  might have been created with the job. Pending jobs are canceled and
+   *  removed from the queue when they reach the front of the line.
    */
     private void deleteJob(QueryJob job){
+        job.setStatus("canceled");
+        jobs.remove(job.getKey());
 
-        String key = job.getKey();
-        synchronized(pendingJobs){
-            pendingJobs.remove(key);
-            pendingJobs.notify();
-        }
+        javaxt.io.File file = job.getOutput();
+        file.delete();
+    }
 
-        synchronized (completedJobs) {
-            completedJobs.remove(key);
-            completedJobs.notify();
-        }
 
-        synchronized (jobs) {
-            jobs.remove(key);
-            jobs.notify();
+  //**************************************************************************
+  //** deleteExpiredJobs
+  //**************************************************************************
+  /** Used to delete jobs that completed or failed before the job TTL.
+   */
+    private void deleteExpiredJobs(){
+        try{
+            long now = System.currentTimeMillis();
+            for (QueryJob job : new ArrayList<>(jobs.values())){
+                long endTime = job.endTime;
+                if (endTime>0 && now-endTime>jobTTL) deleteJob(job);
+            }
+            ResultCache resultCache = this.resultCache;
+            if (resultCache!=null) resultCache.removeExpired();
         }
-
-        javaxt.io.File file = job.getOutput();
-        file.delete();
+        catch(Exception e){}
     }
 
 
@@ -649,52 +819,61 @@ public class QueryService extends WebService {
         if (job==null) return new ServiceResponse(404);
 
 
-        String key = job.getKey();
-        synchronized(pendingJobs){
-            pendingJobs.remove(key);
-            pendingJobs.notify();
-        }
+      //Use the database associated with the job (e.g. read replica)
+        if (job.database!=null) database = job.database;
 
 
+      //Update job status and cancel the query in the database if the job is
+      //running. Pending jobs are skipped by the query processors so there is
+      //nothing else to do. Jobs that are done are simply deleted.
+        try{
+            if (!job.cancel(database)){
+                deleteJob(job);
+                return new ServiceResponse(job.toJson());
+            }
+        }
+        catch(Exception e){
+            notify(job);
+            return new ServiceResponse(500, "failed to cancel query");
+        }
+        notify(job);
 
-        try (Connection conn = database.getConnection()) {
 
-          //Update job status
-            job.status = "canceled";
-            job.updated = new javaxt.utils.Date();
-            notify(job);
+      //Update queue
+        deleteJob(job);
 
 
-          //Cancel the query in the database
-            if (database.getDriver().equals("PostgreSQL")){
-                Integer pid = getPid(job.getKey(), conn);
-                if (pid!=null){
-                    boolean jobCanceled = false;
+      //return response
+        return new ServiceResponse(job.toJson());
+    }
 
-                    javaxt.sql.Record record = conn.getRecord("SELECT pg_cancel_backend(" + pid + ")");
-                    if (record!=null) jobCanceled = record.get(0).toBoolean();
 
-                    if (!jobCanceled){
-                        record = conn.getRecord("SELECT pg_terminate_backend(" + pid + ")");
-                        if (record!=null) jobCanceled = record.get(0).toBoolean();
-                    }
+  //**************************************************************************
+  //** cancelQuery
+  //**************************************************************************
+  /** Used to cancel a running query in the database. Currently only
+   *  supported for PostgreSQL.
+   */
+    private void cancelQuery(QueryJob job, Database database) throws Exception {
+        if (!database.getDriver().equals("PostgreSQL")) return;
+        try (Connection conn = database.getConnection()) {
+            Integer pid = getPid(job.getKey(), conn);
+            if (pid!=null){
+                boolean jobCanceled = false;
 
+                javaxt.sql.Record record = conn.getRecord("SELECT pg_cancel_backend(" + pid + ")");
+                if (record!=null) jobCanceled = record.get(0).toBoolean();
 
-                    if (!jobCanceled){
-                        throw new Exception();
-                    }
+                if (!jobCanceled){
+                    record = conn.getRecord("SELECT pg_terminate_backend(" + pid + ")");
+                    if (record!=null) jobCanceled = record.get(0).toBoolean();
                 }
-            }
 
-          //Update queue
-            deleteJob(job);
 
-
-          //return response
-            return new ServiceResponse(job.toJson());
-        }
-        catch(Exception e){
-            return new ServiceResponse(500, "failed to cancel query");
+                if (!jobCanceled){
+                    throw new Exception();
+                }
+            }
         }
     }
 
@@ -799,11 +978,25 @@ public class QueryService extends WebService {
         private LongValue limit;
         private javaxt.utils.Date created;
         private javaxt.utils.Date updated;
-        private String status;
+        private volatile String status;
         private String format;
         private boolean countTotal = false;
         private boolean addMetadata = false;
         private CreateTable tempTable;
+        private Database database;
+        private long queueTime; //nanoseconds
+        private long executionTime; //nanoseconds
+        private long writeTime; //nanoseconds
+        private long rows;
+        private boolean highPriority;
+        private boolean cached;
+        private String cacheKey;
+        private java.util.List<String> tables;
+        private long cacheVersion;
+        private volatile long startTime; //time when the job started running
+        private volatile long endTime; //time when the job completed, failed, or was canceled
+        private final java.util.concurrent.CompletableFuture<QueryJob> future =
+            new java.util.concurrent.CompletableFuture<>();
 
 
         public QueryJob(long userID, Select select, Long offset, Long limit, JSONObject params) {
@@ -832,6 +1025,10 @@ public class QueryService extends WebService {
             if (params.has("metadata")){
                 addMetadata = params.get("metadata").toBoolean();
             }
+
+            String priority = params.get("priority").toString();
+            if (priority==null) highPriority = this.format.equals("json");
+            else highPriority = priority.trim().equalsIgnoreCase("high");
         }
 
         public String getID(){
@@ -862,6 +1059,48 @@ public class QueryService extends WebService {
             return status.equals("canceled");
         }
 
+      /** Returns true if the job is complete, failed, or canceled. */
+        public boolean isDone(){
+            String status = this.status;
+            return status.equals("complete") || status.equals("failed") ||
+            status.equals("canceled");
+        }
+
+      /** Returns a future that is completed when the job is done. */
+        public java.util.concurrent.CompletableFuture<QueryJob> getFuture(){
+            return future;
+        }
+
+      /** Used to update the status of the job. Returns false if the job is
+       *  already done (e.g. a job that was canceled cannot be completed).
+       */
+        private synchronized boolean setStatus(String status){
+            if (isDone()) return false;
+            long now = System.currentTimeMillis();
+            this.status = status;
+            this.updated = new javaxt.utils.Date(now);
+            if (status.equals("running")) startTime = now;
+            if (isDone()){
+                endTime = now;
+                future.complete(this);
+            }
+            return true;
+        }
+
+      /** Used to cancel the job. If the job is running, the query is
+       *  canceled in the database while the job is locked so that the job
+       *  cannot transition from pending to running (or from running to
+       *  complete) between the status check and the cancel. Returns false if
+       *  the job is already done.
+       *  @param database Database used to execute the query.
+       */
+        private synchronized boolean cancel(Database database) throws Exception {
+            boolean isRunning = status.equals("running");
+            if (!setStatus("canceled")) return false;
+            if (isRunning) cancelQuery(this, database);
+            return true;
+        }
+
         public String getQuery(){
             PlainSelect plainSelect = (PlainSelect) select.getSelectBody();
 
@@ -894,6 +1133,24 @@ public class QueryService extends WebService {
             return query;
         }
 
+      /** Used to generate a key used to cache query results. The key is
+       *  based on the normalized query (including offset and limit), output
+       *  options, and user. The cache key is not set if the tables in the
+       *  query cannot be identified.
+       */
+        private void setCacheKey(ResultCache resultCache){
+            try{
+                tables = new net.sf.jsqlparser.util.TablesNamesFinder().getTableList((Statement) select);
+                if (tables==null || tables.isEmpty()) return;
+                cacheVersion = resultCache.getVersion();
+                cacheKey = userID + ":" + format + ":" + addMetadata + ":" +
+                countTotal() + ":" + getQuery();
+            }
+            catch(Throwable t){
+                cacheKey = null;
+            }
+        }
+
         public String getCountQuery(){
 
             PlainSelect plainSelect = (PlainSelect) select.getSelectBody();
@@ -957,11 +1214,118 @@ public class QueryService extends WebService {
             json.set("query", getQuery());
             json.set("created_at", created);
             json.set("updated_at", updated);
+            json.set("priority", highPriority ? "high" : "low");
+            if (cached) json.set("cached", true);
+
+
+          //Add wait and run times (milliseconds)
+            long now = System.currentTimeMillis();
+            long startTime = this.startTime;
+            long endTime = this.endTime;
+            if (startTime==0){
+                json.set("wait_time", (endTime==0 ? now : endTime)-created.getTime());
+            }
+            else{
+                json.set("wait_time", startTime-created.getTime());
+                json.set("run_time", (endTime==0 ? now : endTime)-startTime);
+            }
             return json;
         }
     }
 
 
+  //**************************************************************************
+  //** JobQueue
+  //**************************************************************************
+  /** Used to schedule pending jobs. Jobs are grouped by user and users are
+   *  served round-robin so that a user with many jobs can't block other
+   *  users. High priority jobs are executed before low priority jobs and
+   *  users that are running the maximum number of jobs are skipped until one
+   *  of their jobs is done.
+   */
+    private class JobQueue {
+        private LinkedHashMap<Long, LinkedList<QueryJob>[]> users = new LinkedHashMap<>();
+        private HashMap<Long, Integer> running = new HashMap<>();
+        private int maxJobsPerUser = 1;
+        private int size = 0;
+
+        public synchronized void setMaxJobsPerUser(int maxJobs){
+            maxJobsPerUser = maxJobs;
+            notifyAll();
+        }
+
+        public synchronized void add(QueryJob job){
+            LinkedList<QueryJob>[] queues = users.get(job.userID);
+            if (queues==null){
+                queues = new LinkedList[]{new LinkedList<>(), new LinkedList<>()};
+                users.put(job.userID, queues);
+            }
+            queues[job.highPriority ? 0 : 1].add(job);
+            size++;
+            notifyAll();
+        }
+
+      /** Returns the next job to execute. Waits until a job is available. */
+        public synchronized QueryJob take() throws InterruptedException {
+            while (true){
+                QueryJob job = next();
+                if (job!=null) return job;
+                wait();
+            }
+        }
+
+      /** Called when a job returned by take() is done. */
+        public synchronized void done(QueryJob job){
+            Integer n = running.get(job.userID);
+            if (n==null || n<=1) running.remove(job.userID);
+            else running.put(job.userID, n-1);
+            notifyAll();
+        }
+
+        public synchronized int size(){
+            return size;
+        }
+
+      /** Returns the first high priority job from the users that are under
+       *  the limit, in round-robin order. Falls back to low priority jobs.
+       *  The user is moved to the end of the line. Jobs that were canceled
+       *  while in the queue are discarded.
+       */
+        private QueryJob next(){
+            if (size==0) return null;
+            for (int i=0; i<2; i++){
+                Iterator<Long> it = users.keySet().iterator();
+                while (it.hasNext()){
+                    Long userID = it.next();
+                    LinkedList<QueryJob>[] queues = users.get(userID);
+                    while (!queues[i].isEmpty() && queues[i].getFirst().isCanceled()){
+                        queues[i].removeFirst();
+                        size--;
+                    }
+                    if (queues[0].isEmpty() && queues[1].isEmpty()){
+                        it.remove();
+                        continue;
+                    }
+
+                    Integer n = running.get(userID);
+                    if (n!=null && n>=maxJobsPerUser) continue;
+                    if (queues[i].isEmpty()) continue;
+
+                    QueryJob job = queues[i].removeFirst();
+                    size--;
+                    users.remove(userID);
+                    if (!queues[0].isEmpty() || !queues[1].isEmpty()){
+                        users.put(userID, queues);
+                    }
+                    running.put(userID, n==null ? 1 : n+1);
+                    return job;
+                }
+            }
+            return null;
+        }
+    }
+
+
   //**************************************************************************
   //** QueryProcessor
   //**************************************************************************
@@ -980,42 +1344,33 @@ public class QueryService extends WebService {
 
             while (true) {
 
-                Object obj = null;
-                synchronized (pendingJobs) {
-                    while (pendingJobs.isEmpty()) {
-                        try {
-                          pendingJobs.wait();
-                        }
-                        catch (InterruptedException e) {
-                          return;
-                        }
-                    }
-                    obj = pendingJobs.get(0);
-                    if (obj!=null) pendingJobs.remove(0);
-                    pendingJobs.notifyAll();
+              //Get the next job from the scheduler. Blocks until a job is
+              //available for a user that is under the concurrency limit.
+                QueryJob job = null;
+                try{
+                    job = pendingJobs.take();
+                }
+                catch(InterruptedException e){
+                    return;
                 }
 
-                if (obj!=null){
-
-                  //Find query job
-                    String key = (String) obj;
-                    QueryJob job = null;
-                    synchronized (jobs) {
-                        job = jobs.get(key);
-                    }
+                if (job!=null){
 
-                    if (job!=null && !job.isCanceled()){
+                  //Update job status and set start time. Skip jobs that were
+                  //canceled while in the queue.
+                    if (job.setStatus("running")){
                         Connection conn = null;
+                        Writer writer = null;
                         try{
-
-                          //Update job status and set start time
-                            job.status = "running";
-                            job.updated = new javaxt.utils.Date();
-                            long startTime = System.currentTimeMillis();
+                            long startTime = job.startTime;
+                            job.queueTime = (startTime-job.created.getTime())*1000000L;
+                            queueTime.record(job.queueTime);
+                            long t = System.nanoTime();
                             queryService.notify(job);
 
 
                           //Open database connection
+                            Database database = job.database==null ? this.database : job.database;
                             conn = database.getConnection();
 
 
@@ -1030,14 +1385,24 @@ public class QueryService extends WebService {
                             }
 
 
-                          //Execute query and generate response
+                          //Execute query and write records to the output file. Use
+                          //a fetch size so the driver doesn't load the entire
+                          //result set into memory.
                             String query = job.getQuery();
-                            Writer writer = new Writer(job.getOutputFormat(), job.addMetadata());
-                            Recordset rs = conn.getRecordset("--" + job.getKey() + "\n" + query);
-                            while (rs.next()){
-                                writer.write(rs);
+                            writer = new Writer(job.getOutput().toFile(), job.getOutputFormat(), job.addMetadata());
+                            Recordset rs = new Recordset();
+                            rs.setFetchSize(1000);
+                            try{
+                                if (job.isCanceled()) throw new Exception();
+                                rs.open("--" + job.getKey() + "\n" + query, conn);
+                                while (rs.next()){
+                                    writer.write(rs);
+                                    if (job.isCanceled()) throw new Exception();
+                                }
+                            }
+                            finally{
+                                rs.close();
                             }
-                            rs.close();
                             if (job.isCanceled()) throw new Exception();
 
 
@@ -1069,30 +1434,42 @@ public class QueryService extends WebService {
 
                           //Set elapsed time
                             writer.setElapsedTime(System.currentTimeMillis()-startTime);
+                            job.executionTime = System.nanoTime()-t;
+                            job.rows = writer.x;
+                            executionTime.record(job.executionTime);
 
 
-                          //Write output to a file
-                            javaxt.io.File file = job.getOutput();
-                            file.write(writer.toString());
+                          //Write trailer (e.g. metadata, total rows, elapsed time)
+                          //and close the output file
+                            t = System.nanoTime();
+                            writer.close();
+                            job.writeTime = System.nanoTime()-t;
+                            serializationTime.record(job.writeTime);
+
+
+                          //Add output file to the cache as needed
+                            ResultCache resultCache = queryService.resultCache;
+                            if (resultCache!=null && job.cacheKey!=null){
+                                resultCache.put(job.cacheKey, job.getOutput().toFile(),
+                                job.tables, job.cacheVersion);
+                            }
 
 
                           //Update job status
-                            job.status = "complete";
-                            job.updated = new javaxt.utils.Date();
+                            if (!job.setStatus("complete")) throw new Exception();
                             queryService.notify(job);
                         }
                         catch(Exception e){
+                            if (writer!=null) writer.abort();
                             if (conn!=null) conn.close();
                             javaxt.io.File file = job.getOutput();
                             if (job.isCanceled()){
                                 file.delete();
                             }
                             else{
-                                job.status = "failed";
-                                job.updated = new javaxt.utils.Date();
-                                queryService.notify(job);
-
 
+                              //Write error to the output file before updating
+                              //the status so the file is ready for clients
                                 java.io.PrintStream ps = null;
                                 try {
                                     file.create();
@@ -1104,18 +1481,16 @@ public class QueryService extends WebService {
                                     if (ps!=null) ps.close();
                                     file.write(e.getMessage());
                                 }
-                            }
-                        }
-
 
-                      //Add job to the completedJobs
-                        if (!job.isCanceled()){
-                            synchronized(completedJobs){
-                                completedJobs.add(job.getKey());
-                                completedJobs.notify();
+                                if (job.setStatus("failed")) queryService.notify(job);
+                                else file.delete();
                             }
                         }
                     }
+
+
+                  //Release the slot held by the user
+                    pendingJobs.done(job);
                 }
                 else{
                     return;
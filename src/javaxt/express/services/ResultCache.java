@@ -0,0 +1,327 @@
+package javaxt.express.services;
+
+import java.util.*;
+import java.nio.file.Files;
+import javaxt.json.JSONObject;
+
+//******************************************************************************
+//**  ResultCache
+//******************************************************************************
+/**
+ *   Used to cache query results generated by the QueryService. Results are
+ *   stored as files in a cache directory and are keyed by the normalized
+ *   query along with the output options and user. Files are added to the
+ *   cache using hard links, when supported by the file system, so the job
+ *   output is not copied. Entries expire after a given TTL and are evicted
+ *   using a least recently used (LRU) policy when the total size of the
+ *   cached files exceeds a given budget. Entries are associated with one or
+ *   more tables and are removed whenever a table is updated via the
+ *   invalidate() method.
+ *
+ ******************************************************************************/
+
+public class ResultCache {
+
+    private final java.io.File dir;
+    private final long maxBytes;
+    private final long ttl;
+    private long size = 0;
+    private long hits = 0;
+    private long misses = 0;
+    private long evictions = 0;
+    private long version = 0;
+    private HashMap<String, Long> versions = new HashMap<>();
+    private HashMap<String, HashSet<String>> tables = new HashMap<>();
+    private LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+
+
+  //**************************************************************************
+  //** Entry Class
+  //**************************************************************************
+    private static class Entry {
+        private java.io.File file;
+        private long size;
+        private long created;
+        private Set<String> tables;
+    }
+
+
+  //**************************************************************************
+  //** Constructor
+  //**************************************************************************
+  /** @param dir Directory used to store cached results. Existing files in
+   *  the directory are deleted.
+   *  @param maxBytes Maximum size of all the cached files, in bytes. Results
+   *  larger than 1/4 of the budget are not cached.
+   *  @param ttl Maximum age of a cached result, in milliseconds.
+   */
+    public ResultCache(java.io.File dir, long maxBytes, long ttl){
+        if (dir==null) throw new IllegalArgumentException("Directory is required");
+        dir.mkdirs();
+        java.io.File[] files = dir.listFiles();
+        if (files!=null){
+            for (java.io.File file : files){
+                if (file.isFile()) file.delete();
+            }
+        }
+        this.dir = dir;
+        this.maxBytes = maxBytes;
+        this.ttl = ttl;
+    }
+
+
+  //**************************************************************************
+  //** getVersion
+  //**************************************************************************
+  /** Returns the current version of the cache. The version is incremented
+   *  whenever a table is invalidated. Callers should get the version before
+   *  executing a query and pass it to the put() method so that results are
+   *  not cached if a table is updated while the query is running.
+   */
+    public synchronized long getVersion(){
+        return version;
+    }
+
+
+  //**************************************************************************
+  //** get
+  //**************************************************************************
+  /** Used to copy a cached result to a given file. The file is created using
+   *  a hard link, when possible, so the data is not copied.
+   *  @param key Unique key for the query.
+   *  @param output File to create.
+   *  @return True if the result was found in the cache and the output file
+   *  was created.
+   */
+    public boolean get(String key, java.io.File output){
+        java.io.File file;
+        synchronized (this){
+            Entry entry = entries.get(key);
+            if (entry!=null && System.currentTimeMillis()-entry.created>ttl){
+                remove(key);
+                entry = null;
+            }
+            if (entry==null){
+                misses++;
+                return false;
+            }
+            hits++;
+            file = entry.file;
+        }
+        return link(file, output);
+    }
+
+
+  //**************************************************************************
+  //** put
+  //**************************************************************************
+  /** Used to add a query result to the cache.
+   *  @param key Unique key for the query.
+   *  @param output Output file generated by the query. The file is linked
+   *  or copied to the cache directory.
+   *  @param tables Tables referenced by the query.
+   *  @param version Version of the cache when the query was started (see
+   *  getVersion). The result is ignored if one of the tables has since been
+   *  updated.
+   */
+    public void put(String key, java.io.File output, Collection<String> tables, long version){
+        long size = output.length();
+        if (size>maxBytes/4) return;
+
+        HashSet<String> tableNames = new HashSet<>();
+        for (String tableName : tables){
+            tableNames.add(getTableName(tableName));
+        }
+        if (isStale(tableNames, version)) return;
+
+
+      //Add file to the cache directory
+        java.io.File file = new java.io.File(dir, UUID.randomUUID().toString());
+        if (!link(output, file)) return;
+
+
+      //Update index
+        synchronized (this){
+            if (isStale(tableNames, version)){
+                file.delete();
+                return;
+            }
+
+            remove(key);
+            Entry entry = new Entry();
+            entry.file = file;
+            entry.size = size;
+            entry.created = System.currentTimeMillis();
+            entry.tables = tableNames;
+            entries.put(key, entry);
+            for (String tableName : tableNames){
+                HashSet<String> keys = this.tables.get(tableName);
+                if (keys==null){
+                    keys = new HashSet<>();
+                    this.tables.put(tableName, keys);
+                }
+                keys.add(key);
+            }
+            this.size += size;
+
+
+          //Evict least recently used entries
+            Iterator<String> it = entries.keySet().iterator();
+            while (this.size>maxBytes && it.hasNext()){
+                String k = it.next();
+                if (k.equals(key)) continue;
+                Entry e = entries.get(k);
+                it.remove();
+                removeKey(k, e);
+                evictions++;
+            }
+        }
+    }
+
+
+  //**************************************************************************
+  //** invalidate
+  //**************************************************************************
+  /** Used to remove all the cached results associated with a table.
+   */
+    public synchronized void invalidate(String tableName){
+        if (tableName==null) return;
+        tableName = getTableName(tableName);
+        version++;
+        versions.put(tableName, version);
+        HashSet<String> keys = tables.remove(tableName);
+        if (keys==null) return;
+        for (String key : keys){
+            remove(key);
+        }
+    }
+
+
+  //**************************************************************************
+  //** clear
+  //**************************************************************************
+  /** Used to remove all the results from the cache.
+   */
+    public synchronized void clear(){
+        for (Entry entry : entries.values()){
+            entry.file.delete();
+        }
+        entries.clear();
+        tables.clear();
+        size = 0;
+    }
+
+
+  //**************************************************************************
+  //** removeExpired
+  //**************************************************************************
+  /** Used to remove expired results from the cache.
+   */
+    public synchronized void removeExpired(){
+        long now = System.currentTimeMillis();
+        Iterator<String> it = entries.keySet().iterator();
+        while (it.hasNext()){
+            String key = it.next();
+            Entry entry = entries.get(key);
+            if (now-entry.created>ttl){
+                it.remove();
+                removeKey(key, entry);
+            }
+        }
+    }
+
+
+  //**************************************************************************
+  //** getStats
+  //**************************************************************************
+  /** Returns cache statistics including number of hits, misses, evictions,
+   *  entries, and total size in bytes.
+   */
+    public synchronized JSONObject getStats(){
+        JSONObject json = new JSONObject();
+        json.set("hits", hits);
+        json.set("misses", misses);
+        json.set("evictions", evictions);
+        json.set("entries", entries.size());
+        json.set("size", size);
+        json.set("maxSize", maxBytes);
+        return json;
+    }
+
+
+  //**************************************************************************
+  //** isStale
+  //**************************************************************************
+  /** Returns true if one of the tables was invalidated after a given version.
+   */
+    private synchronized boolean isStale(Set<String> tableNames, long version){
+        for (String tableName : tableNames){
+            Long v = versions.get(tableName);
+            if (v!=null && v>version) return true;
+        }
+        return false;
+    }
+
+
+  //**************************************************************************
+  //** remove
+  //**************************************************************************
+    private void remove(String key){
+        Entry entry = entries.remove(key);
+        if (entry!=null) removeKey(key, entry);
+    }
+
+
+  //**************************************************************************
+  //** removeKey
+  //**************************************************************************
+    private void removeKey(String key, Entry entry){
+        size -= entry.size;
+        entry.file.delete();
+        for (String tableName : entry.tables){
+            HashSet<String> keys = tables.get(tableName);
+            if (keys!=null){
+                keys.remove(key);
+                if (keys.isEmpty()) tables.remove(tableName);
+            }
+        }
+    }
+
+
+  //**************************************************************************
+  //** getTableName
+  //**************************************************************************
+  /** Returns a normalized table name without the schema or quotes (e.g.
+   *  "public"."User" is returned as user).
+   */
+    private static String getTableName(String tableName){
+        tableName = tableName.trim();
+        int idx = tableName.lastIndexOf(".");
+        if (idx>-1) tableName = tableName.substring(idx+1);
+        return tableName.replace("\"", "").replace("`", "").toLowerCase();
+    }
+
+
+  //**************************************************************************
+  //** link
+  //**************************************************************************
+  /** Used to create a hard link to a file. Falls back to copying the file if
+   *  hard links are not supported.
+   */
+    private static boolean link(java.io.File source, java.io.File target){
+        try{
+            target.getParentFile().mkdirs();
+            Files.deleteIfExists(target.toPath());
+            try{
+                Files.createLink(target.toPath(), source.toPath());
+            }
+            catch(UnsupportedOperationException | java.io.IOException e){
+                Files.copy(source.toPath(), target.toPath());
+            }
+            return true;
+        }
+        catch(Exception e){
+            return false;
+        }
+    }
+}
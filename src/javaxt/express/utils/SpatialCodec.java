@@ -0,0 +1,117 @@
+package javaxt.express.utils;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+
+//******************************************************************************
+//**  SpatialCodec
+//******************************************************************************
+/**
+ *   Used to decode geometries returned by the database as hex encoded WKB
+ *   (e.g. PostGIS geometry columns) into JTS Geometry objects. The JTS
+ *   WKBReader class is resolved once, using either the legacy Vivid Solutions
+ *   or the LocationTech package, and a reader is reused per thread.
+ *
+ ******************************************************************************/
+
+public class SpatialCodec {
+    private SpatialCodec(){}
+
+    private static final MethodHandle newReader;
+    private static final MethodHandle read;
+    private static final ThreadLocal<Object> readers;
+    static {
+        MethodHandle constructor = null;
+        MethodHandle readMethod = null;
+        for (String className : new String[]{
+            "com.vividsolutions.jts.io.WKBReader",
+            "org.locationtech.jts.io.WKBReader"
+        }){
+            try{
+                Class c = Class.forName(className);
+                MethodHandles.Lookup lookup = MethodHandles.publicLookup();
+                constructor = lookup.findConstructor(c, MethodType.methodType(void.class));
+                for (java.lang.reflect.Method method : c.getMethods()){
+                    if (method.getName().equals("read") && method.getParameterCount()==1 &&
+                        method.getParameterTypes()[0].equals(byte[].class)){
+                        readMethod = lookup.unreflect(method);
+                        break;
+                    }
+                }
+                if (readMethod!=null) break;
+            }
+            catch(Throwable e){
+                constructor = readMethod = null;
+            }
+        }
+        newReader = constructor;
+        read = readMethod;
+        readers = ThreadLocal.withInitial(() -> {
+            try{
+                return newReader.invoke();
+            }
+            catch(Throwable e){
+                throw new RuntimeException(e);
+            }
+        });
+    }
+
+
+  //**************************************************************************
+  //** isAvailable
+  //**************************************************************************
+  /** Returns true if JTS is found in the classpath.
+   */
+    public static boolean isAvailable(){
+        return read!=null;
+    }
+
+
+  //**************************************************************************
+  //** decode
+  //**************************************************************************
+  /** Returns a JTS Geometry for a given hex encoded WKB string.
+   */
+    public static Object decode(String hex) throws Exception {
+        return decode(hexToBytes(hex));
+    }
+
+
+  //**************************************************************************
+  //** decode
+  //**************************************************************************
+  /** Returns a JTS Geometry for a given WKB byte array.
+   */
+    public static Object decode(byte[] wkb) throws Exception {
+        if (read==null) throw new Exception("JTS not found!");
+        try{
+            return read.invoke(readers.get(), wkb);
+        }
+        catch(Exception e){
+            throw e;
+        }
+        catch(Throwable e){
+            throw new Exception(e);
+        }
+    }
+
+
+  //**************************************************************************
+  //** hexToBytes
+  //**************************************************************************
+  /** Used to convert a hex string into a byte array.
+   */
+    public static byte[] hexToBytes(CharSequence hex){
+        int len = hex.length();
+        if (len%2!=0) throw new IllegalArgumentException("Invalid hex string");
+        byte[] b = new byte[len/2];
+        for (int i=0, j=0; i<len; i+=2, j++){
+            int hi = Character.digit(hex.charAt(i), 16);
+            int lo = Character.digit(hex.charAt(i+1), 16);
+            if (hi<0 || lo<0) throw new IllegalArgumentException("Invalid hex string");
+            b[j] = (byte) ((hi << 4) + lo);
+        }
+        return b;
+    }
+}
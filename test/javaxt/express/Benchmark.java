@@ -0,0 +1,233 @@
+package javaxt.express;
+
+import java.util.*;
+import java.lang.management.ManagementFactory;
+
+//******************************************************************************
+//**  Benchmark
+//******************************************************************************
+/**
+ *   Simple harness used to run the microbenchmarks and load tests found in
+ *   the test directory. Each benchmark is a standalone class with a main()
+ *   method. Example:
+ *   <pre>
+    mvn test-compile dependency:copy-dependencies
+    java -cp target/classes:target/test-classes:target/dependency/* javaxt.express.DispatchBenchmark
+ *   </pre>
+ *   Operations are run for a warmup period before they are measured. Results
+ *   include the average time per operation and, on JVMs that support it, the
+ *   number of bytes allocated per operation.
+ *
+ ******************************************************************************/
+
+public class Benchmark {
+
+    private static long warmup = 2000; //milliseconds
+    private static long duration = 5000; //milliseconds
+
+
+  //**************************************************************************
+  //** Operation
+  //**************************************************************************
+  /** Used to define an operation to measure.
+   */
+    public static interface Operation {
+        public void run() throws Exception;
+    }
+
+
+  //**************************************************************************
+  //** Result
+  //**************************************************************************
+  /** Used to encapsulate the results of a benchmark.
+   */
+    public static class Result {
+        private String name;
+        private long operations;
+        private double nanosPerOp;
+        private double bytesPerOp;
+
+        public String getName(){
+            return name;
+        }
+
+        public double getNanosPerOp(){
+            return nanosPerOp;
+        }
+
+        public double getBytesPerOp(){
+            return bytesPerOp;
+        }
+
+        public String toString(){
+            String str = String.format("%-40s %12.1f ns/op %10d ops", name, nanosPerOp, operations);
+            if (bytesPerOp>=0) str += String.format(" %10.1f B/op", bytesPerOp);
+            return str;
+        }
+    }
+
+
+  //**************************************************************************
+  //** setDuration
+  //**************************************************************************
+  /** Used to set how long to warmup and measure each operation.
+   *  @param warmup Time in milliseconds.
+   *  @param duration Time in milliseconds.
+   */
+    public static void setDuration(long warmup, long duration){
+        Benchmark.warmup = warmup;
+        Benchmark.duration = duration;
+    }
+
+
+  //**************************************************************************
+  //** run
+  //**************************************************************************
+  /** Used to measure the average time and allocations for an operation. The
+   *  operation is run repeatedly in the calling thread.
+   */
+    public static Result run(String name, Operation op) throws Exception {
+
+      //Warmup
+        long end = System.currentTimeMillis()+warmup;
+        while (System.currentTimeMillis()<end){
+            for (int i=0; i<1000; i++) op.run();
+        }
+        System.gc();
+
+
+      //Measure
+        long bytes = getAllocatedBytes();
+        long operations = 0;
+        long startTime = System.nanoTime();
+        end = startTime + duration*1000000L;
+        long now;
+        do {
+            for (int i=0; i<1000; i++) op.run();
+            operations+=1000;
+            now = System.nanoTime();
+        }
+        while (now<end);
+        long elapsedTime = now-startTime;
+        long allocated = getAllocatedBytes();
+
+
+        Result result = new Result();
+        result.name = name;
+        result.operations = operations;
+        result.nanosPerOp = (double) elapsedTime/operations;
+        result.bytesPerOp = (bytes<0 || allocated<0) ? -1 : (double) (allocated-bytes)/operations;
+        System.out.println(result);
+        return result;
+    }
+
+
+  //**************************************************************************
+  //** getAllocatedBytes
+  //**************************************************************************
+  /** Returns the number of bytes allocated by the current thread. Returns -1
+   *  if the JVM does not support allocation tracking.
+   */
+    public static long getAllocatedBytes(){
+        try{
+            java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+            if (bean instanceof com.sun.management.ThreadMXBean){
+                return ((com.sun.management.ThreadMXBean) bean).getThreadAllocatedBytes(
+                Thread.currentThread().getId());
+            }
+        }
+        catch(Throwable t){}
+        return -1;
+    }
+
+
+  //**************************************************************************
+  //** getPercentile
+  //**************************************************************************
+  /** Returns a percentile (e.g. 0.99) from a sorted array of values.
+   */
+    public static long getPercentile(long[] sortedValues, double percentile){
+        if (sortedValues.length==0) return 0;
+        int idx = (int) Math.ceil(percentile*sortedValues.length)-1;
+        return sortedValues[Math.max(0, Math.min(idx, sortedValues.length-1))];
+    }
+
+
+  //**************************************************************************
+  //** getRequest
+  //**************************************************************************
+  /** Returns a ServiceRequest for a given HTTP method and URL. The request is
+   *  backed by a proxy of the javax.servlet HttpServletRequest interface so
+   *  benchmarks can call web services without starting a server.
+   *  @param method HTTP request method (e.g. "GET")
+   *  @param url Path and query string (e.g. "/users?limit=10")
+   */
+    public static ServiceRequest getRequest(String method, String url){
+        String path = url;
+        String query = null;
+        int idx = url.indexOf("?");
+        if (idx>-1){
+            path = url.substring(0, idx);
+            query = url.substring(idx+1);
+        }
+        String pathInfo = path;
+        String queryString = query;
+
+
+        javax.servlet.http.HttpServletRequest request = (javax.servlet.http.HttpServletRequest)
+        java.lang.reflect.Proxy.newProxyInstance(
+            Benchmark.class.getClassLoader(),
+            new Class[]{javax.servlet.http.HttpServletRequest.class},
+            (proxy, m, args) -> {
+                switch (m.getName()){
+                    case "getMethod": return method;
+                    case "getRequestURL": return new StringBuffer("http://localhost" + pathInfo);
+                    case "getRequestURI": return pathInfo;
+                    case "getPathInfo": return pathInfo;
+                    case "getQueryString": return queryString;
+                    case "getServletPath": return "";
+                    case "getContextPath": return "";
+                    case "getScheme": return "http";
+                    case "getServerName": return "localhost";
+                    case "getServerPort": return 80;
+                    case "getProtocol": return "HTTP/1.1";
+                    case "getRemoteAddr": return "127.0.0.1";
+                    case "getRemoteHost": return "localhost";
+                    case "getCharacterEncoding": return "UTF-8";
+                    case "hashCode": return System.identityHashCode(proxy);
+                    case "equals": return proxy==args[0];
+                    case "toString": return method + " " + url;
+                }
+                Class t = m.getReturnType();
+                if (t.equals(Enumeration.class)) return Collections.emptyEnumeration();
+                if (t.equals(boolean.class)) return false;
+                if (t.equals(int.class)) return 0;
+                if (t.equals(long.class)) return 0L;
+                return null;
+            }
+        );
+
+        return new ServiceRequest(request, new javax.servlet.http.HttpServlet(){});
+    }
+
+
+  //**************************************************************************
+  //** getDatabase
+  //**************************************************************************
+  /** Returns an in-memory H2 database with a connection pool.
+   *  @param name Database name.
+   *  @param poolSize Max number of connections in the pool.
+   */
+    public static javaxt.sql.Database getDatabase(String name, int poolSize) throws Exception {
+        javaxt.sql.Database database = new javaxt.sql.Database();
+        database.setDriver("H2");
+        database.setHost("mem:" + name + ";DB_CLOSE_DELAY=-1");
+        Properties properties = new Properties();
+        properties.setProperty("MODE", "PostgreSQL");
+        properties.setProperty("DATABASE_TO_LOWER", "TRUE");
+        database.setProperties(properties);
+        database.setConnectionPoolSize(poolSize);
+        database.initConnectionPool();
+        return database;
+    }
+}
@@ -0,0 +1,138 @@
+package javaxt.express;
+
+import java.util.*;
+import java.lang.reflect.Method;
+
+//******************************************************************************
+//**  DispatchBenchmark
+//******************************************************************************
+/**
+ *   Used to measure the cost of routing a request to a service method in the
+ *   WebService class. Compares the precompiled routing table and bound
+ *   MethodHandles used by getServiceResponse() with the reflective dispatch
+ *   it replaced (a lookup by name, a stack trace to detect recursion, and a
+ *   Method.invoke() with an input array per request). Also measures a
+ *   request that is not mapped to any method (501 response).
+ *
+ ******************************************************************************/
+
+public class DispatchBenchmark {
+
+    private static final ServiceResponse response = new ServiceResponse(200, "OK");
+
+
+  //**************************************************************************
+  //** Service
+  //**************************************************************************
+  /** WebService with a handful of service methods. The methods return a
+   *  static response so that only the dispatch is measured.
+   */
+    public static class Service extends WebService {
+        public ServiceResponse getUser(ServiceRequest request){ return response; }
+        public ServiceResponse getUsers(ServiceRequest request){ return response; }
+        public ServiceResponse getGroup(ServiceRequest request){ return response; }
+        public ServiceResponse getGroups(ServiceRequest request){ return response; }
+        public ServiceResponse saveUser(ServiceRequest request){ return response; }
+        public ServiceResponse deleteUser(ServiceRequest request){ return response; }
+        public ServiceResponse search(ServiceRequest request, javaxt.sql.Database database){ return response; }
+    }
+
+
+  //**************************************************************************
+  //** main
+  //**************************************************************************
+    public static void main(String[] args) throws Exception {
+        Metrics.setEnabled(false);
+        Service service = new Service();
+
+
+      //Requests
+        ServiceRequest getUser = Benchmark.getRequest("GET", "/user");
+        ServiceRequest search = Benchmark.getRequest("GET", "/search");
+        ServiceRequest notFound = Benchmark.getRequest("GET", "/unknown");
+
+
+      //Precompiled routing table and MethodHandles
+        Benchmark.run("getServiceResponse (getUser)", () -> {
+            if (service.getServiceResponse(getUser)!=response) throw new Exception();
+        });
+        Benchmark.run("getServiceResponse (search alias)", () -> {
+            if (service.getServiceResponse(search)!=response) throw new Exception();
+        });
+        Benchmark.run("getServiceResponse (501)", () -> {
+            if (service.getServiceResponse(notFound).getStatus()!=501) throw new Exception();
+        });
+
+
+      //Reflection (previous implementation)
+        HashMap<String, ArrayList<Method>> methods = new HashMap<>();
+        for (Method m : Service.class.getDeclaredMethods()){
+            String key = m.getName().toLowerCase();
+            ArrayList<Method> arr = methods.get(key);
+            if (arr==null){
+                arr = new ArrayList<>();
+                methods.put(key, arr);
+            }
+            arr.add(m);
+        }
+        Benchmark.run("reflection (getUser)", () -> {
+            if (invoke(service, methods, getUser, null)!=response) throw new Exception();
+        });
+        Benchmark.run("reflection (search alias)", () -> {
+            if (invoke(service, methods, search, null)!=response) throw new Exception();
+        });
+    }
+
+
+  //**************************************************************************
+  //** invoke
+  //**************************************************************************
+  /** Used to invoke a service method using the approach found in the
+   *  original getServiceResponse() method: a lookup by name with a fallback
+   *  to the name without the get/save/delete prefix, a stack trace to guard
+   *  against recursion, and a Method.invoke() with a new input array.
+   */
+    private static Object invoke(WebService service, HashMap<String, ArrayList<Method>> serviceMethods,
+        ServiceRequest request, javaxt.sql.Database database) throws Exception {
+
+        String methodName = request.getMethod().toLowerCase();
+        ArrayList<Method> methods = serviceMethods.get(methodName);
+        if (methods==null){
+            int i = 0;
+            if (methodName.startsWith("get")) i = 4;
+            if (methodName.startsWith("save")) i = 5;
+            if (methodName.startsWith("delete")) i = 6;
+            if (i>0){
+                methodName = methodName.substring(i-1, i).toLowerCase() + methodName.substring(i);
+                methods = serviceMethods.get(methodName);
+                if (methods==null && i==5){
+                    methods = serviceMethods.get("get" + methodName);
+                }
+            }
+        }
+
+        if (methods!=null){
+            for (Method m : methods){
+                Class<?>[] params = m.getParameterTypes();
+                Object[] inputs = null;
+                if (params.length==1){
+                    inputs = new Object[]{request};
+                }
+                else if (params.length==2){
+                    if (javaxt.sql.Database.class.isAssignableFrom(params[1])){
+                        inputs = new Object[]{request, database};
+                    }
+                }
+
+                if (inputs!=null){
+                    StackTraceElement[] stackTrace = new Exception().getStackTrace();
+                    StackTraceElement el = stackTrace[1];
+                    if (m.getName().equals(el.getMethodName())) break;
+                    m.setAccessible(true);
+                    return m.invoke(service, inputs);
+                }
+            }
+        }
+        return null;
+    }
+}
@@ -0,0 +1,141 @@
+package javaxt.express;
+
+import java.util.*;
+import javaxt.sql.*;
+import javaxt.json.*;
+import javaxt.express.utils.StringUtils;
+
+//******************************************************************************
+//**  ListBenchmark
+//******************************************************************************
+/**
+ *   Used to measure the time and memory allocated to serialize list
+ *   responses. Compares a list request handled by the WebService, which
+ *   encodes strings, numbers, dates, and arrays directly into the response
+ *   buffer, with the original implementation where every row was added to
+ *   a JSONArray, field names were converted to camel case and deduplicated
+ *   for every row, and the row was then converted to a string. The bytes
+ *   allocated per operation are reported by the Benchmark class.
+ *
+ ******************************************************************************/
+
+public class ListBenchmark {
+
+    private static final int numRecords = 100;
+
+
+  //**************************************************************************
+  //** Contact
+  //**************************************************************************
+  /** Model used to generate list responses.
+   */
+    public static class Contact extends Model {
+        private String firstName;
+        private String lastName;
+        private Double score;
+        private javaxt.utils.Date created;
+        private String[] tags;
+
+        public Contact(){
+            super("contact", new HashMap<String, String>(){{
+                put("firstName", "first_name");
+                put("lastName", "last_name");
+                put("score", "score");
+                put("created", "created");
+                put("tags", "tags");
+            }});
+        }
+    }
+
+
+  //**************************************************************************
+  //** Service
+  //**************************************************************************
+    public static class Service extends WebService {
+        public Service(){
+            addModel(Contact.class);
+        }
+    }
+
+
+  //**************************************************************************
+  //** main
+  //**************************************************************************
+    public static void main(String[] args) throws Exception {
+        Metrics.setEnabled(false);
+        Database database = Benchmark.getDatabase("ListBenchmark", 4);
+
+
+      //Create table
+        try (Connection conn = database.getConnection()){
+            conn.execute("create table contact (id bigint auto_increment primary key, " +
+            "first_name varchar(50), last_name varchar(50), score double precision, " +
+            "created timestamp, tags varchar(20) array)");
+            java.sql.Connection jdbc = conn.getConnection();
+            try (java.sql.PreparedStatement stmt = jdbc.prepareStatement(
+                "insert into contact (first_name, last_name, score, created, tags) values (?,?,?,?,?)")){
+                long t = System.currentTimeMillis();
+                for (int i=0; i<numRecords; i++){
+                    stmt.setString(1, "First " + i);
+                    stmt.setString(2, "Last \"" + i + "\"");
+                    stmt.setDouble(3, i*1.25);
+                    stmt.setTimestamp(4, new java.sql.Timestamp(t-i*60000L));
+                    stmt.setArray(5, jdbc.createArrayOf("varchar", new Object[]{"a" + i, "b" + i}));
+                    stmt.addBatch();
+                }
+                stmt.executeBatch();
+            }
+        }
+
+
+      //List request
+        Service service = new Service();
+        ServiceRequest request = Benchmark.getRequest("GET", "/contacts?limit=" + numRecords);
+        Benchmark.run("list (direct encoding)", () -> {
+            ServiceResponse response = service.getServiceResponse(request, database);
+            if (response.getStatus()!=200) throw new Exception(response.getResponse().toString());
+        });
+
+
+      //Same records using the original serialization. Each row is added to
+      //a JSONArray using the JSON values generated by Field.toJson(), field
+      //names are converted to camel case and deduplicated with a HashSet for
+      //every row, and the row is then converted to a string.
+        String sql = "select contact.id, contact.first_name, contact.last_name, " +
+        "contact.score, contact.created, contact.tags from contact limit " + numRecords;
+        Benchmark.run("list (original)", () -> {
+            try (Connection conn = database.getConnection()){
+                try (Recordset rs = conn.getRecordset(sql)){
+                    long x = 0;
+                    JSONArray cols = new JSONArray();
+                    StringBuilder json = new StringBuilder("{\"rows\":[");
+                    while (rs.next()){
+                        JSONArray row = new JSONArray();
+
+                        HashSet<String> fieldNames = new HashSet<>();
+                        for (javaxt.sql.Field field : rs.getFields()){
+                            String fieldName = field.getName().toLowerCase();
+                            fieldName = StringUtils.underscoreToCamelCase(fieldName);
+
+                            if (fieldNames.contains(fieldName)) continue;
+                            fieldNames.add(fieldName);
+                            if (x==0) cols.add(fieldName);
+
+                            JSONObject f = field.toJson();
+                            row.add(f.get("value"));
+                        }
+
+                        if (x>0) json.append(",");
+                        json.append(row.toString());
+                        x++;
+                    }
+                    json.append("]");
+                    json.append(",\"cols\":");
+                    json.append(cols.toString());
+                    json.append("}");
+                    new ServiceResponse(json.toString());
+                }
+            }
+        });
+    }
+}
@@ -0,0 +1,190 @@
+package javaxt.express;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+import javaxt.sql.*;
+
+//******************************************************************************
+//**  LoadTest
+//******************************************************************************
+/**
+ *   Used to compare the throughput and latency of the two request execution
+ *   modes supported by the Server class. In the "platform" mode, requests
+ *   are processed by a fixed number of server threads which block on the
+ *   database. In the "virtual" mode, each request is processed in a virtual
+ *   thread and the number of concurrent requests is capped by the size of
+ *   the connection pool. Requests that exceed the cap wait for a permit and
+ *   are rejected with a 503 response if none is available before the
+ *   timeout. Note that the server threads still wait for the virtual threads
+ *   so both modes use the same number of server threads. The virtual mode
+ *   requires Java 21 or higher and is skipped on older JVMs.
+ *   <p>
+ *   A fixed number of clients send requests in a loop to a pool of server
+ *   threads. Each request executes a query and holds the connection for a
+ *   few milliseconds to simulate network latency. Latency is measured from
+ *   the time a request is submitted to the server until the response is
+ *   generated, including the time spent waiting for a server thread.
+ *   </p>
+ *
+ ******************************************************************************/
+
+public class LoadTest {
+
+    private static int numClients = 400;
+    private static int numThreads = 200; //server threads
+    private static int poolSize = 20; //database connections
+    private static long duration = 10000; //milliseconds
+    private static long permitTimeout = 10000; //milliseconds
+
+
+  //**************************************************************************
+  //** Handler
+  //**************************************************************************
+  /** Used to process a request on a server thread. Returns the HTTP status.
+   */
+    private static interface Handler {
+        public int handle(ServiceRequest request) throws Exception;
+    }
+
+
+  //**************************************************************************
+  //** Service
+  //**************************************************************************
+    public static class Service extends WebService {
+        public ServiceResponse getItem(ServiceRequest request, Database database) throws Exception {
+            try (Connection conn = database.getConnection()){
+                javaxt.sql.Record r = conn.getRecord(
+                "select name from item where id=" + request.getParameter("id").toLong());
+                Thread.sleep(5); //simulate network latency
+                return new ServiceResponse(r.get(0).toString());
+            }
+        }
+    }
+
+
+  //**************************************************************************
+  //** main
+  //**************************************************************************
+    public static void main(String[] args) throws Exception {
+        Metrics.setEnabled(false);
+        Database database = Benchmark.getDatabase("LoadTest", poolSize);
+        try (Connection conn = database.getConnection()){
+            conn.execute("create table item (id bigint primary key, name varchar(50))");
+            for (int i=0; i<100; i++){
+                conn.execute("insert into item values (" + i + ", 'Item " + i + "')");
+            }
+        }
+
+        Service service = new Service();
+
+
+      //Platform threads
+        run("platform", (request) -> {
+            return service.getServiceResponse(request, database).getStatus();
+        });
+
+
+      //Virtual threads. Uses the same logic as the Server class: the server
+      //thread waits up to permitTimeout for a permit and then waits for the
+      //virtual thread to complete.
+        ExecutorService executor;
+        try{
+            executor = (ExecutorService) Executors.class
+            .getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        }
+        catch(Exception e){
+            System.out.println("Virtual threads are not supported by this version of Java");
+            return;
+        }
+        Semaphore permits = new Semaphore(poolSize, true);
+        run("virtual", (request) -> {
+            if (!permits.tryAcquire(permitTimeout, TimeUnit.MILLISECONDS)) return 503;
+            Future<Integer> future;
+            try{
+                future = executor.submit(() -> {
+                    try{
+                        return service.getServiceResponse(request, database).getStatus();
+                    }
+                    finally{
+                        permits.release();
+                    }
+                });
+            }
+            catch(RejectedExecutionException e){
+                permits.release();
+                return 503;
+            }
+            return future.get();
+        });
+        executor.shutdown();
+    }
+
+
+  //**************************************************************************
+  //** run
+  //**************************************************************************
+  /** Used to send requests to a pool of server threads and print the
+   *  throughput, latency percentiles, and number of rejected requests.
+   */
+    private static void run(String name, Handler handler)
+        throws Exception {
+
+        ExecutorService server = Executors.newFixedThreadPool(numThreads);
+        AtomicLong rejected = new AtomicLong();
+        AtomicLong errors = new AtomicLong();
+        List<long[]> latencies = Collections.synchronizedList(new ArrayList<>());
+        ArrayList<Thread> clients = new ArrayList<>();
+        long endTime = System.currentTimeMillis()+duration;
+
+        for (int i=0; i<numClients; i++){
+            int clientID = i;
+            Thread thread = new Thread(() -> {
+                Random random = new Random(clientID);
+                long[] arr = new long[1024];
+                int n = 0;
+                while (System.currentTimeMillis()<endTime){
+                    ServiceRequest request = Benchmark.getRequest("GET", "/item?id=" + random.nextInt(100));
+                    long t = System.nanoTime();
+                    try{
+                        int status = server.submit(() -> handler.handle(request)).get();
+                        if (status==503) rejected.incrementAndGet();
+                        else if (status!=200) errors.incrementAndGet();
+                        else{
+                            if (n==arr.length) arr = Arrays.copyOf(arr, n*2);
+                            arr[n++] = System.nanoTime()-t;
+                        }
+                    }
+                    catch(Exception e){
+                        errors.incrementAndGet();
+                    }
+                }
+                latencies.add(Arrays.copyOf(arr, n));
+            });
+            clients.add(thread);
+            thread.start();
+        }
+        for (Thread thread : clients) thread.join();
+        server.shutdown();
+
+
+      //Compute stats
+        int total = 0;
+        for (long[] arr : latencies) total += arr.length;
+        long[] values = new long[total];
+        int idx = 0;
+        for (long[] arr : latencies){
+            System.arraycopy(arr, 0, values, idx, arr.length);
+            idx += arr.length;
+        }
+        Arrays.sort(values);
+
+        System.out.println(String.format(
+            "%-10s %10.1f req/s  p50 %8.2f ms  p99 %8.2f ms  rejected %8d  errors %8d",
+            name, total*1000.0/duration,
+            Benchmark.getPercentile(values, 0.50)/1000000.0,
+            Benchmark.getPercentile(values, 0.99)/1000000.0,
+            rejected.get(), errors.get()
+        ));
+    }
+}
@@ -0,0 +1,85 @@
+package javaxt.express;
+
+import java.util.*;
+import javaxt.sql.*;
+
+//******************************************************************************
+//**  MetricsBenchmark
+//******************************************************************************
+/**
+ *   Used to measure the overhead of the Metrics registry on CRUD requests.
+ *   Get and list requests for a model are executed against an in-memory H2
+ *   database with metrics disabled and enabled. Each configuration is run
+ *   twice, in alternating order, to reduce the effect of JIT compilation and
+ *   GC on the results. The overhead is expected to be less than 1%.
+ *
+ ******************************************************************************/
+
+public class MetricsBenchmark {
+
+
+  //**************************************************************************
+  //** Item
+  //**************************************************************************
+    public static class Item extends Model {
+        private String name;
+        private Integer quantity;
+
+        public Item(){
+            super("item", new HashMap<String, String>(){{
+                put("name", "name");
+                put("quantity", "quantity");
+            }});
+        }
+    }
+
+
+  //**************************************************************************
+  //** Service
+  //**************************************************************************
+    public static class Service extends WebService {
+        public Service(){
+            addModel(Item.class);
+        }
+    }
+
+
+  //**************************************************************************
+  //** main
+  //**************************************************************************
+    public static void main(String[] args) throws Exception {
+        Database database = Benchmark.getDatabase("MetricsBenchmark", 4);
+        try (Connection conn = database.getConnection()){
+            conn.execute("create table item (id bigint auto_increment primary key, " +
+            "name varchar(50), quantity integer)");
+            for (int i=0; i<1000; i++){
+                conn.execute("insert into item (name, quantity) values ('Item " + i + "', " + i + ")");
+            }
+        }
+
+        Service service = new Service();
+        Random random = new Random(0);
+        Benchmark.Operation get = () -> {
+            ServiceRequest request = Benchmark.getRequest("GET", "/item/" + (random.nextInt(1000)+1));
+            if (service.getServiceResponse(request, database).getStatus()!=200) throw new Exception();
+        };
+        Benchmark.Operation list = () -> {
+            ServiceRequest request = Benchmark.getRequest("GET", "/items?limit=10&offset=" + random.nextInt(990));
+            if (service.getServiceResponse(request, database).getStatus()!=200) throw new Exception();
+        };
+
+
+        double[] getTimes = new double[2];
+        double[] listTimes = new double[2];
+        for (int i=0; i<4; i++){
+            boolean enabled = (i==1 || i==2); //off, on, on, off
+            Metrics.setEnabled(enabled);
+            String label = enabled ? "metrics on" : "metrics off";
+            getTimes[enabled ? 1 : 0] += Benchmark.run("get (" + label + ")", get).getNanosPerOp();
+            listTimes[enabled ? 1 : 0] += Benchmark.run("list (" + label + ")", list).getNanosPerOp();
+        }
+
+        System.out.println(String.format("get overhead:  %6.2f%%", (getTimes[1]/getTimes[0]-1)*100));
+        System.out.println(String.format("list overhead: %6.2f%%", (listTimes[1]/listTimes[0]-1)*100));
+    }
+}
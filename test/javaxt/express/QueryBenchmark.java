@@ -0,0 +1,135 @@
+package javaxt.express;
+
+import java.util.*;
+import javaxt.sql.*;
+
+//******************************************************************************
+//**  QueryBenchmark
+//******************************************************************************
+/**
+ *   Used to compare list queries with literal values in the SQL (the
+ *   statement is different for every filter value) with parameterized
+ *   queries that use "?" placeholders (the statement is the same for every
+ *   value so the database can reuse the parsed statement and plan). Queries
+ *   are executed against an in-memory H2 database using the same select and
+ *   count statements generated by the WebService list() method.
+ *
+ ******************************************************************************/
+
+public class QueryBenchmark {
+
+    private static final int numRecords = 10000;
+
+
+  //**************************************************************************
+  //** main
+  //**************************************************************************
+    public static void main(String[] args) throws Exception {
+        Database database = Benchmark.getDatabase("QueryBenchmark", 4);
+
+
+      //Create table
+        try (Connection conn = database.getConnection()){
+            conn.execute("create table contact (id bigint auto_increment primary key, " +
+            "first_name varchar(50), last_name varchar(50), age integer, active boolean)");
+            conn.execute("create index idx_contact_last_name on contact(last_name)");
+            java.sql.Connection jdbc = conn.getConnection();
+            try (java.sql.PreparedStatement stmt = jdbc.prepareStatement(
+                "insert into contact (first_name, last_name, age, active) values (?,?,?,?)")){
+                for (int i=0; i<numRecords; i++){
+                    stmt.setString(1, "First " + i);
+                    stmt.setString(2, "Last " + (i%1000));
+                    stmt.setInt(3, i%100);
+                    stmt.setBoolean(4, i%2==0);
+                    stmt.addBatch();
+                }
+                stmt.executeBatch();
+            }
+        }
+
+
+        String select = "select contact.id, contact.first_name, contact.last_name, " +
+        "contact.age, contact.active from contact";
+        Random random = new Random(0);
+
+
+      //Literal values
+        Benchmark.run("literal (select)", () -> {
+            String lastName = "Last " + random.nextInt(1000);
+            try (Connection conn = database.getConnection()){
+                String where = "last_name='" + lastName + "' and age>" + random.nextInt(50);
+                read(conn.getConnection(), select + " where " + where + " order by id limit 10", null);
+            }
+        });
+        Benchmark.run("literal (select + count)", () -> {
+            String lastName = "Last " + random.nextInt(1000);
+            try (Connection conn = database.getConnection()){
+                String where = "last_name='" + lastName + "' and age>" + random.nextInt(50);
+                read(conn.getConnection(), select + " where " + where + " order by id limit 10", null);
+                read(conn.getConnection(), "select count(id) from contact where " + where, null);
+            }
+        });
+
+
+      //Parameterized values
+        Benchmark.run("parameterized (select)", () -> {
+            List<Object> params = new ArrayList<>();
+            params.add("Last " + random.nextInt(1000));
+            params.add(random.nextInt(50));
+            try (Connection conn = database.getConnection()){
+                String where = "last_name=? and age>?";
+                read(conn.getConnection(), select + " where " + where + " order by id limit 10", params);
+            }
+        });
+        Benchmark.run("parameterized (select + count)", () -> {
+            List<Object> params = new ArrayList<>();
+            params.add("Last " + random.nextInt(1000));
+            params.add(random.nextInt(50));
+            try (Connection conn = database.getConnection()){
+                String where = "last_name=? and age>?";
+                read(conn.getConnection(), select + " where " + where + " order by id limit 10", params);
+                read(conn.getConnection(), "select count(id) from contact where " + where, params);
+            }
+        });
+    }
+
+
+  //**************************************************************************
+  //** read
+  //**************************************************************************
+  /** Used to execute a query and read all the values in the result set.
+   *  Uses a PreparedStatement if params are given. Otherwise, uses a
+   *  Statement with the literal SQL.
+   */
+    private static void read(java.sql.Connection conn, String sql, List<Object> params)
+        throws Exception {
+
+        java.sql.Statement stmt;
+        java.sql.ResultSet rs;
+        if (params==null){
+            stmt = conn.createStatement();
+            rs = stmt.executeQuery(sql);
+        }
+        else{
+            java.sql.PreparedStatement ps = conn.prepareStatement(sql);
+            for (int i=0; i<params.size(); i++){
+                ps.setObject(i+1, params.get(i));
+            }
+            stmt = ps;
+            rs = ps.executeQuery();
+        }
+
+        try{
+            int numColumns = rs.getMetaData().getColumnCount();
+            while (rs.next()){
+                for (int i=1; i<=numColumns; i++){
+                    rs.getObject(i);
+                }
+            }
+        }
+        finally{
+            rs.close();
+            stmt.close();
+        }
+    }
+}
@@ -0,0 +1,162 @@
+package javaxt.express.services;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+import javaxt.express.*;
+import javaxt.json.*;
+import javaxt.sql.*;
+
+//******************************************************************************
+//**  QueryStressTest
+//******************************************************************************
+/**
+ *   Used to submit thousands of concurrent query jobs to the QueryService
+ *   and cancel a random subset of them while they are pending or running.
+ *   Queries are executed against an in-memory H2 database. The test checks
+ *   that every job reaches a final state (complete, failed, or canceled),
+ *   that only jobs that were canceled by a client are reported as canceled,
+ *   that completed jobs have an output file, and that no output files are
+ *   left in the job directory after all the jobs are deleted.
+ *
+ ******************************************************************************/
+
+public class QueryStressTest {
+
+    private static int numJobs = 5000;
+    private static int numClients = 64;
+    private static int numThreads = 8; //query processors
+    private static long timeout = 120000; //milliseconds
+
+
+  //**************************************************************************
+  //** main
+  //**************************************************************************
+    public static void main(String[] args) throws Exception {
+        Metrics.setEnabled(false);
+        Database database = Benchmark.getDatabase("QueryStressTest", numThreads+numClients);
+        try (Connection conn = database.getConnection()){
+            conn.execute("create table item (id bigint primary key, name varchar(50))");
+            for (int i=0; i<1000; i++){
+                conn.execute("insert into item values (" + i + ", 'Item " + i + "')");
+            }
+        }
+
+
+      //Create query service. Jobs are tracked using the notify() callback.
+        Map<String, QueryService.QueryJob> jobs = new ConcurrentHashMap<>();
+        java.io.File tempDir = java.nio.file.Files.createTempDirectory("QueryStressTest").toFile();
+        javaxt.io.Directory jobDir = new javaxt.io.Directory(tempDir);
+        QueryService service = new QueryService(database, jobDir, null, numThreads){
+            public void notify(QueryService.QueryJob job){
+                jobs.putIfAbsent(job.getID(), job);
+            }
+        };
+        service.setMaxJobsPerUser(numThreads);
+
+
+      //Submit jobs from multiple clients. About a third of the jobs are
+      //canceled, either right away or after a short delay so that some are
+      //canceled while pending and others while running.
+        ExecutorService clients = Executors.newFixedThreadPool(numClients);
+        Set<String> canceled = ConcurrentHashMap.newKeySet();
+        AtomicLong errors = new AtomicLong();
+        long startTime = System.currentTimeMillis();
+        ArrayList<Future<?>> futures = new ArrayList<>();
+        for (int i=0; i<numJobs; i++){
+            int jobNumber = i;
+            futures.add(clients.submit(() -> {
+                Random random = new Random(jobNumber);
+                try{
+                    JSONObject params = new JSONObject();
+                    params.set("q", random.nextBoolean() ?
+                        "select id, name from item where id>" + random.nextInt(1000) :
+                        "select a.id, b.name from item a, item b where a.id<" + random.nextInt(100)
+                    );
+                    params.set("limit", 1+random.nextInt(5000));
+                    params.set("count", random.nextBoolean());
+
+                    ServiceRequest request = Benchmark.getRequest("POST", "/job");
+                    request.setPayload(params.toString().getBytes("UTF-8"));
+                    ServiceResponse response = service.getServiceResponse(request, null);
+                    if (response.getStatus()!=200) throw new Exception();
+                    String id = new JSONObject(response.getResponse().toString()).get("id").toString();
+
+                    if (random.nextInt(3)==0){
+                        int delay = random.nextInt(20);
+                        if (delay>0) Thread.sleep(delay);
+                        canceled.add(id);
+                        request = Benchmark.getRequest("DELETE", "/job/" + id);
+                        if (service.getServiceResponse(request, null).getStatus()!=200){
+                            throw new Exception();
+                        }
+                    }
+                }
+                catch(Exception e){
+                    errors.incrementAndGet();
+                }
+            }));
+        }
+        for (Future<?> future : futures) future.get();
+        clients.shutdown();
+
+
+      //Wait for all jobs to finish
+        int stuck = 0;
+        for (QueryService.QueryJob job : jobs.values()){
+            long wait = Math.max(1, timeout-(System.currentTimeMillis()-startTime));
+            try{
+                job.getFuture().get(wait, TimeUnit.MILLISECONDS);
+            }
+            catch(TimeoutException e){
+                stuck++;
+            }
+        }
+        long elapsedTime = System.currentTimeMillis()-startTime;
+
+
+      //Check job status. Jobs that were canceled after they completed are
+      //deleted by the service and are counted as complete.
+        HashMap<String, Integer> stats = new HashMap<>();
+        int invalid = 0;
+        for (QueryService.QueryJob job : jobs.values()){
+            String status = job.getStatus();
+            stats.put(status, stats.getOrDefault(status, 0)+1);
+            if (status.equals("complete") && !canceled.contains(job.getID())){
+                if (!job.getOutput().exists()) invalid++;
+            }
+            if (status.equals("canceled") && !canceled.contains(job.getID())){
+                invalid++;
+            }
+        }
+
+
+      //Delete remaining jobs and check for orphan files. Output files for
+      //canceled jobs are deleted by the query processors so wait for any
+      //processors that are still cleaning up.
+        for (QueryService.QueryJob job : jobs.values()){
+            if (canceled.contains(job.getID())) continue;
+            ServiceRequest request = Benchmark.getRequest("DELETE", "/job/" + job.getID());
+            service.getServiceResponse(request, null);
+        }
+        int orphans = 0;
+        for (int i=0; i<50; i++){
+            orphans = jobDir.getFiles(true).length;
+            if (orphans==0) break;
+            Thread.sleep(100);
+        }
+
+
+        System.out.println(String.format(
+            "%d jobs in %d ms (%d submitted, %d canceled)",
+            numJobs, elapsedTime, jobs.size(), canceled.size()
+        ));
+        System.out.println("status:  " + stats);
+        System.out.println(String.format(
+            "errors %d  stuck %d  invalid %d  orphan files %d",
+            errors.get(), stuck, invalid, orphans
+        ));
+        jobDir.delete();
+        System.exit(errors.get()+stuck+invalid+orphans==0 ? 0 : 1);
+    }
+}